@@ -15,6 +15,9 @@
  */
 package org.squonk.fragnet;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -29,6 +32,9 @@ public class Utils {
     private static final Logger LOG = Logger.getLogger(Utils.class.getName());
     private static DateFormat DATE_FORMAT = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
     private static final String LOG_PATH;
+    /** Streams that are written to are left open so that the caller can continue to use them */
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper()
+            .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
 
     /**
      * Get a value that might be configured externally. Looks first for a system property
@@ -69,6 +75,14 @@ public class Utils {
         return defaultValue;
     }
 
+    /** Get the shared ObjectMapper. This is thread safe and should be used rather than creating new instances.
+     *
+     * @return
+     */
+    public static ObjectMapper getObjectMapper() {
+        return OBJECT_MAPPER;
+    }
+
     public static DateFormat getDateFormat() {
         return DATE_FORMAT;
     }
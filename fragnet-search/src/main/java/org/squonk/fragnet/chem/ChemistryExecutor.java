@@ -0,0 +1,234 @@
+/*
+ * Copyright (c) 2023 Informatics Matters Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squonk.fragnet.chem;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.GaugeMetricFamily;
+import org.squonk.fragnet.Utils;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+import java.util.logging.Logger;
+
+/**
+ * Runs chemistry work (e.g. calculations and MCS) in parallel on a dedicated pool of FRAGNET_CHEM_THREADS threads
+ * (default the number of processors), rather than on the common pool that is shared by everything in the JVM.
+ * <p>
+ * Each call to {@link #forEach(Collection, Consumer)} uses at most FRAGNET_CHEM_REQUEST_THREADS threads (default half
+ * the pool), one of which is the calling thread. The work is shared between those threads, which are queued in the
+ * order the calls are made. A large request therefore cannot take over the whole pool, and other requests continue to
+ * make progress (on their own thread if need be) while the pool is busy.
+ * <p>
+ * The queue depth and number of active threads are reported in the metrics.
+ * <p>
+ * Thread safe.
+ */
+public class ChemistryExecutor {
+
+    private static final Logger LOG = Logger.getLogger(ChemistryExecutor.class.getName());
+
+    private static final String FRAGNET_CHEM_THREADS = Utils.getConfiguration("FRAGNET_CHEM_THREADS",
+            String.valueOf(Runtime.getRuntime().availableProcessors()));
+    private static final String FRAGNET_CHEM_REQUEST_THREADS = Utils.getConfiguration("FRAGNET_CHEM_REQUEST_THREADS",
+            String.valueOf(Math.max(1, Integer.parseInt(FRAGNET_CHEM_THREADS) / 2)));
+
+    private static ChemistryExecutor defaultInstance;
+
+    private final ThreadPoolExecutor executor;
+    private final int requestThreads;
+
+    /**
+     * @param threads        The number of threads in the pool
+     * @param requestThreads The maximum number of threads used by each call, including the calling thread
+     * @param name           The name of the pool, used to name its threads
+     */
+    public ChemistryExecutor(int threads, int requestThreads, String name) {
+        AtomicInteger count = new AtomicInteger(0);
+        this.executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), (r) -> {
+            Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.executor.allowCoreThreadTimeOut(true);
+        this.requestThreads = Math.max(1, requestThreads);
+        LOG.info("Chemistry executor has " + threads + " threads, " + this.requestThreads + " per request");
+    }
+
+    /**
+     * The instance configured from the environment. Its queue depth and active threads are reported in the metrics.
+     */
+    public static synchronized ChemistryExecutor getDefault() {
+        if (defaultInstance == null) {
+            defaultInstance = new ChemistryExecutor(
+                    Integer.parseInt(FRAGNET_CHEM_THREADS),
+                    Integer.parseInt(FRAGNET_CHEM_REQUEST_THREADS),
+                    "fragnet-chem");
+            new ExecutorCollector(defaultInstance.executor).register();
+        }
+        return defaultInstance;
+    }
+
+    public int getRequestThreads() {
+        return requestThreads;
+    }
+
+    /**
+     * Perform the action on each of the items in parallel and wait for them all to complete.
+     * If an action fails the remaining items are skipped and the failure is rethrown.
+     *
+     * @param items  The items
+     * @param action The action
+     */
+    public <T> void forEach(Collection<T> items, Consumer<? super T> action) {
+        List<T> list = items instanceof List ? (List<T>) items : new ArrayList<>(items);
+        run(list.size(), (i) -> action.accept(list.get(i)));
+    }
+
+    /**
+     * Apply the function to each of the items in parallel and wait for them all to complete.
+     * If the function fails the remaining items are skipped and the failure is rethrown.
+     *
+     * @param items    The items
+     * @param function The function
+     * @return The results, in the same order as the items
+     */
+    public <T, R> List<R> map(List<T> items, Function<? super T, ? extends R> function) {
+        List<R> results = new ArrayList<>(Collections.nCopies(items.size(), null));
+        run(items.size(), (i) -> results.set(i, function.apply(items.get(i))));
+        return results;
+    }
+
+    /**
+     * Run the action for each index from 0 to size - 1 in parallel, and wait for them all to complete.
+     */
+    private void run(int size, IntConsumer action) {
+        int workers = Math.min(requestThreads, size);
+        if (workers <= 1) {
+            for (int i = 0; i < size; i++) {
+                action.accept(i);
+            }
+            return;
+        }
+
+        AtomicInteger next = new AtomicInteger(0);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Runnable worker = () -> {
+            int i;
+            while (failure.get() == null && (i = next.getAndIncrement()) < size) {
+                try {
+                    action.accept(i);
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            }
+        };
+
+        CountDownLatch done = new CountDownLatch(workers - 1);
+        List<Task> tasks = new ArrayList<>(workers - 1);
+        for (int w = 1; w < workers; w++) {
+            Task task = new Task(worker, done);
+            tasks.add(task);
+            executor.execute(task);
+        }
+        // the calling thread does its share, and all of it if the pool is busy
+        worker.run();
+        for (Task task : tasks) {
+            // workers that have not started have nothing left to do, so they are taken out of the queue rather than
+            // left there to be counted in the queue depth until a thread picks them up
+            if (task.claim()) {
+                executor.remove(task);
+                done.countDown();
+            }
+        }
+        try {
+            // wait for the workers that did start so that none is still running an action when this returns
+            done.await();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            failure.compareAndSet(null, ex);
+        }
+
+        Throwable t = failure.get();
+        if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        } else if (t instanceof Error) {
+            throw (Error) t;
+        } else if (t != null) {
+            throw new IllegalStateException("Chemistry task failed", t);
+        }
+    }
+
+    /**
+     * A worker submitted to the pool. It is run by whichever of the pool or the caller claims it first, and the pool
+     * does nothing if the caller claimed it because the work was already done.
+     */
+    private static class Task implements Runnable {
+
+        private final Runnable worker;
+        private final CountDownLatch done;
+        private final AtomicBoolean claimed = new AtomicBoolean(false);
+
+        Task(Runnable worker, CountDownLatch done) {
+            this.worker = worker;
+            this.done = done;
+        }
+
+        boolean claim() {
+            return claimed.compareAndSet(false, true);
+        }
+
+        @Override
+        public void run() {
+            if (claim()) {
+                try {
+                    worker.run();
+                } finally {
+                    done.countDown();
+                }
+            }
+        }
+    }
+
+    /**
+     * Reports the state of the executor when the metrics are collected.
+     */
+    private static class ExecutorCollector extends Collector {
+
+        private final ThreadPoolExecutor executor;
+
+        ExecutorCollector(ThreadPoolExecutor executor) {
+            this.executor = executor;
+        }
+
+        @Override
+        public List<MetricFamilySamples> collect() {
+            return Arrays.asList(
+                    new GaugeMetricFamily("chem_executor_queue_depth",
+                            "Number of chemistry tasks waiting for a thread", executor.getQueue().size()),
+                    new GaugeMetricFamily("chem_executor_active_threads",
+                            "Number of threads running chemistry tasks", executor.getActiveCount()),
+                    new GaugeMetricFamily("chem_executor_threads",
+                            "Number of threads in the chemistry pool", executor.getPoolSize()));
+        }
+    }
+}
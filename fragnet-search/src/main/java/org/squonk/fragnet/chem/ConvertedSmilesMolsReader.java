@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2023 Informatics Matters Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squonk.fragnet.chem;
+
+import org.squonk.fragnet.Constants;
+import org.squonk.fragnet.search.model.v2.ConvertedSmilesMols;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads SMILES or SDF data in chunks of molecules, standardizing them in the same way as the
+ * {@link MolStandardize}.readStdNonisoSmilesXxx() methods, so that large inputs do not need to be held in memory.
+ * The molecules and their IDs are the same as if the input had been read in one go: blank SMILES lines are ignored,
+ * and molecules that do not have an ID are given their line number in the whole input (SMILES, where blank lines are
+ * counted) or their position in the whole input (SDF).
+ */
+public class ConvertedSmilesMolsReader implements Closeable {
+
+    private static final String SDF_RECORD_END = "$$$$";
+
+    private final BufferedReader reader;
+    private final String mimeType;
+    private final String idPropName;
+    private final int chunkSize;
+    private int count = 0;
+    /** The number of SMILES lines read, including blank ones */
+    private int lineCount = 0;
+    private boolean atEnd = false;
+
+    /**
+     * @param reader     The SMILES or SDF data
+     * @param mimeType   The format of the data, Constants.MIME_TYPE_SMILES or Constants.MIME_TYPE_SDFILE
+     * @param idPropName For SDF, the property for the ID. Can be null.
+     * @param chunkSize  The maximum number of molecules in each chunk
+     */
+    public ConvertedSmilesMolsReader(Reader reader, String mimeType, String idPropName, int chunkSize) {
+        if (!Constants.MIME_TYPE_SMILES.equals(mimeType) && !Constants.MIME_TYPE_SDFILE.equals(mimeType)) {
+            throw new IllegalArgumentException("Unexpected content type: " + mimeType);
+        }
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("Chunk size must be at least 1");
+        }
+        this.reader = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader);
+        this.mimeType = mimeType;
+        this.idPropName = idPropName;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * @return The number of molecules read so far
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Read the next chunk of molecules.
+     *
+     * @return The molecules, or null if there are no more
+     * @throws IOException
+     */
+    public ConvertedSmilesMols nextChunk() throws IOException {
+        if (atEnd) {
+            return null;
+        }
+        ConvertedSmilesMols mols = Constants.MIME_TYPE_SMILES.equals(mimeType) ? readSmiles() : readSDF();
+        if (mols == null || mols.getMolecules().isEmpty()) {
+            atEnd = true;
+            return null;
+        }
+        count += mols.getMolecules().size();
+        return mols;
+    }
+
+    private ConvertedSmilesMols readSmiles() throws IOException {
+        // blank lines are passed on so that they are counted in the line numbers
+        List<String> lines = new ArrayList<>(chunkSize);
+        int molecules = 0;
+        String line;
+        while (molecules < chunkSize && (line = reader.readLine()) != null) {
+            lines.add(line);
+            if (!line.trim().isEmpty()) {
+                molecules++;
+            }
+        }
+        if (molecules == 0) {
+            return null;
+        }
+        int offset = lineCount;
+        lineCount += lines.size();
+        return MolStandardize.readStdNonisoSmilesLines(lines.stream(), offset);
+    }
+
+    private ConvertedSmilesMols readSDF() throws IOException {
+        StringBuilder data = new StringBuilder();
+        int records = 0;
+        boolean content = false;
+        String line;
+        while (records < chunkSize && (line = reader.readLine()) != null) {
+            data.append(line).append('\n');
+            if (line.startsWith(SDF_RECORD_END)) {
+                records++;
+            } else if (!line.trim().isEmpty()) {
+                content = true;
+            }
+        }
+        if (!content) {
+            return null;
+        }
+        return MolStandardize.readStdNonisoSmilesFromSDFData(data.toString(), idPropName, count);
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
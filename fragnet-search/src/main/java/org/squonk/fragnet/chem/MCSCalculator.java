@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2023 Informatics Matters Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squonk.fragnet.chem;
+
+import io.prometheus.client.Counter;
+import org.RDKit.MCSResult;
+import org.RDKit.RDKFuncs;
+import org.RDKit.ROMol_Vect;
+import org.RDKit.RWMol;
+import org.squonk.fragnet.Utils;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+/**
+ * Finds the maximum common substructure (MCS) of a set of molecules.
+ * <p>
+ * Each search is limited to FRAGNET_MCS_TIMEOUT_SECS (default 10) seconds. The number of atoms in the MCS is
+ * remembered for the last FRAGNET_MCS_CACHE_SIZE (default 10000) sets of molecules, so repeated searches do not need
+ * to find it again. The order of the molecules other than the first does not matter. Each set is remembered by a
+ * SHA-256 digest of its SMILES, so the memory used by the cache does not depend on the size of the sets.
+ * <p>
+ * Thread safe.
+ */
+public class MCSCalculator {
+
+    private static final Logger LOG = Logger.getLogger(MCSCalculator.class.getName());
+
+    private static final String FRAGNET_MCS_TIMEOUT_SECS = Utils.getConfiguration("FRAGNET_MCS_TIMEOUT_SECS", "10");
+    private static final String FRAGNET_MCS_CACHE_SIZE = Utils.getConfiguration("FRAGNET_MCS_CACHE_SIZE", "10000");
+
+    private static final Counter mcsCacheHitsTotal = Counter.build()
+            .name("cache_mcs_hits")
+            .help("Total number of MCS results found in the cache")
+            .register();
+    private static final Counter mcsTimeoutsTotal = Counter.build()
+            .name("mcs_timeouts")
+            .help("Total number of MCS searches that timed out")
+            .register();
+
+    /** Recorded in the cache when the search timed out */
+    private static final int TIMED_OUT = -1;
+    private static final byte KEY_SEP = ' ';
+
+    private static MCSCalculator defaultInstance;
+
+    private final long timeout;
+    private final int maxSize;
+    private final Map<String, Integer> results;
+
+    /**
+     * @param timeout The maximum time for each search in seconds
+     * @param maxSize The number of results to remember. Zero disables this.
+     */
+    public MCSCalculator(long timeout, int maxSize) {
+        this.timeout = timeout;
+        this.maxSize = maxSize;
+        this.results = new LinkedHashMap<String, Integer>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+                return size() > MCSCalculator.this.maxSize;
+            }
+        };
+        LOG.info("MCS timeout is " + timeout + "s, cache size is " + maxSize);
+    }
+
+    /**
+     * The instance configured from the environment.
+     */
+    public static synchronized MCSCalculator getDefault() {
+        if (defaultInstance == null) {
+            defaultInstance = new MCSCalculator(
+                    Long.parseLong(FRAGNET_MCS_TIMEOUT_SECS),
+                    Integer.parseInt(FRAGNET_MCS_CACHE_SIZE));
+        }
+        return defaultInstance;
+    }
+
+    /**
+     * Find the number of atoms in the MCS of the first molecule and the others.
+     *
+     * @param first     The SMILES of the first molecule
+     * @param others    The SMILES of the other molecules
+     * @param molecules Provides the molecule for each SMILES. Molecules that cannot be provided (null) are ignored.
+     * @return The number of atoms, or null if the search timed out or there are no other molecules
+     */
+    public Integer findMCSAtoms(String first, Collection<String> others, Function<String, RWMol> molecules) {
+        String key = generateKey(first, others);
+        Integer atoms = get(key);
+        if (atoms != null) {
+            mcsCacheHitsTotal.inc();
+        } else {
+            atoms = searchMCSAtoms(first, others, molecules);
+            if (atoms == null) {
+                return null;
+            }
+            put(key, atoms);
+        }
+        return atoms == TIMED_OUT ? null : atoms;
+    }
+
+    /**
+     * @return The number of atoms, TIMED_OUT or null if there is nothing to compare
+     */
+    private Integer searchMCSAtoms(String first, Collection<String> others, Function<String, RWMol> molecules) {
+        // the molecules are owned by the caller so deleting the vector does not delete them
+        ROMol_Vect mols = new ROMol_Vect();
+        MCSResult mcs = null;
+        try {
+            RWMol mol = molecules.apply(first);
+            if (mol == null) {
+                return null;
+            }
+            mols.add(mol);
+            for (String smiles : others) {
+                mol = molecules.apply(smiles);
+                if (mol != null) {
+                    mols.add(mol);
+                }
+            }
+            if (mols.size() < 2) {
+                return null;
+            }
+            long t0 = System.nanoTime();
+            // the parameters other than the timeout are the defaults
+            mcs = RDKFuncs.findMCS(mols, true, 1.0, timeout);
+            long t1 = System.nanoTime();
+            if (mcs.getCanceled()) {
+                LOG.info("MCS of " + mols.size() + " molecules timed out after " + timeout + "s");
+                mcsTimeoutsTotal.inc();
+                return TIMED_OUT;
+            }
+            LOG.fine("MCS Atoms: " + mcs.getNumAtoms() + " Took: " + (t1 - t0) + "ns Smarts: " + mcs.getSmartsString());
+            return (int) mcs.getNumAtoms();
+        } finally {
+            if (mcs != null) {
+                mcs.delete();
+            }
+            mols.delete();
+        }
+    }
+
+    /**
+     * @return A hex encoded SHA-256 digest of the first SMILES followed by the sorted others
+     */
+    static String generateKey(String first, Collection<String> others) {
+        List<String> sorted = new ArrayList<>(others);
+        Collections.sort(sorted);
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(first.getBytes(StandardCharsets.UTF_8));
+            for (String smiles : sorted) {
+                digest.update(KEY_SEP);
+                digest.update(smiles.getBytes(StandardCharsets.UTF_8));
+            }
+            byte[] hash = digest.digest();
+            StringBuilder hex = new StringBuilder(hash.length * 2);
+            for (byte h : hash) {
+                hex.append(String.format("%02x", h));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 not available", ex);
+        }
+    }
+
+    private synchronized Integer get(String key) {
+        return maxSize > 0 ? results.get(key) : null;
+    }
+
+    private synchronized void put(String key, Integer atoms) {
+        if (maxSize > 0) {
+            results.put(key, atoms);
+        }
+    }
+}
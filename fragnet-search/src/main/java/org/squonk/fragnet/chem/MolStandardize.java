@@ -25,7 +25,10 @@ import java.io.IOException;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
 import java.util.stream.Stream;
@@ -42,34 +45,40 @@ public class MolStandardize {
 
     private static CleanupParameters DEFAULT_CLEANUP_PARAMS = RDKFuncs.getDefaultCleanupParameters();
 
+    private static final String SDF_RECORD_END = "$$$$";
+    private static final String MOL_BLOCK_END = "M  END";
+
 
     public static String prepareNonisoMol(@NotNull String molecule, @NotNull String mimeType) {
 
-        RWMol mol;
-        if (Constants.MIME_TYPE_SMILES.equals(mimeType)) {
-            mol = RWMol.MolFromSmiles(molecule);
-        } else if (Constants.MIME_TYPE_MOLFILE.equals(mimeType)) {
-            LOG.fine("MOL: |" + molecule + "|");
-            mol = RWMol.MolFromMolBlock(molecule, true);
-        } else {
-            throw new IllegalArgumentException("Unexpected molecule format: " + mimeType);
-        }
+        // only the SMILES is returned so the molecules can all be deleted
+        try (NativeArena arena = new NativeArena()) {
+            RWMol mol;
+            if (Constants.MIME_TYPE_SMILES.equals(mimeType)) {
+                mol = arena.add(RWMol.MolFromSmiles(molecule));
+            } else if (Constants.MIME_TYPE_MOLFILE.equals(mimeType)) {
+                LOG.fine("MOL: |" + molecule + "|");
+                mol = arena.add(RWMol.MolFromMolBlock(molecule, true));
+            } else {
+                throw new IllegalArgumentException("Unexpected molecule format: " + mimeType);
+            }
 
-        if (mol == null) {
-            throw new RuntimeException("Invalid molecule: " + molecule);
-        }
+            if (mol == null) {
+                throw new RuntimeException("Invalid molecule: " + molecule);
+            }
 
-        mol = defaultStandardize(mol);
-        if (mol == null) {
-            throw new RuntimeException("Unable to standardize: " + molecule);
-        }
+            mol = defaultStandardize(mol, arena);
+            if (mol == null) {
+                throw new RuntimeException("Unable to standardize: " + molecule);
+            }
 
-        String canon = mol.MolToSmiles(false, false);
-        if (canon == null) {
-            throw new RuntimeException("Unable to generate canonical SMILES: " + mol);
+            String canon = mol.MolToSmiles(false, false);
+            if (canon == null) {
+                throw new RuntimeException("Unable to generate canonical SMILES: " + mol);
+            }
+            LOG.finer("Canonical SMILES: " + canon);
+            return canon;
         }
-        LOG.finer("Canonical SMILES: " + canon);
-        return canon;
     }
 
 
@@ -122,6 +131,20 @@ public class MolStandardize {
         return mol;
     }
 
+    /**
+     * Run default standardization needed for the fragment network, tracking the molecules that are created.
+     *
+     * @param mol   The mol to standardize
+     * @param arena Tracks the intermediate and standardized mols so that they can be deleted
+     * @return The standardized mol
+     */
+    public static RWMol defaultStandardize(RWMol mol, NativeArena arena) {
+        mol = arena.add(cleanup(mol));
+        mol = arena.add(uncharge(mol, false));
+        removeIsotopes(mol);
+        return mol;
+    }
+
 
     /**
      * Generate the non-isomeric SMILES needed for the fragment network
@@ -154,51 +177,182 @@ public class MolStandardize {
         }
     }
 
+    /** Read an SDF file. The records are read one at a time so the file is never held in memory as a whole.
+     * A record that cannot be read gives a molecule without a SMILES, as it does for
+     * {@link #readStdNonisoSmilesFromSDFData(String, String, int)}.
+     *
+     * @param file The SDF file
+     * @param idPropName The property for the ID, or _Name for the first line of the record. If null, or if a record
+     *                   does not have it, the record number is used.
+     * @return The molecules, in the order of the records
+     */
     public static ConvertedSmilesMols readStdNonisoSmilesFromSDFFile(
             String file,
             String idPropName
     ) {
+        ConvertedSmilesMols mols = new ConvertedSmilesMols(Constants.MIME_TYPE_MOLFILE);
         SDMolSupplier molSupplier = new SDMolSupplier(file);
-//        SDMolSupplier molSupplier = new SDMolSupplier(file, true, true);
-        return readSDF(molSupplier, idPropName);
+        try {
+            int count = 0;
+            while (!molSupplier.atEnd()) {
+                count++;
+                String molBlock = null;
+                String smiles = null;
+                String id = null;
+                // only the molblock and SMILES are kept so the molecules can all be deleted
+                try (NativeArena arena = new NativeArena()) {
+                    ROMol mol = arena.add(molSupplier.next());
+                    if (mol != null) {
+                        molBlock = mol.MolToMolBlock();
+                        if (idPropName != null && mol.hasProp(idPropName)) {
+                            id = mol.getProp(idPropName);
+                        }
+                        smiles = defaultStandardize(arena.add(new RWMol(mol)), arena).MolToSmiles(false, false);
+                    }
+                } catch (RuntimeException ex) {
+                    LOG.log(Level.WARNING, "Failed to read molecule " + count, ex);
+                }
+                mols.addMol(molBlock, smiles, id == null ? "" + count : id);
+            }
+        } finally {
+            molSupplier.delete();
+        }
+        return mols;
     }
 
 
     public static ConvertedSmilesMols readStdNonisoSmilesFromSDFData(
             String data,
             String idPropName) {
-
-        SDMolSupplier molSupplier = new SDMolSupplier();
-        molSupplier.setData(data, true, true);
-        return readSDF(molSupplier, idPropName);
+        return readStdNonisoSmilesFromSDFData(data, idPropName, 0);
     }
 
-    private static ConvertedSmilesMols readSDF(SDMolSupplier molSupplier, String idPropName) {
-
-        int count = 0;
-        ConvertedSmilesMols mols = new ConvertedSmilesMols(Constants.MIME_TYPE_MOLFILE);
-        while (!molSupplier.atEnd()) {
-            count++;
-            ROMol mol = molSupplier.next();
-            // TODO - this in ineficient and might change the mol
-            String molBlock = mol.MolToMolBlock();
+    /** Read SDF data that is part of a larger file.
+     * The records are split from the text and the original molblock of each is kept as it is, so only the
+     * standardization needs the molecules to be parsed. That is run in parallel on the {@link ChemistryExecutor}.
+     *
+     * @param data The SDF records
+     * @param idPropName The property for the ID, or _Name for the first line of the record. If null, or if a record
+     *                   does not have it, the record number is used.
+     * @param offset The number of records in the file that precede the data, so that the record numbers are correct
+     * @return The molecules, in the order of the records
+     */
+    public static ConvertedSmilesMols readStdNonisoSmilesFromSDFData(
+            String data,
+            String idPropName,
+            int offset) {
+
+        List<String> records = splitSDFRecords(data);
+        List<String> molBlocks = new ArrayList<>(records.size());
+        for (String record : records) {
+            int end = endOfMolBlock(record);
+            molBlocks.add(end < 0 ? record : record.substring(0, end));
+        }
 
-            mol.canonicalizeMol();
+        List<String> smiles = ChemistryExecutor.getDefault().map(molBlocks, MolStandardize::stdNonisoSmilesFromMolBlock);
 
+        ConvertedSmilesMols mols = new ConvertedSmilesMols(Constants.MIME_TYPE_MOLFILE);
+        for (int i = 0; i < records.size(); i++) {
             String id = null;
             if (idPropName != null) {
-                id = mol.getProp(idPropName);
+                id = getSDFProperty(records.get(i), idPropName);
             }
             if (id == null) {
-                id = "" + count;
+                id = "" + (offset + i + 1);
             }
-
-            String smiles = nonisoSmiles(new RWMol(mol), true);
-            mols.addMol(molBlock, smiles, id);
+            mols.addMol(molBlocks.get(i), smiles.get(i), id);
         }
         return mols;
     }
 
+    /** Split SDF data into its records, without the $$$$ lines. Empty records are ignored.
+     */
+    static List<String> splitSDFRecords(String data) {
+        List<String> records = new ArrayList<>();
+        int start = 0;
+        int length = data.length();
+        while (start < length) {
+            // the next $$$$ that is at the start of a line
+            int sep = data.indexOf(SDF_RECORD_END, start);
+            while (sep > 0 && data.charAt(sep - 1) != '\n') {
+                sep = data.indexOf(SDF_RECORD_END, sep + 1);
+            }
+            String record = sep < 0 ? data.substring(start) : data.substring(start, sep);
+            if (!record.trim().isEmpty()) {
+                records.add(record);
+            }
+            if (sep < 0) {
+                break;
+            }
+            int eol = data.indexOf('\n', sep);
+            start = eol < 0 ? length : eol + 1;
+        }
+        return records;
+    }
+
+    /** The end of the M  END line of the record, or -1 if there isn't one.
+     */
+    private static int endOfMolBlock(String record) {
+        int end = record.indexOf(MOL_BLOCK_END);
+        while (end > 0 && record.charAt(end - 1) != '\n') {
+            end = record.indexOf(MOL_BLOCK_END, end + 1);
+        }
+        if (end < 0) {
+            return -1;
+        }
+        int eol = record.indexOf('\n', end);
+        return eol < 0 ? record.length() : eol + 1;
+    }
+
+    /** Get a data item from an SDF record.
+     *
+     * @param record The SDF record
+     * @param name The name of the data item, or _Name for the first line of the record
+     * @return The value (multiple lines are joined with a newline), or null if the record does not have it
+     */
+    static String getSDFProperty(String record, String name) {
+        String[] lines = record.split("\\r?\\n", -1);
+        if ("_Name".equals(name)) {
+            return lines[0];
+        }
+        String tag = "<" + name + ">";
+        // lines of the molblock never start with > so only the data item headers are found
+        for (int i = 1; i < lines.length; i++) {
+            if (lines[i].startsWith(">") && lines[i].contains(tag)) {
+                StringBuilder value = new StringBuilder();
+                for (int j = i + 1; j < lines.length && !lines[j].isEmpty(); j++) {
+                    if (value.length() > 0) {
+                        value.append('\n');
+                    }
+                    value.append(lines[j]);
+                }
+                return value.toString();
+            }
+        }
+        return null;
+    }
+
+    private static String stdNonisoSmilesFromMolBlock(String molBlock) {
+        // only the SMILES is returned so the molecules can all be deleted
+        try (NativeArena arena = new NativeArena()) {
+            RWMol mol = arena.add(RWMol.MolFromMolBlock(molBlock, true));
+            return mol == null ? null : defaultStandardize(mol, arena).MolToSmiles(false, false);
+        } catch (RuntimeException ex) {
+            LOG.log(Level.WARNING, "Failed to read molecule", ex);
+            return null;
+        }
+    }
+
+    private static String stdNonisoSmilesFromSmiles(String smiles) {
+        try (NativeArena arena = new NativeArena()) {
+            RWMol mol = arena.add(ChemUtils.molFromSmiles(smiles));
+            return mol == null ? null : defaultStandardize(mol, arena).MolToSmiles(false, false);
+        } catch (RuntimeException ex) {
+            LOG.log(Level.WARNING, "Failed to read molecule " + smiles, ex);
+            return null;
+        }
+    }
+
     public static ConvertedSmilesMols readStdNonisoSmilesFromSmilesData(String data) throws IOException {
         Stream<String> stream = Pattern.compile("\\r?\\n").splitAsStream(data);
         return readStdNonisoSmilesLines(stream);
@@ -206,28 +360,77 @@ public class MolStandardize {
 
     public static ConvertedSmilesMols readStdNonisoSmilesFromSmilesFile(String file) throws IOException {
         Path path = FileSystems.getDefault().getPath(file);
-        Stream<String> stream = Files.lines(path);
-        return readStdNonisoSmilesLines(stream);
+        try (Stream<String> stream = Files.lines(path)) {
+            return readStdNonisoSmilesLines(stream);
+        }
     }
 
     public static ConvertedSmilesMols readStdNonisoSmilesLines(Stream<String> lines) throws IOException {
-        AtomicInteger count = new AtomicInteger(0);
-        ConvertedSmilesMols mols = new ConvertedSmilesMols(Constants.MIME_TYPE_SMILES);
-        lines.sequential().forEachOrdered((l) -> {
-            count.incrementAndGet();
+        return readStdNonisoSmilesLines(lines, 0);
+    }
+
+    /** Read SMILES lines that are part of a larger file.
+     * The molecules are standardized in parallel on the {@link ChemistryExecutor}.
+     * Blank lines are ignored. Molecules without an ID are given their line number, in which blank lines are counted.
+     *
+     * @param lines The lines, each with the SMILES optionally followed by the ID
+     * @param offset The number of lines in the file that precede these (including blank lines), so that the line
+     *               numbers used for missing IDs are correct
+     * @return The molecules, in the order of the lines
+     */
+    public static ConvertedSmilesMols readStdNonisoSmilesLines(Stream<String> lines, int offset) throws IOException {
+        List<String> trimmed = new ArrayList<>();
+        List<String> inputs = new ArrayList<>();
+        List<String> ids = new ArrayList<>();
+        List<Integer> lineNumbers = new ArrayList<>();
+        AtomicInteger count = new AtomicInteger(offset);
+        lines.forEachOrdered((l) -> {
+            int lineNumber = count.incrementAndGet();
             l = l.trim();
-            String[] tokens = l.split("\\s+");
-            String smiles = nonisoSmiles(tokens[0], true);
+            if (l.isEmpty()) {
+                return;
+            }
+            int ws = indexOfWhitespace(l);
+            trimmed.add(l);
+            inputs.add(ws < 0 ? l : l.substring(0, ws));
+            ids.add(ws < 0 ? null : nextToken(l, ws));
+            lineNumbers.add(lineNumber);
+        });
 
-            if (tokens.length > 1) {
-                mols.addMol(tokens[0], smiles, tokens[1]);
+        List<String> smiles = ChemistryExecutor.getDefault().map(inputs, MolStandardize::stdNonisoSmilesFromSmiles);
+
+        ConvertedSmilesMols mols = new ConvertedSmilesMols(Constants.MIME_TYPE_SMILES);
+        for (int i = 0; i < inputs.size(); i++) {
+            if (ids.get(i) != null) {
+                mols.addMol(inputs.get(i), smiles.get(i), ids.get(i));
             } else {
-                mols.addMol(l, smiles, "" + count);
+                mols.addMol(trimmed.get(i), smiles.get(i), "" + lineNumbers.get(i));
             }
-        });
+        }
         return mols;
     }
 
+    private static int indexOfWhitespace(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (Character.isWhitespace(s.charAt(i))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** The token that follows the whitespace at this position */
+    private static String nextToken(String s, int pos) {
+        while (pos < s.length() && Character.isWhitespace(s.charAt(pos))) {
+            pos++;
+        }
+        int end = pos;
+        while (end < s.length() && !Character.isWhitespace(s.charAt(end))) {
+            end++;
+        }
+        return s.substring(pos, end);
+    }
+
     public static void main(String[] args) {
 
         String[][] inputs = {
@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2023 Informatics Matters Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squonk.fragnet.chem;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import org.RDKit.*;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Tracks the RDKit objects created while handling a request so that the native memory they hold can be freed as soon
+ * as the request is complete, rather than when (and if) the garbage collector gets round to finalizing them. The Java
+ * wrappers are small so the garbage collector is not aware of how much native memory is being held.
+ * <p>
+ * Objects are added as they are created and are all deleted when the arena is closed, after which they must not be
+ * used. Arenas that are discarded without being closed are detected when later arenas are created. Their objects are
+ * then deleted and counted as leaked.
+ * <p>
+ * Thread safe.
+ */
+public class NativeArena implements AutoCloseable {
+
+    private static final Logger LOG = Logger.getLogger(NativeArena.class.getName());
+
+    private static final Counter nativeObjectsTracked = Counter.build()
+            .name("rdkit_native_objects_tracked")
+            .help("Total number of RDKit objects tracked for deletion")
+            .register();
+    private static final Counter nativeObjectsReleased = Counter.build()
+            .name("rdkit_native_objects_released")
+            .help("Total number of RDKit objects deleted when their request completed")
+            .register();
+    private static final Counter nativeObjectsLeaked = Counter.build()
+            .name("rdkit_native_objects_leaked")
+            .help("Total number of RDKit objects whose request did not release them")
+            .register();
+    private static final Gauge nativeObjectsLive = Gauge.build()
+            .name("rdkit_native_objects_live")
+            .help("Number of tracked RDKit objects that have not yet been deleted")
+            .register();
+
+    private static final ReferenceQueue<NativeArena> abandoned = new ReferenceQueue<>();
+    /** Keeps the references to the open arenas reachable so that they are enqueued */
+    private static final Set<ArenaReference> open = ConcurrentHashMap.newKeySet();
+
+    private final Tracked objects = new Tracked();
+    private final ArenaReference reference;
+
+    public NativeArena() {
+        releaseAbandoned();
+        reference = new ArenaReference(this, objects);
+        open.add(reference);
+    }
+
+    public RWMol add(RWMol mol) {
+        return add(mol, mol == null ? null : mol::delete);
+    }
+
+    public ROMol add(ROMol mol) {
+        return add(mol, mol == null ? null : mol::delete);
+    }
+
+    public MCSResult add(MCSResult mcs) {
+        return add(mcs, mcs == null ? null : mcs::delete);
+    }
+
+    public ROMol_Vect add(ROMol_Vect mols) {
+        return add(mols, mols == null ? null : mols::delete);
+    }
+
+    public Match_Vect_Vect add(Match_Vect_Vect matches) {
+        return add(matches, matches == null ? null : matches::delete);
+    }
+
+    public ExplicitBitVect add(ExplicitBitVect fp) {
+        return add(fp, fp == null ? null : fp::delete);
+    }
+
+    public SparseIntVectu32 add(SparseIntVectu32 fp) {
+        return add(fp, fp == null ? null : fp::delete);
+    }
+
+    /**
+     * Track an object that is deleted in some other way.
+     *
+     * @param object  The object. If null nothing is tracked.
+     * @param deleter Frees the native memory of the object
+     * @return The object
+     */
+    public <T> T add(T object, Runnable deleter) {
+        if (object != null) {
+            objects.add(deleter);
+        }
+        return object;
+    }
+
+    /**
+     * @return The number of objects that are tracked and not yet deleted
+     */
+    public int size() {
+        return objects.size();
+    }
+
+    /**
+     * Delete all the tracked objects.
+     */
+    @Override
+    public void close() {
+        int count = objects.release();
+        nativeObjectsReleased.inc(count);
+        open.remove(reference);
+        reference.clear();
+    }
+
+    /**
+     * Delete the objects of any arenas that were garbage collected without being closed.
+     */
+    private static void releaseAbandoned() {
+        Reference<? extends NativeArena> ref;
+        while ((ref = abandoned.poll()) != null) {
+            ArenaReference arenaRef = (ArenaReference) ref;
+            open.remove(arenaRef);
+            int count = arenaRef.objects.release();
+            if (count > 0) {
+                LOG.warning(count + " RDKit objects were not released by their request");
+                nativeObjectsLeaked.inc(count);
+            }
+        }
+    }
+
+    /**
+     * The deleters of the tracked objects. This is held separately from the arena so that it remains reachable from
+     * the {@link ArenaReference} once the arena itself is unreachable.
+     */
+    private static class Tracked {
+
+        private List<Runnable> deleters = new ArrayList<>();
+
+        synchronized void add(Runnable deleter) {
+            if (deleters == null) {
+                throw new IllegalStateException("Arena has been closed");
+            }
+            deleters.add(deleter);
+            nativeObjectsTracked.inc();
+            nativeObjectsLive.inc();
+        }
+
+        synchronized int size() {
+            return deleters == null ? 0 : deleters.size();
+        }
+
+        /**
+         * Delete the objects in the reverse order to which they were created, as later ones may refer to earlier ones.
+         *
+         * @return The number of objects deleted
+         */
+        synchronized int release() {
+            if (deleters == null) {
+                return 0;
+            }
+            int count = deleters.size();
+            for (int i = count - 1; i >= 0; i--) {
+                try {
+                    deleters.get(i).run();
+                } catch (RuntimeException ex) {
+                    LOG.warning("Failed to delete RDKit object: " + ex.getLocalizedMessage());
+                }
+            }
+            deleters = null;
+            nativeObjectsLive.dec(count);
+            return count;
+        }
+    }
+
+    private static class ArenaReference extends PhantomReference<NativeArena> {
+
+        private final Tracked objects;
+
+        ArenaReference(NativeArena arena, Tracked objects) {
+            super(arena, abandoned);
+            this.objects = objects;
+        }
+    }
+}
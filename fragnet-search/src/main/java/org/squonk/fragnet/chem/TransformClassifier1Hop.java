@@ -16,7 +16,7 @@
 package org.squonk.fragnet.chem;
 
 import org.squonk.fragnet.Constants;
-import org.squonk.fragnet.search.FragmentUtils;
+import org.squonk.fragnet.search.model.v2.EdgeLabel;
 import org.squonk.fragnet.search.model.v2.GroupingType;
 import org.squonk.fragnet.search.model.v2.MolTransform;
 
@@ -27,17 +27,17 @@ class TransformClassifier1Hop implements Constants {
     private static final Logger LOG = Logger.getLogger(TransformClassifier1Hop.class.getName());
 
     private final String fromSmiles;
-    private final String edge;
+    private final EdgeLabel edge;
     private final String[] parts;
     boolean isAddition;
     private final String toSmiles;
 
     TransformClassifier1Hop(String fromSmiles,
-                                   String edge, boolean isAddition,
+                                   EdgeLabel edge, boolean isAddition,
                                    String toSmiles) {
         this.fromSmiles = fromSmiles;
         this.edge = edge;
-        this.parts = FragmentUtils.splitLabel(edge);
+        this.parts = edge.getParts();
         this.isAddition = isAddition;
         this.toSmiles = toSmiles;
     }
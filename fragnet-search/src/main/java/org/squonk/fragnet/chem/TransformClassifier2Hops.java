@@ -17,7 +17,7 @@ package org.squonk.fragnet.chem;
 
 import org.RDKit.*;
 import org.squonk.fragnet.Constants;
-import org.squonk.fragnet.search.FragmentUtils;
+import org.squonk.fragnet.search.model.v2.EdgeLabel;
 import org.squonk.fragnet.search.model.v2.GroupingType;
 import org.squonk.fragnet.search.model.v2.MolTransform;
 
@@ -26,20 +26,24 @@ import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-class TransformClassifier2Hops implements Constants {
+/**
+ * Classifies a 2-hop transform. The RDKit objects that are created are deleted when the classifier is closed.
+ */
+class TransformClassifier2Hops implements Constants, AutoCloseable {
 
     private static final Logger LOG = Logger.getLogger(TransformClassifier2Hops.class.getName());
 
     private final String fromSmiles;
-    private final String edge1;
+    private final EdgeLabel edge1;
     private final String[] parts1;
     boolean isAddition1;
     private final String midSmiles;
-    private final String edge2;
+    private final EdgeLabel edge2;
     private final String[] parts2;
     boolean isAddition2;
     private final String toSmiles;
     private final int numMiddleComponents;
+    private final NativeArena arena = new NativeArena();
 
     private RWMol mol0 = null; // fromSmiles
     private RWMol mol1 = null; // parts1[4]
@@ -64,19 +68,19 @@ class TransformClassifier2Hops implements Constants {
 
     TransformClassifier2Hops(
             String fromSmiles,
-            String edge1,
+            EdgeLabel edge1,
             boolean isAddition1,
             String midSmiles,
-            String edge2,
+            EdgeLabel edge2,
             boolean isAddition2,
             String toSmiles) {
         this.fromSmiles = fromSmiles;
         this.edge1 = edge1;
-        this.parts1 = FragmentUtils.splitLabel(edge1);
+        this.parts1 = edge1.getParts();
         this.isAddition1 = isAddition1;
         this.midSmiles = midSmiles;
         this.edge2 = edge2;
-        this.parts2 = FragmentUtils.splitLabel(edge2);
+        this.parts2 = edge2.getParts();
         this.isAddition2 = isAddition2;
         this.toSmiles = toSmiles;
         // count the dots in the middle smiles to get the number of disconnected mols
@@ -85,35 +89,35 @@ class TransformClassifier2Hops implements Constants {
 
     RWMol getMol0() {
         if (mol0 == null) {
-            mol0 = RWMol.MolFromSmiles(fromSmiles);
+            mol0 = arena.add(RWMol.MolFromSmiles(fromSmiles));
         }
         return mol0;
     }
 
     RWMol getMol1() {
         if (mol1 == null) {
-            mol1 = RWMol.MolFromSmiles(parts1[4]);
+            mol1 = arena.add(RWMol.MolFromSmiles(parts1[4]));
         }
         return mol1;
     }
 
     RWMol getMol2() {
         if (mol2 == null) {
-            mol2 = RWMol.MolFromSmiles(midSmiles);
+            mol2 = arena.add(RWMol.MolFromSmiles(midSmiles));
         }
         return mol2;
     }
 
     RWMol getMol3() {
         if (mol3 == null) {
-            mol3 = RWMol.MolFromSmiles(parts2[4]);
+            mol3 = arena.add(RWMol.MolFromSmiles(parts2[4]));
         }
         return mol3;
     }
 
     RWMol getMol4() {
         if (mol4 == null) {
-            mol4 = RWMol.MolFromSmiles(toSmiles);
+            mol4 = arena.add(RWMol.MolFromSmiles(toSmiles));
         }
         return mol4;
     }
@@ -144,13 +148,18 @@ class TransformClassifier2Hops implements Constants {
 
     MCSResult generateMCS(RWMol... mols) {
         ROMol_Vect mcsmols = new ROMol_Vect();
-        for (RWMol mol : mols) {
-            mcsmols.add(mol);
-        }
+        try {
+            for (RWMol mol : mols) {
+                mcsmols.add(mol);
+            }
 
-        // generate MCS for the mols
-//        mcs123 = RDKFuncs.findMCS(mcsmols);
-        mcs123 = RDKFuncs.findMCS(mcsmols, true, 0d, 1, false, false, true, true);
+            // generate MCS for the mols
+//            mcs123 = RDKFuncs.findMCS(mcsmols);
+            mcs123 = arena.add(RDKFuncs.findMCS(mcsmols, true, 0d, 1, false, false, true, true));
+        } finally {
+            // this does not delete the mols
+            mcsmols.delete();
+        }
         LOG.fine("MCS SMARTS = " + mcs123.getSmartsString());
         return mcs123;
     }
@@ -165,7 +174,7 @@ class TransformClassifier2Hops implements Constants {
 
     RWMol getMCS123AsMol() {
         if (mcs123Mol == null) {
-            mcs123Mol = RWMol.MolFromSmarts(getMCS123AsSmarts());
+            mcs123Mol = arena.add(RWMol.MolFromSmarts(getMCS123AsSmarts()));
         }
         return mcs123Mol;
     }
@@ -179,7 +188,7 @@ class TransformClassifier2Hops implements Constants {
 
     RWMol getMCS12AsMol() {
         if (mcs12Mol == null) {
-            mcs12Mol = RWMol.MolFromSmarts(getMCS12AsSmarts());
+            mcs12Mol = arena.add(RWMol.MolFromSmarts(getMCS12AsSmarts()));
         }
         return mcs12Mol;
     }
@@ -193,7 +202,7 @@ class TransformClassifier2Hops implements Constants {
 
     RWMol getMCS32AsMol() {
         if (mcs32Mol == null) {
-            mcs32Mol = RWMol.MolFromSmarts(getMCS32AsSmarts());
+            mcs32Mol = arena.add(RWMol.MolFromSmarts(getMCS32AsSmarts()));
         }
         return mcs32Mol;
     }
@@ -207,7 +216,7 @@ class TransformClassifier2Hops implements Constants {
 
     RWMol getMCS04AsMol() {
         if (mcs04Mol == null) {
-            mcs04Mol = RWMol.MolFromSmarts(getMCS04AsSmarts());
+            mcs04Mol = arena.add(RWMol.MolFromSmarts(getMCS04AsSmarts()));
         }
         return mcs04Mol;
     }
@@ -262,7 +271,7 @@ class TransformClassifier2Hops implements Constants {
     }
 
     private Match_Vect_Vect getMatches(RWMol mol, RWMol smarts) {
-        Match_Vect_Vect matches = mol.getSubstructMatches(smarts);
+        Match_Vect_Vect matches = arena.add(mol.getSubstructMatches(smarts));
         LOG.fine("Num matches: " + matches.size());
         return matches;
     }
@@ -319,7 +328,7 @@ class TransformClassifier2Hops implements Constants {
 
         if (isAddition1 && isAddition2) {
             Match_Vect_Vect matches = getMatches4vs04();
-            RWMol mol = RWMol.MolFromSmiles(toSmiles);
+            RWMol mol = arena.add(RWMol.MolFromSmiles(toSmiles));
             AttachmentInfo info = removeNonMappedAtomsWithAttachmentInfo(mol, matches.get(0));
             LOG.fine("Number of attachment points = " + info.attachmentPoints.size());
             for (Atom atom : info.attachmentPoints) {
@@ -347,7 +356,7 @@ class TransformClassifier2Hops implements Constants {
 
         // Create the mol that we're going to use to generate the scaffold
         // We're going to modify this mol so must work with a new copy
-        RWMol workingMol = RWMol.MolFromSmiles(midSmiles);
+        RWMol workingMol = arena.add(RWMol.MolFromSmiles(midSmiles));
 
         // Map the attachment sites in the MCS to mol1 and mol3 (the two transforms) and then to the working Mol
         Atom mol1AttachmentInMol2 = null;
@@ -537,7 +546,9 @@ class TransformClassifier2Hops implements Constants {
         Atom xe = new Atom(54);
         // setNoImplicit(true) is needed otherwise the Xenon is assume to have 2 bonds and gets a hydrogen added to it.
         xe.setNoImplicit(true);
+        // the atom is copied into the mol
         long index = mol.addAtom(xe, false);
+        xe.delete();
         mol.addBond(atomToAttachTo.getIdx(), index, Bond.BondType.SINGLE);
     }
 
@@ -545,6 +556,7 @@ class TransformClassifier2Hops implements Constants {
         RWMol m = RWMol.MolFromSmarts("*");
         Atom any = m.getAtomWithIdx(0);
         long index = mol.addAtom(any, false);
+        m.delete();
         mol.addBond(atomToAttachTo.getIdx(), index, Bond.BondType.SINGLE);
 
     }
@@ -572,6 +584,14 @@ class TransformClassifier2Hops implements Constants {
         return buf.toString();
     }
 
+    /**
+     * Delete the RDKit objects that were created. The classifier cannot be used after this.
+     */
+    @Override
+    public void close() {
+        arena.close();
+    }
+
     static class AttachmentInfo {
         int numAtomsDeleted = 0;
         List<Atom> attachmentPoints = new ArrayList<>();
@@ -16,6 +16,7 @@
 package org.squonk.fragnet.chem;
 
 import org.squonk.fragnet.Constants;
+import org.squonk.fragnet.search.model.v2.EdgeLabel;
 import org.squonk.fragnet.search.model.v2.GroupingType;
 import org.squonk.fragnet.search.model.v2.MolTransform;
 import org.squonk.fragnet.search.model.v2.TransformData;
@@ -30,13 +31,13 @@ public class TransformClassifierUtils implements Constants {
 
     public static MolTransform generateMolTransform(TransformData data) {
         if (data.getNumHops() == 1) {
-            return generateMolTransform(data.getFromSmiles(), data.getEdges()[0], data.getIsAdditions()[0], data.getToSmiles());
+            return generateMolTransform(data.getFromSmiles(), data.getEdgeLabels()[0], data.getIsAdditions()[0], data.getToSmiles());
         } else {
             return generateMolTransform(
                     data.getFromSmiles(),
-                    data.getEdges()[0], data.getIsAdditions()[0],
+                    data.getEdgeLabels()[0], data.getIsAdditions()[0],
                     data.getMidSmiles(),
-                    data.getEdges()[1], data.getIsAdditions()[1],
+                    data.getEdgeLabels()[1], data.getIsAdditions()[1],
                     data.getToSmiles());
         }
     }
@@ -53,6 +54,21 @@ public class TransformClassifierUtils implements Constants {
     public static MolTransform generateMolTransform(String fromSmiles,
                                                     String edge, boolean isAddition,
                                                     String toSmiles) {
+        return generateMolTransform(fromSmiles, EdgeLabel.parse(edge), isAddition, toSmiles);
+    }
+
+    /**
+     * Generate a 1-hop transform
+     *
+     * @param fromSmiles The query smiles
+     * @param edge       Parsed edge label
+     * @param isAddition Is this an addition
+     * @param toSmiles   The result smiles
+     * @return
+     */
+    public static MolTransform generateMolTransform(String fromSmiles,
+                                                    EdgeLabel edge, boolean isAddition,
+                                                    String toSmiles) {
 
         TransformClassifier1Hop classifier = new TransformClassifier1Hop(fromSmiles, edge, isAddition, toSmiles);
         return classifier.classifyTransform();
@@ -76,11 +92,33 @@ public class TransformClassifierUtils implements Constants {
                                                     String midSmiles,
                                                     String edge2, boolean isAddition2,
                                                     String toSmiles) {
-        TransformClassifier2Hops classifier = new TransformClassifier2Hops(
-                fromSmiles, edge1, isAddition1, midSmiles, edge2, isAddition2, toSmiles);
+        return generateMolTransform(fromSmiles, EdgeLabel.parse(edge1), isAddition1, midSmiles,
+                EdgeLabel.parse(edge2), isAddition2, toSmiles);
+    }
+
+    /**
+     * Generate a 2-hop transform
+     *
+     * @param fromSmiles  The query smiles
+     * @param edge1       First parsed edge label
+     * @param isAddition1 First hop is an addition
+     * @param midSmiles   The intermediate smiles
+     * @param edge2       Second parsed edge label
+     * @param isAddition2 Second hop is an addition
+     * @param toSmiles    The result smiles
+     * @return
+     */
+    public static MolTransform generateMolTransform(String fromSmiles,
+                                                    EdgeLabel edge1, boolean isAddition1,
+                                                    String midSmiles,
+                                                    EdgeLabel edge2, boolean isAddition2,
+                                                    String toSmiles) {
+        try (TransformClassifier2Hops classifier = new TransformClassifier2Hops(
+                fromSmiles, edge1, isAddition1, midSmiles, edge2, isAddition2, toSmiles)) {
 
-        MolTransform tx = classifier.classifyTransform();
-        return tx;
+            MolTransform tx = classifier.classifyTransform();
+            return tx;
+        }
     }
 
     public static MolTransform createUndefinedMolTransform(boolean[] isAddition) {
@@ -23,12 +23,15 @@ import org.squonk.fragnet.Constants;
 import org.squonk.fragnet.search.model.v1.MoleculeEdge;
 import org.squonk.fragnet.search.model.v1.MoleculeNode;
 
+import java.util.Arrays;
 import java.util.logging.Logger;
 
 public class FragmentUtils implements Constants {
 
     public static final Logger LOG = Logger.getLogger("FragmentUtils.class");
 
+    private static final char LABEL_SEP = '|';
+
 
     /**
      * Get the start and end node of the relationship
@@ -73,8 +76,29 @@ public class FragmentUtils implements Constants {
         return node.get(MoleculeNode.Property.RING_ATOM_COUNT.dbname).asInt();
     }
 
+    /** Split an edge label into its parts. Equivalent to {@code label.split("\\|")} but without the regex.
+     *
+     * @param label The edge label
+     * @return The parts of the label
+     */
     public static String[] splitLabel(String label) {
-        return label.split("\\|");
+        int count = 1;
+        for (int i = label.indexOf(LABEL_SEP); i >= 0; i = label.indexOf(LABEL_SEP, i + 1)) {
+            count++;
+        }
+        String[] parts = new String[count];
+        int start = 0;
+        for (int i = 0; i < count - 1; i++) {
+            int end = label.indexOf(LABEL_SEP, start);
+            parts[i] = label.substring(start, end);
+            start = end + 1;
+        }
+        parts[count - 1] = label.substring(start);
+        // like String.split() trailing empty strings are removed
+        while (count > 1 && parts[count - 1].isEmpty()) {
+            count--;
+        }
+        return count == parts.length ? parts : Arrays.copyOf(parts, count);
     }
 
 }
@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2023 Informatics Matters Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squonk.fragnet.search;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.LongFunction;
+
+/**
+ * Map keyed by primitive long values (e.g. Neo4j node and relationship IDs) that preserves insertion order.
+ * <p>
+ * This replaces a {@code LinkedHashMap<Long, V>} where large numbers of entries are added, avoiding boxing the keys
+ * and allocating an entry object for each value. Keys and values are held in parallel arrays in the order they were
+ * added, and an open addressing hash table (linear probing) holds the index of each key in those arrays.
+ * Entries cannot be removed.
+ * <p>
+ * Not thread safe.
+ *
+ * @param <V> The type of the values
+ */
+public class LongObjectMap<V> {
+
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] keys;
+    private Object[] values;
+    /** hash table of index + 1 into the keys and values arrays. 0 means the slot is empty. */
+    private int[] slots;
+    private int size;
+
+    public LongObjectMap() {
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * @param expectedSize The number of entries that are expected
+     */
+    public LongObjectMap(int expectedSize) {
+        int capacity = Math.max(MIN_CAPACITY, expectedSize);
+        keys = new long[capacity];
+        values = new Object[capacity];
+        slots = new int[tableSize(capacity)];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean containsKey(long key) {
+        return indexOf(key) >= 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        int i = indexOf(key);
+        return i < 0 ? null : (V) values[i];
+    }
+
+    /**
+     * The position of the key in the order that keys were added, which is also its position in {@link #values()}.
+     *
+     * @param key The key
+     * @return The position, or -1 if not present
+     */
+    public int indexOf(long key) {
+        return slots[findSlot(key)] - 1;
+    }
+
+    /**
+     * Add the value, replacing any existing value for this key. A replaced value keeps its original position.
+     *
+     * @param key   The key
+     * @param value The value
+     * @return The previous value, or null if there was none
+     */
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        int slot = findSlot(key);
+        int i = slots[slot] - 1;
+        if (i >= 0) {
+            V previous = (V) values[i];
+            values[i] = value;
+            return previous;
+        }
+        append(slot, key, value);
+        return null;
+    }
+
+    /**
+     * Add the value only if there is no existing value for this key.
+     *
+     * @param key   The key
+     * @param value The value
+     * @return True if the value was added
+     */
+    public boolean putIfAbsent(long key, V value) {
+        int slot = findSlot(key);
+        if (slots[slot] != 0) {
+            return false;
+        }
+        append(slot, key, value);
+        return true;
+    }
+
+    /**
+     * Get the value for this key, creating and adding it if not present.
+     *
+     * @param key     The key
+     * @param creator Creates the value
+     * @return The existing or new value
+     */
+    @SuppressWarnings("unchecked")
+    public V computeIfAbsent(long key, LongFunction<V> creator) {
+        int slot = findSlot(key);
+        int i = slots[slot] - 1;
+        if (i >= 0) {
+            return (V) values[i];
+        }
+        V value = creator.apply(key);
+        append(slot, key, value);
+        return value;
+    }
+
+    /**
+     * The values in the order their keys were first added. The list is a read only view that reflects later
+     * additions.
+     *
+     * @return The values
+     */
+    public List<V> values() {
+        return new AbstractList<V>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public V get(int index) {
+                if (index >= size) {
+                    throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+                }
+                return (V) values[index];
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    /**
+     * The keys in the order they were added.
+     *
+     * @return A copy of the keys
+     */
+    public long[] keys() {
+        return Arrays.copyOf(keys, size);
+    }
+
+    private void append(int slot, long key, V value) {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+        keys[size] = key;
+        values[size] = value;
+        size++;
+        if (size * 2 > slots.length) {
+            rehash(slots.length * 2);
+        } else {
+            slots[slot] = size;
+        }
+    }
+
+    /** Find the slot containing this key, or the empty slot where it should go */
+    private int findSlot(long key) {
+        int mask = slots.length - 1;
+        int slot = hash(key) & mask;
+        while (true) {
+            int i = slots[slot];
+            if (i == 0 || keys[i - 1] == key) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private void rehash(int tableSize) {
+        slots = new int[tableSize];
+        int mask = tableSize - 1;
+        for (int i = 0; i < size; i++) {
+            int slot = hash(keys[i]) & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = i + 1;
+        }
+    }
+
+    /** Power of two that keeps the load factor no greater than 0.5 */
+    private static int tableSize(int capacity) {
+        return Integer.highestOneBit(capacity * 2 - 1) << 1;
+    }
+
+    /** The MurmurHash3 finalizer, as IDs are often sequential */
+    private static int hash(long key) {
+        long h = key;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+
+    @Override
+    public String toString() {
+        return "LongObjectMap [" + size + " entries]";
+    }
+}
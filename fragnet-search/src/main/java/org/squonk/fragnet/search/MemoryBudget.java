@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2023 Informatics Matters Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squonk.fragnet.search;
+
+import org.squonk.fragnet.Utils;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Accounts for the (estimated) heap used by the results of a single search, so that a search that would use an
+ * excessive amount of memory can be stopped and return incomplete results rather than risking running out of memory,
+ * which would affect every search that is running.
+ * <p>
+ * The sizes are rough estimates of the retained size of the objects (assuming a 64 bit JVM with compressed references).
+ * They do not need to be accurate, just proportionate.
+ * <p>
+ * The default budget is defined by FRAGNET_REQUEST_MEMORY_MB (default 256). A value of 0 means no limit.
+ * <p>
+ * Not thread safe.
+ */
+public class MemoryBudget {
+
+    private static final String FRAGNET_REQUEST_MEMORY_MB = Utils.getConfiguration("FRAGNET_REQUEST_MEMORY_MB", "256");
+
+    public static final long DEFAULT_LIMIT = Long.parseLong(FRAGNET_REQUEST_MEMORY_MB) * 1024 * 1024;
+
+    /** Object header plus a field or two */
+    public static final int OBJECT_SIZE = 16;
+    /** An object reference in an array, plus its share of the array growth */
+    public static final int REFERENCE_SIZE = 8;
+    /** A map entry, including the slot in the table */
+    public static final int ENTRY_SIZE = 48;
+
+    private final long limit;
+    private long used;
+
+    /**
+     * @param limit The maximum number of bytes. 0 or less means no limit.
+     */
+    public MemoryBudget(long limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * Create a budget using the default limit.
+     */
+    public MemoryBudget() {
+        this(DEFAULT_LIMIT);
+    }
+
+    public long getLimit() {
+        return limit;
+    }
+
+    public long getUsed() {
+        return used;
+    }
+
+    /**
+     * Record that these bytes have been used.
+     *
+     * @param bytes The estimated number of bytes
+     * @return False if the budget is now exceeded
+     */
+    public boolean charge(long bytes) {
+        used += bytes;
+        return !isExceeded();
+    }
+
+    public boolean isExceeded() {
+        return limit > 0 && used > limit;
+    }
+
+    /**
+     * Estimate the size of a String
+     */
+    public static long sizeOf(String s) {
+        // assumes 2 bytes per char as Java 8 does not have compact strings
+        return s == null ? 0 : 40 + 2L * s.length();
+    }
+
+    /**
+     * Estimate the size of a property value, which can be a String, a boxed primitive, or a List or Map of these.
+     */
+    public static long sizeOf(Object value) {
+        if (value == null) {
+            return 0;
+        } else if (value instanceof String) {
+            return sizeOf((String) value);
+        } else if (value instanceof Collection) {
+            long size = 2 * OBJECT_SIZE;
+            for (Object o : (Collection<?>) value) {
+                size += REFERENCE_SIZE + sizeOf(o);
+            }
+            return size;
+        } else if (value instanceof Map) {
+            long size = 3 * OBJECT_SIZE;
+            for (Map.Entry<?, ?> e : ((Map<?, ?>) value).entrySet()) {
+                size += ENTRY_SIZE + sizeOf(e.getKey()) + sizeOf(e.getValue());
+            }
+            return size;
+        } else {
+            return OBJECT_SIZE;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "MemoryBudget [" + used + " of " + limit + " bytes]";
+    }
+}
@@ -0,0 +1,320 @@
+/*
+ * Copyright (c) 2023 Informatics Matters Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squonk.fragnet.search.model.v2;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+import org.squonk.fragnet.search.LongObjectMap;
+
+import java.util.*;
+
+/**
+ * Columnar form of a {@link NeighbourhoodGraph}, for clients that load the results into data frames.
+ * <p>
+ * The nodes are held as parallel arrays, one for each field and one for each property, with null for nodes that do not
+ * have that property. The edges are parallel arrays in which the parent and child are indexes into the node arrays,
+ * and the labels are indexes into a dictionary of the distinct labels. The members (and the prototype) of each group
+ * are also indexes into the node arrays. This avoids repeating the property names for every node and edge and the
+ * node data for every group member.
+ */
+@JsonInclude(JsonInclude.Include.NON_EMPTY)
+@JsonPropertyOrder({"apiVersion", "format", "query", "parameters", "shortMessage", "longMessage", "refmol", "resultAvailableAfter", "processingTime", "calculationTime", "pathCount", "nodeCount", "edgeCount", "groupCount", "groupMemberCount", "nodes", "edges", "groups"})
+public class ColumnarNeighbourhoodGraph {
+
+    public static final String FORMAT = "columnar";
+
+    private final NeighbourhoodGraph graph;
+    private final Nodes nodes;
+    private final Edges edges;
+    private final List<Group> groups;
+
+    public ColumnarNeighbourhoodGraph(NeighbourhoodGraph graph) {
+        this.graph = graph;
+        this.nodes = new Nodes(graph.nodes.values());
+        this.edges = new Edges(graph.edges.values(), graph.nodes);
+        Collection<NeighbourhoodGraph.Group> gs = graph.getGroups();
+        this.groups = new ArrayList<>(gs.size());
+        for (NeighbourhoodGraph.Group g : gs) {
+            groups.add(new Group(g, graph.nodes));
+        }
+    }
+
+    public String getApiVersion() {
+        return graph.getApiVersion();
+    }
+
+    public String getFormat() {
+        return FORMAT;
+    }
+
+    public String getQuery() {
+        return graph.getQuery();
+    }
+
+    public Map<String, Object> getParameters() {
+        return graph.getParameters();
+    }
+
+    public String getShortMessage() {
+        return graph.getShortMessage();
+    }
+
+    public String getLongMessage() {
+        return graph.getLongMessage();
+    }
+
+    public String getRefmol() {
+        return graph.getRefmol();
+    }
+
+    public Long getResultAvailableAfter() {
+        return graph.getResultAvailableAfter();
+    }
+
+    public Long getProcessingTime() {
+        return graph.getProcessingTime();
+    }
+
+    public Long getCalculationTime() {
+        return graph.getCalculationTime();
+    }
+
+    public int getPathCount() {
+        return graph.getPathCount();
+    }
+
+    public int getNodeCount() {
+        return graph.getNodeCount();
+    }
+
+    public int getEdgeCount() {
+        return graph.getEdgeCount();
+    }
+
+    public int getGroupCount() {
+        return groups.size();
+    }
+
+    public int getGroupMemberCount() {
+        return graph.getGroupMemberCount();
+    }
+
+    public Nodes getNodes() {
+        return nodes;
+    }
+
+    public Edges getEdges() {
+        return edges;
+    }
+
+    public List<Group> getGroups() {
+        return groups;
+    }
+
+    /**
+     * Look up the index of the value in a dictionary of the distinct values, adding it if not already present.
+     */
+    private static int lookup(Map<String, Integer> dictionary, String value) {
+        Integer index = dictionary.get(value);
+        if (index == null) {
+            index = dictionary.size();
+            dictionary.put(value, index);
+        }
+        return index;
+    }
+
+    /**
+     * The values of the dictionary ordered by their index.
+     */
+    private static String[] values(Map<String, Integer> dictionary) {
+        String[] values = new String[dictionary.size()];
+        dictionary.forEach((value, index) -> values[index] = value);
+        return values;
+    }
+
+    @JsonInclude(JsonInclude.Include.NON_EMPTY)
+    @JsonPropertyOrder({"id", "smiles", "molType", "labels", "labelValues", "props"})
+    public static class Nodes {
+
+        private final long[] id;
+        private final String[] smiles;
+        private final MoleculeNode.MoleculeType[] molType;
+        private final int[][] labels;
+        private final String[] labelValues;
+        private final Map<String, Object[]> props = new LinkedHashMap<>();
+
+        Nodes(List<MoleculeNode> nodes) {
+            int size = nodes.size();
+            id = new long[size];
+            smiles = new String[size];
+            molType = new MoleculeNode.MoleculeType[size];
+            labels = new int[size][];
+            Map<String, Integer> labelDictionary = new HashMap<>();
+            for (int i = 0; i < size; i++) {
+                MoleculeNode node = nodes.get(i);
+                id[i] = node.getId();
+                smiles[i] = node.getSmiles();
+                molType[i] = node.getMolType();
+                List<String> nodeLabels = node.getLabels();
+                labels[i] = new int[nodeLabels.size()];
+                for (int j = 0; j < labels[i].length; j++) {
+                    labels[i][j] = lookup(labelDictionary, nodeLabels.get(j));
+                }
+                for (Map.Entry<String, Object> e : node.getProps().entrySet()) {
+                    props.computeIfAbsent(e.getKey(), (k) -> new Object[size])[i] = e.getValue();
+                }
+            }
+            labelValues = values(labelDictionary);
+        }
+
+        public long[] getId() {
+            return id;
+        }
+
+        public String[] getSmiles() {
+            return smiles;
+        }
+
+        public MoleculeNode.MoleculeType[] getMolType() {
+            return molType;
+        }
+
+        /** For each node the indexes of its labels in {@link #getLabelValues()} */
+        public int[][] getLabels() {
+            return labels;
+        }
+
+        public String[] getLabelValues() {
+            return labelValues;
+        }
+
+        /** The values of each property, keyed by the property name */
+        public Map<String, Object[]> getProps() {
+            return props;
+        }
+    }
+
+    @JsonInclude(JsonInclude.Include.NON_EMPTY)
+    @JsonPropertyOrder({"id", "parent", "child", "label", "labelValues"})
+    public static class Edges {
+
+        private final long[] id;
+        private final int[] parent;
+        private final int[] child;
+        private final int[] label;
+        private final String[] labelValues;
+
+        Edges(List<MoleculeEdge> edges, LongObjectMap<MoleculeNode> nodes) {
+            int size = edges.size();
+            id = new long[size];
+            parent = new int[size];
+            child = new int[size];
+            label = new int[size];
+            Map<String, Integer> labelDictionary = new HashMap<>();
+            for (int i = 0; i < size; i++) {
+                MoleculeEdge edge = edges.get(i);
+                id[i] = edge.getId();
+                parent[i] = nodes.indexOf(edge.getParentId());
+                child[i] = nodes.indexOf(edge.getChildId());
+                label[i] = lookup(labelDictionary, edge.getLabel());
+            }
+            labelValues = values(labelDictionary);
+        }
+
+        public long[] getId() {
+            return id;
+        }
+
+        /** The index of the parent node of each edge */
+        public int[] getParent() {
+            return parent;
+        }
+
+        /** The index of the child node of each edge */
+        public int[] getChild() {
+            return child;
+        }
+
+        /** The index of the label of each edge in {@link #getLabelValues()} */
+        public int[] getLabel() {
+            return label;
+        }
+
+        public String[] getLabelValues() {
+            return labelValues;
+        }
+    }
+
+    @JsonInclude(JsonInclude.Include.NON_EMPTY)
+    @JsonPropertyOrder({"key", "classification", "prototype", "refmolAtomsMissing", "memberCount", "members", "pathLengths"})
+    public static class Group {
+
+        private final String key;
+        private final GroupingType classification;
+        private final Integer prototype;
+        private final Integer refmolAtomsMissing;
+        private final int memberCount;
+        private final int[] members;
+        private final String[] pathLengths;
+
+        Group(NeighbourhoodGraph.Group group, LongObjectMap<MoleculeNode> nodes) {
+            key = group.getKey();
+            classification = group.getClassification();
+            refmolAtomsMissing = group.getRefmolAtomsMissing();
+            memberCount = group.getMemberCount();
+            List<NeighbourhoodGraph.GroupMember> gms = group.getMembers();
+            members = new int[gms.size()];
+            pathLengths = new String[gms.size()];
+            for (int i = 0; i < members.length; i++) {
+                NeighbourhoodGraph.GroupMember member = gms.get(i);
+                members[i] = nodes.indexOf(member.getId());
+                pathLengths[i] = member.getPathLengths();
+            }
+            prototype = members.length == 0 ? null : members[0];
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public GroupingType getClassification() {
+            return classification;
+        }
+
+        /** The index of the node that is the prototype for the group */
+        public Integer getPrototype() {
+            return prototype;
+        }
+
+        public Integer getRefmolAtomsMissing() {
+            return refmolAtomsMissing;
+        }
+
+        public int getMemberCount() {
+            return memberCount;
+        }
+
+        /** The indexes of the member nodes */
+        public int[] getMembers() {
+            return members;
+        }
+
+        /** The lengths of the paths to each member */
+        public String[] getPathLengths() {
+            return pathLengths;
+        }
+    }
+}
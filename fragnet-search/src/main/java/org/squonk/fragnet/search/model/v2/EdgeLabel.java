@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2023 Informatics Matters Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squonk.fragnet.search.model.v2;
+
+import org.squonk.fragnet.search.FragmentUtils;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * The parsed form of the label of a FRAG edge, which is of the form
+ * {@code FG|C[Xe]|C[100Xe]|RING|Oc1ccc(-c2ccccc2)cc1[Xe]|OC1CCC(C2CCCCC2)CC1[100Xe]}.
+ * Element 0 is the type of the part that is removed (FG or RING), 1 and 2 are its SMILES, 3 is the type of the part
+ * that remains and 4 and 5 are its SMILES.
+ * <p>
+ * The label is split once when the edge is created and only the parts are retained. The same synthons occur in the
+ * labels of many edges so the parts are de-duplicated through a shared pool, so that each distinct SMILES is only
+ * retained once. The pool only holds weak references so a SMILES is dropped from it once no label uses it.
+ */
+public class EdgeLabel {
+
+    private static final Map<String, WeakReference<String>> POOL = new WeakHashMap<>();
+
+    private final String[] parts;
+    /** The number of empty parts at the end of the label, which are not included in the parts */
+    private final int trailingEmpty;
+    private int hash;
+
+    private EdgeLabel(String[] parts, int trailingEmpty) {
+        this.parts = parts;
+        this.trailingEmpty = trailingEmpty;
+    }
+
+    /**
+     * Parse the label.
+     *
+     * @param label The label of the edge
+     * @return The parsed label
+     */
+    public static EdgeLabel parse(String label) {
+        String[] parts = FragmentUtils.splitLabel(label);
+        int separators = 0;
+        for (int i = 0; i < label.length(); i++) {
+            if (label.charAt(i) == '|') {
+                separators++;
+            }
+        }
+        for (int i = 0; i < parts.length; i++) {
+            parts[i] = intern(parts[i]);
+        }
+        return new EdgeLabel(parts, separators - parts.length + 1);
+    }
+
+    private static String intern(String s) {
+        synchronized (POOL) {
+            WeakReference<String> ref = POOL.get(s);
+            String existing = ref == null ? null : ref.get();
+            if (existing != null) {
+                return existing;
+            }
+            POOL.put(s, new WeakReference<>(s));
+            return s;
+        }
+    }
+
+    /** The label as it is in the database. This is generated from the parts each time it is called. */
+    public String getLabel() {
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < parts.length; i++) {
+            if (i > 0) {
+                b.append('|');
+            }
+            b.append(parts[i]);
+        }
+        for (int i = 0; i < trailingEmpty; i++) {
+            b.append('|');
+        }
+        return b.toString();
+    }
+
+    /** The elements of the label. The array must not be modified. */
+    public String[] getParts() {
+        return parts;
+    }
+
+    public String getPart(int index) {
+        return parts[index];
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof EdgeLabel)) {
+            return false;
+        }
+        EdgeLabel other = (EdgeLabel) o;
+        return trailingEmpty == other.trailingEmpty && Arrays.equals(parts, other.parts);
+    }
+
+    @Override
+    public int hashCode() {
+        int h = hash;
+        if (h == 0) {
+            h = 31 * Arrays.hashCode(parts) + trailingEmpty;
+            hash = h;
+        }
+        return h;
+    }
+
+    @Override
+    public String toString() {
+        return getLabel();
+    }
+}
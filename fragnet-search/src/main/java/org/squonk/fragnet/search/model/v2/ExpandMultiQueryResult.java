@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2023 Informatics Matters Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squonk.fragnet.search.model.v2;
+
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+
+import java.util.Collection;
+
+/** The results of expanding one of the queries of a streamed ExpandMulti search.
+ * This class is designed to be serialized to JSON, one line per query.
+ *
+ */
+@JsonPropertyOrder({"type", "id", "smiles", "hitCount", "members"})
+public class ExpandMultiQueryResult {
+
+    public static final String TYPE = "query";
+
+    private final String id;
+    private final String smiles;
+    private final Collection<ExpansionResults.Member> members;
+
+    public ExpandMultiQueryResult(String id, String smiles, Collection<ExpansionResults.Member> members) {
+        this.id = id;
+        this.smiles = smiles;
+        this.members = members;
+    }
+
+    public String getType() {
+        return TYPE;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getSmiles() {
+        return smiles;
+    }
+
+    public int getHitCount() {
+        return members.size();
+    }
+
+    public Collection<ExpansionResults.Member> getMembers() {
+        return members;
+    }
+}
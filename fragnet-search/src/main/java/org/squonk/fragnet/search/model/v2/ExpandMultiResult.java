@@ -26,7 +26,7 @@ import java.util.Map;
  * This class is designed to be serialized to JSON.
  *
  */
-@JsonPropertyOrder({"executionDate", "executionTimeMillis", "resultCount", "parameters", "queries", "hitCounts", "results"})
+@JsonPropertyOrder({"executionDate", "executionTimeMillis", "resultCount", "queryCount", "uniqueQueryCount", "parameters", "queries", "hitCounts", "results"})
 public class ExpandMultiResult {
 
     private final ConvertedSmilesMols queries;
@@ -34,6 +34,7 @@ public class ExpandMultiResult {
     private List<ExpandedHit> results;
     private final Map<String,Integer> hitCounts = new LinkedHashMap<>();
     private long executionTimeMillis;
+    private int uniqueQueryCount;
     private String executionDate = Utils.getCurrentTime();
 
     public ExpandMultiResult(ConvertedSmilesMols queries, Map<String,Object> parameters) {
@@ -65,6 +66,22 @@ public class ExpandMultiResult {
         return results.size();
     }
 
+    /** The number of query molecules */
+    public int getQueryCount() {
+        return queries.getMolecules().size();
+    }
+
+    /** The number of different query molecules once they were standardized, which is the number of searches that
+     * were run. Molecules that standardize to the same SMILES share the results of the search.
+     */
+    public int getUniqueQueryCount() {
+        return uniqueQueryCount;
+    }
+
+    public void setUniqueQueryCount(int uniqueQueryCount) {
+        this.uniqueQueryCount = uniqueQueryCount;
+    }
+
     public Map<String, Integer> getHitCounts() {
         return hitCounts;
     }
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2023 Informatics Matters Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squonk.fragnet.search.model.v2;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+import org.squonk.fragnet.Utils;
+
+import java.util.Map;
+
+/** The last record of a streamed ExpandMulti search, summarising the search.
+ * This class is designed to be serialized to JSON.
+ *
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+@JsonPropertyOrder({"type", "executionDate", "executionTimeMillis", "parameters", "queryCount", "uniqueQueryCount", "hitCount", "error"})
+public class ExpandMultiSummary {
+
+    public static final String TYPE = "summary";
+
+    private final Map<String,Object> parameters;
+    private final String executionDate = Utils.getCurrentTime();
+    private long executionTimeMillis;
+    private int queryCount;
+    private int uniqueQueryCount;
+    private int hitCount;
+    private String error;
+
+    public ExpandMultiSummary(Map<String,Object> parameters) {
+        this.parameters = parameters;
+    }
+
+    public String getType() {
+        return TYPE;
+    }
+
+    public String getExecutionDate() {
+        return executionDate;
+    }
+
+    public long getExecutionTimeMillis() {
+        return executionTimeMillis;
+    }
+
+    public void setExecutionTimeMillis(long executionTimeMillis) {
+        this.executionTimeMillis = executionTimeMillis;
+    }
+
+    public Map<String, Object> getParameters() {
+        return parameters;
+    }
+
+    /** The number of queries that were expanded */
+    public int getQueryCount() {
+        return queryCount;
+    }
+
+    /** The number of searches that were run. Query molecules in the same chunk that standardize to the same SMILES
+     * share the results of a search.
+     */
+    public int getUniqueQueryCount() {
+        return uniqueQueryCount;
+    }
+
+    public void addUniqueQueryCount(int count) {
+        uniqueQueryCount += count;
+    }
+
+    /** The total number of hits of all the queries. A molecule that is a hit for several queries is counted for each. */
+    public int getHitCount() {
+        return hitCount;
+    }
+
+    public void addQueryResult(ExpandMultiQueryResult result) {
+        queryCount++;
+        hitCount += result.getHitCount();
+    }
+
+    /** Set if the search failed part way through, in which case the query records are incomplete */
+    public String getError() {
+        return error;
+    }
+
+    public void setError(String error) {
+        this.error = error;
+    }
+}
@@ -18,10 +18,12 @@ package org.squonk.fragnet.search.model.v2;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+import org.neo4j.driver.Value;
 import org.neo4j.driver.types.Node;
 import org.neo4j.driver.types.Path;
 import org.squonk.fragnet.Constants;
 import org.squonk.fragnet.search.FragmentUtils;
+import org.squonk.fragnet.search.MemoryBudget;
 
 import java.util.*;
 import java.util.logging.Logger;
@@ -34,6 +36,11 @@ import java.util.logging.Logger;
 public class ExpansionResults implements Constants {
 
     private static final Logger LOG = Logger.getLogger(ExpansionResults.class.getName());
+    private static final String CMPD_IDS = "cmpd_ids";
+    /** Estimated size of a member excluding its SMILES and properties, including its map entry */
+    private static final int MEMBER_SIZE = 5 * MemoryBudget.OBJECT_SIZE + MemoryBudget.ENTRY_SIZE;
+    private static final Set<String> HIDDEN_MEMBER_PROPERTIES = Collections.unmodifiableSet(
+            new HashSet<>(Arrays.asList("smiles", "osmiles", CMPD_IDS)));
 
 
     /**
@@ -48,6 +55,8 @@ public class ExpansionResults implements Constants {
     private String shortMessage;
     private String longMessage;
     private Map<String, Member> members = new LinkedHashMap<>();
+    /** Accounts for the memory used as the results are built. Unlimited unless one is set. */
+    private MemoryBudget memoryBudget = new MemoryBudget(0);
 
     public ExpansionResults(String refmol) {
         this.refmol = refmol;
@@ -121,6 +130,16 @@ public class ExpansionResults implements Constants {
         return members.size();
     }
 
+    /**
+     * Set the budget that is charged with the estimated size of the members as they are added.
+     * Checking whether it is exceeded is the responsibility of the caller.
+     *
+     * @param memoryBudget The budget
+     */
+    public void setMemoryBudget(MemoryBudget memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+
     /**
      * Add a path to the members.
      *
@@ -131,19 +150,24 @@ public class ExpansionResults implements Constants {
         Node end = path.end();
 
         String smiles = FragmentUtils.getSmiles(end);
-        Map<String, Object> props = new LinkedHashMap<>(end.asMap());
-        props.remove("smiles");
-        props.remove("osmiles");
-        List<String> ids = (List) props.remove("cmpd_ids");
-
         Member member = members.get(smiles);
         if (member == null) {
-            member = new Member(smiles, props);
+            // the compound IDs are held separately in the member, so they are left out rather than held (and
+            // charged for) twice, and the other properties held separately are hidden
+            Map<String, Object> props = new LinkedHashMap<>();
+            for (String key : end.keys()) {
+                if (!CMPD_IDS.equals(key)) {
+                    props.put(key, end.get(key).asObject());
+                }
+            }
+            member = new Member(smiles, new NodeProperties(props, HIDDEN_MEMBER_PROPERTIES));
             members.put(smiles, member);
+            memoryBudget.charge(MEMBER_SIZE + MemoryBudget.sizeOf(smiles) + MemoryBudget.sizeOf(props));
         }
 
-        if (ids != null) {
-            member.addCompoundIds(ids);
+        Value ids = end.get(CMPD_IDS);
+        if (!ids.isNull()) {
+            member.addCompoundIds(ids.asList(Value::asString));
         }
     }
 
@@ -172,7 +196,11 @@ public class ExpansionResults implements Constants {
         }
 
         protected void addCompoundIds(List<String> ids) {
-            cmpdids.addAll(ids);
+            for (String id : ids) {
+                if (cmpdids.add(id)) {
+                    memoryBudget.charge(MemoryBudget.ENTRY_SIZE + MemoryBudget.sizeOf(id));
+                }
+            }
         }
     }
 }
@@ -15,21 +15,27 @@
  */
 package org.squonk.fragnet.search.model.v2;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.annotation.JsonPropertyOrder;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import org.RDKit.ExplicitBitVect;
 import org.RDKit.RWMol;
 import org.RDKit.SparseIntVectu32;
 import org.neo4j.driver.types.Node;
 import org.neo4j.driver.types.Path;
 import org.neo4j.driver.types.Relationship;
+import org.squonk.fragnet.Utils;
 import org.squonk.fragnet.chem.Calculator;
+import org.squonk.fragnet.chem.ChemistryExecutor;
+import org.squonk.fragnet.chem.NativeArena;
 import org.squonk.fragnet.search.FragmentUtils;
+import org.squonk.fragnet.search.LongObjectMap;
+import org.squonk.fragnet.search.MemoryBudget;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Logger;
@@ -38,16 +44,23 @@ import java.util.logging.Logger;
  * Represents the a fragment graph, a directed acyclic graph of molecules and their fragments that is the result
  * of a query against the fragment network.
  * The key parts of this are the nodes (molecules and fragments) and the edges (connections between the nodes).
+ * <p>
+ * The RDKit molecules that are created when generating information about the graph hold native memory. Close the graph
+ * once it is no longer needed (e.g. once the response has been written) to free that memory.
  */
 @JsonInclude(JsonInclude.Include.NON_EMPTY)
 @JsonPropertyOrder({"apiVersion","query","parameters","shortMessage", "longMessage", "resultAvailableAfter","processingTime","calculationTime","nodeCount","edgeCount","nodes","edges"})
-public class FragmentGraph {
+public class FragmentGraph implements AutoCloseable {
 
     private static final Logger LOG = Logger.getLogger(FragmentGraph.class.getName());
     private static final String API_VERSION = "v2";
+    /** Estimated size of a node excluding its SMILES, labels and properties, including its slot in the map */
+    private static final int NODE_SIZE = 5 * MemoryBudget.OBJECT_SIZE + 3 * MemoryBudget.REFERENCE_SIZE;
+    /** Estimated size of an edge excluding its label, including its slot in the map */
+    private static final int EDGE_SIZE = 2 * MemoryBudget.OBJECT_SIZE + 3 * MemoryBudget.REFERENCE_SIZE;
 
-    protected final Map<Long, MoleculeNode> nodes = new LinkedHashMap<>();
-    protected final Map<Long, MoleculeEdge> edges = new LinkedHashMap<>();
+    protected final LongObjectMap<MoleculeNode> nodes = new LongObjectMap<>();
+    protected final LongObjectMap<MoleculeEdge> edges = new LongObjectMap<>();
     private String query;
     private final Map<String, Object> parameters = new LinkedHashMap<>();
     private Long resultAvailableAfter;
@@ -55,11 +68,19 @@ public class FragmentGraph {
     private Long calculationTime;
     private String shortMessage;
     private String longMessage;
+    /** Accounts for the memory used as the graph is built. Unlimited unless one is set. */
+    protected MemoryBudget memoryBudget = new MemoryBudget(0);
 
-    /** Cache of molecules
-     *
+    /** Cache of molecules, keyed by SMILES. Molecules are fetched concurrently when generating group info and
+     * calculating properties so this must be thread safe.
      */
-    protected Map<String,RWMol> molecules = new HashMap<>();
+    protected final Map<String,RWMol> molecules = new ConcurrentHashMap<>();
+
+    /** The RDKit objects created for this graph, which are deleted when the graph is closed */
+    protected final NativeArena arena = new NativeArena();
+
+    /** Runs the chemistry work for the graph in parallel */
+    protected ChemistryExecutor chemistryExecutor = ChemistryExecutor.getDefault();
 
 
     public FragmentGraph() {
@@ -158,13 +179,53 @@ public class FragmentGraph {
         this.longMessage = longMessage;
     }
 
+    /**
+     * Set the budget that is charged with the estimated size of the nodes and edges as they are added.
+     * Checking whether it is exceeded is the responsibility of the caller.
+     *
+     * @param memoryBudget The budget
+     */
+    public void setMemoryBudget(MemoryBudget memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * The estimated size of the graph, as charged to the memory budget as it was built.
+     *
+     * @return The estimated number of bytes
+     */
+    @JsonIgnore
+    public long getEstimatedSize() {
+        return memoryBudget.getUsed();
+    }
+
+    public void setChemistryExecutor(ChemistryExecutor chemistryExecutor) {
+        this.chemistryExecutor = chemistryExecutor;
+    }
+
+    /**
+     * Get the molecule for this SMILES, parsing it the first time it is needed. The SMILES is parsed outside the map
+     * so that threads needing other molecules are not held up while it is parsed. If threads parse the same SMILES at
+     * the same time the first molecule to be added is used and the others are deleted.
+     *
+     * @param smiles The SMILES
+     * @return The molecule, or null if the SMILES could not be parsed
+     */
     protected RWMol fetchMolecule(String smiles) {
         RWMol mol = molecules.get(smiles);
+        if (mol != null) {
+            return mol;
+        }
+        mol = RWMol.MolFromSmiles(smiles);
         if (mol == null) {
-            mol = RWMol.MolFromSmiles(smiles);
-            molecules.put(smiles, mol);
+            return null;
+        }
+        RWMol existing = molecules.putIfAbsent(smiles, mol);
+        if (existing != null) {
+            mol.delete();
+            return existing;
         }
-        return mol;
+        return arena.add(mol);
     }
 
     public void calculate(String refmolSmiles, Calculator.Calculation... calcs) {
@@ -174,7 +235,7 @@ public class FragmentGraph {
         AtomicReference<SparseIntVectu32> morgan12 = new AtomicReference<>();
         AtomicReference<SparseIntVectu32> morgan13 = new AtomicReference<>();
         AtomicInteger count = new AtomicInteger(0);
-        nodes.values().parallelStream().forEach((n) -> {
+        chemistryExecutor.forEach(nodes.values(), (n) -> {
             count.incrementAndGet();
             String smiles = n.getSmiles();
             RWMol mol = fetchMolecule(smiles);
@@ -213,29 +274,42 @@ public class FragmentGraph {
 
                     case SIM_RDKIT_TANIMOTO:
                         if (rdkit1.get() == null) {
-                            rdkit1.set(Calculator.calcRDKitFingerprint(refmol));
+                            rdkit1.set(arena.add(Calculator.calcRDKitFingerprint(refmol)));
                         }
+                        // the fingerprint is only needed for this comparison so is deleted straight away
                         ExplicitBitVect rdkit2 = Calculator.calcRDKitFingerprint(mol);
-                        Float rsim = Calculator.calcTanimotoSimilarity(rdkit1.get(), rdkit2);
-                        n.addProp(calc.propname, rsim);
+                        try {
+                            Float rsim = Calculator.calcTanimotoSimilarity(rdkit1.get(), rdkit2);
+                            n.addProp(calc.propname, rsim);
+                        } finally {
+                            rdkit2.delete();
+                        }
                         break;
 
                     case SIM_MORGAN2_TANIMOTO:
                         if (morgan12.get() == null) {
-                            morgan12.set(Calculator.calcMorganFingerprint(refmol, 2));
+                            morgan12.set(arena.add(Calculator.calcMorganFingerprint(refmol, 2)));
                         }
                         SparseIntVectu32 morgan22 = Calculator.calcMorganFingerprint(mol, 2);
-                        Float sim2 = Calculator.calcTanimotoSimilarity(morgan12.get(), morgan22);
-                        n.addProp(calc.propname, sim2);
+                        try {
+                            Float sim2 = Calculator.calcTanimotoSimilarity(morgan12.get(), morgan22);
+                            n.addProp(calc.propname, sim2);
+                        } finally {
+                            morgan22.delete();
+                        }
                         break;
 
                     case SIM_MORGAN3_TANIMOTO:
                         if (morgan13.get() == null) {
-                            morgan13.set(Calculator.calcMorganFingerprint(refmol, 3));
+                            morgan13.set(arena.add(Calculator.calcMorganFingerprint(refmol, 3)));
                         }
                         SparseIntVectu32 morgan23 = Calculator.calcMorganFingerprint(mol, 3);
-                        Float sim3 = Calculator.calcTanimotoSimilarity(morgan13.get(), morgan23);
-                        n.addProp(calc.propname, sim3);
+                        try {
+                            Float sim3 = Calculator.calcTanimotoSimilarity(morgan13.get(), morgan23);
+                            n.addProp(calc.propname, sim3);
+                        } finally {
+                            morgan23.delete();
+                        }
                         break;
                 }
             }
@@ -258,9 +332,14 @@ public class FragmentGraph {
      */
     public void add(Path path) {
         path.forEach((seg) -> {
+            Relationship rel = seg.relationship();
+            if (edges.containsKey(rel.id())) {
+                // paths share edges so this is common. The nodes of the edge will also already be present.
+                LOG.finer("Edge " + rel.id() + " already present");
+                return;
+            }
             Node start = seg.start();
             Node end = seg.end();
-            Relationship rel = seg.relationship();
             Node parent = null;
             Node child = null;
             if (start.id() == rel.startNodeId()) {
@@ -276,19 +355,27 @@ public class FragmentGraph {
             if (parent == null || child == null) {
                 LOG.warning("Couldn't find parent or child");
             } else {
-                List<String> parentLabels = new ArrayList<>();
-                parent.labels().forEach((l) -> parentLabels.add(l));
-                List<String> childLabels = new ArrayList<>();
-                child.labels().forEach((l) -> childLabels.add(l));
-                MoleculeNode parentNode = generateMoleculeNode(parent);
-                MoleculeNode childNode = generateMoleculeNode(child);
-                MoleculeEdge edge = new MoleculeEdge(rel.id(), parentNode.getId(), childNode.getId(), FragmentUtils.getLabel(rel));
+                // nodes are shared by many paths so only generate those not already present
+                Node p = parent;
+                Node c = child;
+                MoleculeNode parentNode = nodes.computeIfAbsent(p.id(), (id) -> createMoleculeNode(p));
+                MoleculeNode childNode = nodes.computeIfAbsent(c.id(), (id) -> createMoleculeNode(c));
+                String label = FragmentUtils.getLabel(rel);
+                MoleculeEdge edge = new MoleculeEdge(rel.id(), parentNode.getId(), childNode.getId(), label);
+                memoryBudget.charge(EDGE_SIZE + MemoryBudget.sizeOf(label));
                 add(parentNode, childNode, edge);
             }
 
         });
     }
 
+    private MoleculeNode createMoleculeNode(Node node) {
+        MoleculeNode molNode = generateMoleculeNode(node);
+        memoryBudget.charge(NODE_SIZE + MemoryBudget.sizeOf(molNode.getSmiles()) +
+                MemoryBudget.sizeOf(molNode.getLabels()) + MemoryBudget.sizeOf(molNode.getProps()));
+        return molNode;
+    }
+
     public static MoleculeNode generateMoleculeNode(Node node) {
         List<String> labels = new ArrayList<>();
         node.labels().forEach((l) -> labels.add(l));
@@ -299,10 +386,8 @@ public class FragmentGraph {
             type = MoleculeNode.MoleculeType.NET_FRAG;
         }
 
-        Map<String, Object> props = new LinkedHashMap<>(node.asMap());
-        props.remove("smiles");
-
-        return new MoleculeNode(node.id(), FragmentUtils.getSmiles(node), type, labels, props);
+        // the properties are not copied. The smiles property is hidden by the MoleculeNode.
+        return new MoleculeNode(node.id(), FragmentUtils.getSmiles(node), type, labels, node.asMap());
     }
 
     public void add(MoleculeNode parent, MoleculeNode child, MoleculeEdge edge) {
@@ -316,21 +401,18 @@ public class FragmentGraph {
                     + " but child node was " + child.getId());
         }
 
-        if (!nodes.containsKey(parent.getId())) {
-            nodes.put(parent.getId(), parent);
+        if (nodes.putIfAbsent(parent.getId(), parent)) {
             LOG.fine("Node " + parent.getSmiles() + " added");
         } else {
             LOG.fine("Node " + parent.getSmiles() + " already present");
         }
-        if (!nodes.containsKey(child.getId())) {
-            nodes.put(child.getId(), child);
+        if (nodes.putIfAbsent(child.getId(), child)) {
             LOG.fine("Node " + child.getSmiles() + " added");
         } else {
             LOG.fine("Node " + child.getSmiles() + " already present");
         }
-        Long id = edge.getId();
-        if (!edges.containsKey(id)) {
-            edges.put(id, edge);
+        long id = edge.getId();
+        if (edges.putIfAbsent(id, edge)) {
             LOG.fine("Edge " + id + " added");
         } else {
             LOG.fine("Edge " + id + " already present");
@@ -338,6 +420,16 @@ public class FragmentGraph {
     }
 
 
+    /**
+     * Delete the RDKit objects that were created for this graph. The graph can still be serialized but no further
+     * information can be generated.
+     */
+    @Override
+    public void close() {
+        molecules.clear();
+        arena.close();
+    }
+
     @Override
     public String toString() {
         StringBuilder b = new StringBuilder("FragmentGraph [");
@@ -346,7 +438,6 @@ public class FragmentGraph {
     }
 
     public String toJson() throws IOException {
-        ObjectMapper mapper = new ObjectMapper();
-        return mapper.writeValueAsString(this);
+        return Utils.getObjectMapper().writeValueAsString(this);
     }
 }
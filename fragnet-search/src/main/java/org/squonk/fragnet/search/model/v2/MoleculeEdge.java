@@ -16,6 +16,7 @@
 package org.squonk.fragnet.search.model.v2;
 
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
@@ -39,7 +40,7 @@ public class MoleculeEdge {
     private final long id;
     private final long parentId;
     private final long childId;
-    private final String label;
+    private final EdgeLabel label;
 
     public MoleculeEdge(
             @JsonProperty("id") long id,
@@ -49,7 +50,7 @@ public class MoleculeEdge {
         this.id = id;
         this.parentId = parentId;
         this.childId = childId;
-        this.label = label;
+        this.label = label == null ? null : EdgeLabel.parse(label);
     }
 
     public long getId() {
@@ -65,6 +66,12 @@ public class MoleculeEdge {
     }
 
     public String getLabel() {
+        return label == null ? null : label.getLabel();
+    }
+
+    /** The label, parsed into its parts, or null if there is no label */
+    @JsonIgnore
+    public EdgeLabel getEdgeLabel() {
         return label;
     }
 
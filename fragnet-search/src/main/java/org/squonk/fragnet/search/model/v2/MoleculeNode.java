@@ -47,7 +47,7 @@ public class MoleculeNode {
     private final long id;
     private final String smiles;
     private final MoleculeType molType;
-    private final Map<String,Object> props = new LinkedHashMap<>();
+    private final Map<String,Object> props;
     private final List<String> labels = new ArrayList<>();
     private final Map<String,String> paths = new HashMap<>();
 
@@ -64,9 +64,7 @@ public class MoleculeNode {
         if (labels != null && !labels.isEmpty()) {
             this.labels.addAll(labels);
         }
-        if (props != null && !props.isEmpty()) {
-            this.props.putAll(props);
-        }
+        this.props = new NodeProperties(props, NodeProperties.HIDDEN_NODE_PROPERTIES);
 
     }
 
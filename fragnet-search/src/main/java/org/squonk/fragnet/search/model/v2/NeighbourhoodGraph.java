@@ -15,18 +15,20 @@
  */
 package org.squonk.fragnet.search.model.v2;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonPropertyOrder;
-import org.RDKit.MCSResult;
 import org.RDKit.RDKFuncs;
-import org.RDKit.ROMol_Vect;
 import org.RDKit.RWMol;
 import org.neo4j.driver.types.Node;
 import org.neo4j.driver.types.Path;
 import org.neo4j.driver.types.Relationship;
 import org.squonk.fragnet.Constants;
+import org.squonk.fragnet.chem.MCSCalculator;
 import org.squonk.fragnet.chem.TransformClassifierUtils;
 import org.squonk.fragnet.search.FragmentUtils;
+import org.squonk.fragnet.search.LongObjectMap;
+import org.squonk.fragnet.search.MemoryBudget;
 
 import java.util.*;
 import java.util.logging.Level;
@@ -54,6 +56,8 @@ public class NeighbourhoodGraph extends FragmentGraph implements Constants {
     private final Integer groupLimit;
     private Grouping grouping = new Grouping();
     private int pathCount;
+    private MCSCalculator mcsCalculator = MCSCalculator.getDefault();
+    private boolean approximateMCS = false;
 
     public NeighbourhoodGraph(String refmol, Integer groupLimit) {
         this.refmol = refmol;
@@ -72,6 +76,21 @@ public class NeighbourhoodGraph extends FragmentGraph implements Constants {
         this.pathCount = pathCount;
     }
 
+    public void setMCSCalculator(MCSCalculator mcsCalculator) {
+        this.mcsCalculator = mcsCalculator;
+    }
+
+    /**
+     * Whether to approximate the number of refmol atoms missing from each group rather than generating the MCS.
+     * The approximation is the number of heavy atoms in the refmol less those in the smallest member, which is the
+     * least number that could be missing.
+     *
+     * @param approximateMCS Use the approximation
+     */
+    public void setApproximateMCS(boolean approximateMCS) {
+        this.approximateMCS = approximateMCS;
+    }
+
     public Collection<Group> getGroups() {
         return grouping.getGroups();
     }
@@ -80,6 +99,14 @@ public class NeighbourhoodGraph extends FragmentGraph implements Constants {
         return getGroups().size();
     }
 
+    /**
+     * @param index The index of the group in {@link #getGroups()}
+     * @return The group, or null if there is no group with that index
+     */
+    public Group getGroup(int index) {
+        return grouping.getGroup(index);
+    }
+
     public int getGroupMemberCount() {
         return grouping.size();
     }
@@ -109,7 +136,6 @@ public class NeighbourhoodGraph extends FragmentGraph implements Constants {
         String msg = path.length() + " " + start.getSmiles() + " -> " + end.getSmiles();
 
         Relationship rel;
-        String label;
         String[] parts;
         switch (path.length()) {
             case 0:
@@ -119,8 +145,9 @@ public class NeighbourhoodGraph extends FragmentGraph implements Constants {
             case 1:
                 LOG.finer("Path length 1");
                 rel = path.relationships().iterator().next();
-                label = FragmentUtils.getLabel(rel);
-                LOG.fine(msg + "\nLabel: " + label);
+                if (LOG.isLoggable(Level.FINE)) {
+                    LOG.fine(msg + "\nLabel: " + FragmentUtils.getLabel(rel));
+                }
 
                 grouping.add(end, edges.get(rel.id()));
 
@@ -133,9 +160,11 @@ public class NeighbourhoodGraph extends FragmentGraph implements Constants {
                 for (Path.Segment seg : path) {
                     Relationship r = seg.relationship();
                     edges[i] = this.edges.get(r.id());
-                    msg += "\nLabel: " + FragmentUtils.getLabel(r);
-                    Node[] relationshipNodes = FragmentUtils.orderNodesFromRelationship(seg);
-                    msg += "\n" + FragmentUtils.getSmiles(relationshipNodes[0]) + " -> " + FragmentUtils.getSmiles(relationshipNodes[1]);
+                    if (LOG.isLoggable(Level.FINE)) {
+                        msg += "\nLabel: " + FragmentUtils.getLabel(r);
+                        Node[] relationshipNodes = FragmentUtils.orderNodesFromRelationship(seg);
+                        msg += "\n" + FragmentUtils.getSmiles(relationshipNodes[0]) + " -> " + FragmentUtils.getSmiles(relationshipNodes[1]);
+                    }
                     i++;
                 }
                 LOG.fine(msg);
@@ -143,6 +172,8 @@ public class NeighbourhoodGraph extends FragmentGraph implements Constants {
 
                 break;
         }
+        // the array of edges for the group member and its slot in the list
+        memoryBudget.charge(MemoryBudget.OBJECT_SIZE + (path.length() + 1) * MemoryBudget.REFERENCE_SIZE);
     }
 
     static String generateGroupingKey(GroupingType groupingType, String code, String smiles) {
@@ -156,57 +187,94 @@ public class NeighbourhoodGraph extends FragmentGraph implements Constants {
      * - a sorted list of group members, sorted by lowest HAC and then if cases of a tie MW
      * - the first sorted member becomes the prototype for the group
      * - the number of atoms in the refmol that are not present in the MCS of the refmol and group members
+     * (or an approximation of this, see {@link #setApproximateMCS(boolean)})
      * <p>
      * The aim is to generate a prototype structure that better represents the group, probably by creating an
      * R-group representation, but currently the member with the smallest number of atoms is used.
      */
     public void generateGroupInfo() {
-        getGroups().parallelStream().forEach((g) -> generateGroupInfo(g));
+        chemistryExecutor.forEach(getGroups(), (g) -> generateGroupInfo(g));
     }
 
+    /**
+     * Generate only the information needed to summarise the groups, which is the sorted (and truncated) list of
+     * members from which the prototype is taken. This is much quicker than {@link #generateGroupInfo()} as it does not
+     * need the MCS. The full information can then be generated for the groups that need it using
+     * {@link #generateGroupInfo(int)}.
+     */
+    public void generateGroupSummaries() {
+        chemistryExecutor.forEach(getGroups(), (g) -> g.sortMembersByHacAndTruncate(groupLimit));
+    }
+
+    /**
+     * Generate the full information for one group, if not already generated.
+     *
+     * @param index The index of the group in {@link #getGroups()}
+     * @return The group, or null if there is no group with that index
+     */
+    public Group generateGroupInfo(int index) {
+        Group group = getGroup(index);
+        if (group != null) {
+            generateGroupInfo(group);
+        }
+        return group;
+    }
 
     protected void generateGroupInfo(Group group) {
+        synchronized (group) {
+            if (group.infoGenerated) {
+                return;
+            }
+            doGenerateGroupInfo(group);
+            group.infoGenerated = true;
+        }
+    }
+
+    private void doGenerateGroupInfo(Group group) {
 
         group.sortMembersByHacAndTruncate(groupLimit);
 
         // TODO generate a more meaningful prototype structure such as an R-group representation of the group
 
         // generate MCS so that we can determine how many atoms have been lost etc.
-        ROMol_Vect mols = new ROMol_Vect();
         RWMol m = fetchMolecule(refmol);
         if (m == null) {
             LOG.warning("Can't obtain the refmol for " + refmol + ". Can't continue");
-        } else {
-            mols.add(m);
+        } else if (!group.getMembers().isEmpty()) {
             int refMolAtoms = (int) m.getNumAtoms();
-            for (GroupMember member : group.getMembers()) {
-                String smiles = member.getSmiles();
-                RWMol mol = fetchMolecule(smiles);
-                if (mol != null) {
-                    mols.add(mol);
+            if (approximateMCS) {
+                // the members are sorted so the first is the smallest
+                long smallest = heavyAtomCount(group.getMembers().get(0));
+                group.setRefmolAtomsMissing((int) Math.max(0, refMolAtoms - smallest));
+            } else {
+                List<String> smiles = new ArrayList<>(group.getMembers().size());
+                for (GroupMember member : group.getMembers()) {
+                    smiles.add(member.getSmiles());
+                }
+                Integer mcsAtoms = mcsCalculator.findMCSAtoms(refmol, smiles, this::fetchMolecule);
+                if (mcsAtoms != null) {
+                    group.setRefmolAtomsMissing(refMolAtoms - mcsAtoms);
                 }
-            }
-
-            if (mols.size() > 1) {
-                long t0 = System.nanoTime();
-                MCSResult mcs = RDKFuncs.findMCS(mols);
-                long t1 = System.nanoTime();
-                int mcsAtoms = (int) mcs.getNumAtoms();
-                String smarts = mcs.getSmartsString();
-                LOG.fine("Refmol/MCS Atoms: " + refMolAtoms + "/" + mcsAtoms + " Took: " + (t1 - t0) +
-                        "ns Smarts: " + smarts);
-                group.setRefmolAtomsMissing(refMolAtoms - mcsAtoms);
             }
         }
     }
 
+    /**
+     * The heavy atom count of the member. This is a property of the node, but if not present it is obtained from
+     * the molecule.
+     */
+    private long heavyAtomCount(GroupMember member) {
+        Number hac = member.node.getProp(MoleculeNode.Property.HEAVY_ATOM_COUNT.dbname, Number.class);
+        return hac == null ? fetchMolecule(member.getSmiles()).getNumHeavyAtoms() : hac.longValue();
+    }
+
     protected GroupMember createGroupMember(MoleculeNode node) {
         return new GroupMember(node);
     }
 
     protected class Grouping {
 
-        private final Map<Long, GroupMember> members = new HashMap<>();
+        private final LongObjectMap<GroupMember> members = new LongObjectMap<>();
 
         private List<Group> groups;
 
@@ -217,12 +285,7 @@ public class NeighbourhoodGraph extends FragmentGraph implements Constants {
          * @return The GroupMember for the node
          */
         protected GroupMember findOrCreateMember(MoleculeNode node) {
-            GroupMember m = members.get(node.getId());
-            if (m == null) {
-                m = new GroupMember(node);
-                members.put(node.getId(), m);
-            }
-            return m;
+            return members.computeIfAbsent(node.getId(), (id) -> new GroupMember(node));
         }
 
         protected int size() {
@@ -247,6 +310,9 @@ public class NeighbourhoodGraph extends FragmentGraph implements Constants {
             return getGroups().size();
         }
 
+        /**
+         * @return The groups. This is a List so that groups can be referred to by their position.
+         */
         protected synchronized Collection<Group> getGroups() {
             if (groups == null) {
 
@@ -267,22 +333,32 @@ public class NeighbourhoodGraph extends FragmentGraph implements Constants {
             return groups;
         }
 
+        /**
+         * @param index The index of the group in {@link #getGroups()}
+         * @return The group, or null if there is no group with that index
+         */
+        protected synchronized Group getGroup(int index) {
+            getGroups();
+            return index < 0 || index >= groups.size() ? null : groups.get(index);
+        }
+
         protected void clearGroups() {
             groups = null;
         }
 
+        /**
+         * Classify the members in parallel, which is the expensive part, then collect them into groups in the order
+         * of the members so that the groups, and the order of the members in each, are always the same.
+         */
         private Collection<Group> collectGroups() {
             LOG.fine("Collecting groups");
-            Map<MolTransform, Group> result = Collections.synchronizedMap(new LinkedHashMap<>());
-            members.values().parallelStream().forEach((m) -> {
-                MolTransform transform = m.getMolTransform();
-                Group group = result.get(transform);
-                if (group == null) {
-                    group = new Group(transform);
-                    result.put(transform, group);
-                }
-                group.addMember(m);
-            });
+            List<GroupMember> ms = members.values();
+            List<MolTransform> transforms = chemistryExecutor.map(ms, (m) -> m.getMolTransform());
+            Map<MolTransform, Group> result = new LinkedHashMap<>();
+            for (int i = 0; i < ms.size(); i++) {
+                MolTransform transform = transforms.get(i);
+                result.computeIfAbsent(transform, (t) -> new Group(t)).addMember(ms.get(i));
+            }
             LOG.info("Collected " + result.size() + " groups");
             return result.values();
         }
@@ -309,6 +385,7 @@ public class NeighbourhoodGraph extends FragmentGraph implements Constants {
         private Integer refmolAtomsMissing;
         private final List<GroupMember> members = new ArrayList<>();
         private boolean sorted = false;
+        private boolean infoGenerated = false;
         private int memberCount;
 
         protected Group(MolTransform molTransform) {
@@ -328,34 +405,28 @@ public class NeighbourhoodGraph extends FragmentGraph implements Constants {
         }
 
 
-        public void sortMembersByHacAndTruncate(Integer limit) {
+        /**
+         * Sort the members by HAC and then MW, keeping only the first members if a limit is specified.
+         * The sort keys are generated once for each member. When there is a limit the first members are selected
+         * without sorting the remainder.
+         *
+         * @param limit The maximum number of members to keep. Null or zero means no limit.
+         */
+        public synchronized void sortMembersByHacAndTruncate(Integer limit) {
             if (!sorted) {
                 // set the memberCount before we perform truncation
                 memberCount = members.size();
-                Collections.sort(members, new Comparator<GroupMember>() {
-                    @Override
-                    public int compare(GroupMember m1, GroupMember m2) {
-                        String smiles1 = m1.getSmiles();
-                        String smiles2 = m2.getSmiles();
-                        RWMol mol1 = fetchMolecule(smiles1);
-                        RWMol mol2 = fetchMolecule(smiles2);
-                        Long hac1 = mol1.getNumHeavyAtoms();
-                        Long hac2 = mol2.getNumHeavyAtoms();
-
-                        int result = hac1.compareTo(hac2);
-                        if (result == 0) {
-                            Double mw1 = RDKFuncs.calcExactMW(mol1);
-                            Double mw2 = RDKFuncs.calcExactMW(mol2);
-                            return mw1.compareTo(mw2);
-                        } else {
-                            return result;
-                        }
-                    }
-                });
-                if (limit != null && limit > 0) {
-                    while (members.size() > limit) {
-                        members.remove(limit.intValue());
-                    }
+                MemberSortKey[] keys = new MemberSortKey[members.size()];
+                for (int i = 0; i < keys.length; i++) {
+                    keys[i] = new MemberSortKey(members.get(i), i);
+                }
+                if (limit != null && limit > 0 && limit < keys.length) {
+                    keys = selectFirst(keys, limit);
+                }
+                Arrays.sort(keys);
+                members.clear();
+                for (MemberSortKey key : keys) {
+                    members.add(key.member);
                 }
                 sorted = true;
             }
@@ -388,13 +459,75 @@ public class NeighbourhoodGraph extends FragmentGraph implements Constants {
     }
 
 
+    /**
+     * Select the first members without sorting all of them.
+     *
+     * @param keys  The keys of all the members
+     * @param limit The number to select. Must be less than the number of keys.
+     * @return The keys of the first members, in no particular order
+     */
+    private static MemberSortKey[] selectFirst(MemberSortKey[] keys, int limit) {
+        // a max-heap of the first members found so far, so the head is the one to replace
+        PriorityQueue<MemberSortKey> first = new PriorityQueue<>(limit, Collections.reverseOrder());
+        for (MemberSortKey key : keys) {
+            if (first.size() < limit) {
+                first.add(key);
+            } else if (key.compareTo(first.peek()) < 0) {
+                first.poll();
+                first.add(key);
+            }
+        }
+        return first.toArray(new MemberSortKey[limit]);
+    }
+
+    /**
+     * The values that group members are sorted by. The HAC comes from the node's properties, falling back to the
+     * molecule if not present. The MW needs the molecule, so it is only generated if needed to break a tie on HAC.
+     * The member's original position is used to break a tie on MW, so that the order is the same as a stable sort.
+     */
+    private class MemberSortKey implements Comparable<MemberSortKey> {
+
+        private final GroupMember member;
+        private final int index;
+        private final long hac;
+        private double mw = Double.NaN;
+
+        MemberSortKey(GroupMember member, int index) {
+            this.member = member;
+            this.index = index;
+            this.hac = heavyAtomCount(member);
+        }
+
+        private double getMw() {
+            if (Double.isNaN(mw)) {
+                mw = RDKFuncs.calcExactMW(fetchMolecule(member.getSmiles()));
+            }
+            return mw;
+        }
+
+        @Override
+        public int compareTo(MemberSortKey o) {
+            int result = Long.compare(hac, o.hac);
+            if (result == 0) {
+                result = Double.compare(getMw(), o.getMw());
+                if (result == 0) {
+                    result = Integer.compare(index, o.index);
+                }
+            }
+            return result;
+        }
+    }
+
     @JsonInclude(JsonInclude.Include.NON_EMPTY)
     public class GroupMember {
 
         private final Long id;
         private final MoleculeNode node;
         private final List<MoleculeEdge[]> edges = new ArrayList<>();
-        private MolTransform molTransform;
+        /** The transform, which is generated when first needed */
+        private volatile MolTransform molTransform;
+        private TransformData transformData;
+        private long classificationTime;
 
         protected GroupMember(MoleculeNode node) {
             this.id = node.getId();
@@ -449,8 +582,10 @@ public class NeighbourhoodGraph extends FragmentGraph implements Constants {
             return ids;
         }
 
-        protected void addEdges(MoleculeEdge[] edges) {
+        protected synchronized void addEdges(MoleculeEdge[] edges) {
             this.edges.add(edges);
+            // the transform needs to take these into account
+            molTransform = null;
         }
 
         private String[] fetchLabels(MoleculeEdge[] edges) {
@@ -469,7 +604,7 @@ public class NeighbourhoodGraph extends FragmentGraph implements Constants {
                     boolean isAddition = path[0].getChildId() != getId();
                     data = new TransformData(
                             getRefmol(),
-                            path[0].getLabel(),
+                            path[0].getEdgeLabel(),
                             isAddition,
                             getSmiles());
                 } else if (path.length == 2) {
@@ -478,10 +613,10 @@ public class NeighbourhoodGraph extends FragmentGraph implements Constants {
                     boolean isDeletion1 = path[0].getChildId() == midNodeId;
                     data = new TransformData(
                             getRefmol(),
-                            path[0].getLabel(),
+                            path[0].getEdgeLabel(),
                             !isDeletion1,
                             nodes.get(midNodeId).getSmiles(),
-                            path[1].getLabel(),
+                            path[1].getEdgeLabel(),
                             !isDeletion2,
                             getSmiles()
                     );
@@ -495,18 +630,64 @@ public class NeighbourhoodGraph extends FragmentGraph implements Constants {
         }
 
 
+        /**
+         * The transform from the refmol to this member. This is generated the first time it is needed, which is
+         * expensive as it can involve finding an MCS.
+         *
+         * @return The transform
+         */
         protected MolTransform getMolTransform() {
+            MolTransform tf = molTransform;
+            if (tf == null) {
+                synchronized (this) {
+                    tf = molTransform;
+                    if (tf == null) {
+                        tf = classify();
+                        molTransform = tf;
+                    }
+                }
+            }
+            return tf;
+        }
 
+        private MolTransform classify() {
+            long t0 = System.nanoTime();
+            transformData = null;
             try {
                 List<TransformData> paths = getTransformData();
                 TransformData best = TransformClassifierUtils.determineSimplestTransform(paths);
+                transformData = best;
                 MolTransform tf = TransformClassifierUtils.generateMolTransform(best);
                 return tf;
             } catch (Exception ex) {
                 LOG.log(Level.WARNING, "Failed to classify molecule. Resorting to undefined", ex);
                 return new MolTransform("undefined-undefined", GroupingType.UNDEFINED, 0);
+            } finally {
+                classificationTime = System.nanoTime() - t0;
+                LOG.finer("Classified member " + id + " in " + classificationTime + "ns");
             }
+        }
 
+        /**
+         * The path that was chosen to generate the transform, for diagnostic purposes.
+         *
+         * @return The data for the chosen path, or null if the member could not be classified
+         */
+        @JsonIgnore
+        public synchronized TransformData getSelectedTransformData() {
+            getMolTransform();
+            return transformData;
+        }
+
+        /**
+         * The time taken to generate the transform, for diagnostic purposes.
+         *
+         * @return The time in nanoseconds
+         */
+        @JsonIgnore
+        public synchronized long getClassificationTime() {
+            getMolTransform();
+            return classificationTime;
         }
 
         @Override
@@ -519,9 +700,7 @@ public class NeighbourhoodGraph extends FragmentGraph implements Constants {
             for (MoleculeEdge[] earr : edges) {
                 int j = 0;
                 for (MoleculeEdge e : earr) {
-                    String label = e.getLabel();
-                    //b.append("\n").append(label);
-                    String[] parts = FragmentUtils.splitLabel(label);
+                    String[] parts = e.getEdgeLabel().getParts();
                     b.append("\n" + i + j + "\t" + parts[0] + " " + parts[3] + "\t" + parts[1] + "\t" + parts[4]);
                     j++;
                 }
@@ -534,7 +713,9 @@ public class NeighbourhoodGraph extends FragmentGraph implements Constants {
             }
 
             MolTransform tx = getMolTransform();
-            b.append("\nGrouping Key: ").append(tx.getScaffold()).append(" ").append(tx.getClassification()).append("]\n");
+            b.append("\nGrouping Key: ").append(tx.getScaffold()).append(" ").append(tx.getClassification())
+                    .append("\nChosen path: ").append(getSelectedTransformData())
+                    .append(" classified in ").append(getClassificationTime()).append("ns]\n");
 
             return b.toString();
         }
@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2023 Informatics Matters Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squonk.fragnet.search.model.v2;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+
+import java.util.*;
+
+/**
+ * Form of a {@link NeighbourhoodGraph} in which the groups are summarised rather than including their members.
+ * The graph is kept on the server and the full details of a group can be fetched using the handle, until the handle
+ * expires. The summaries only need the members of each group to be sorted, so this is much quicker to generate than
+ * the full details of every group.
+ */
+@JsonInclude(JsonInclude.Include.NON_EMPTY)
+@JsonPropertyOrder({"apiVersion", "handle", "handleTimeout", "query", "parameters", "shortMessage", "longMessage", "refmol", "resultAvailableAfter", "processingTime", "calculationTime", "pathCount", "nodeCount", "edgeCount", "groupCount", "groupMemberCount", "nodes", "edges", "groups"})
+public class NeighbourhoodGraphSummary {
+
+    public static final String GROUPS_SUMMARY = "summary";
+
+    private final NeighbourhoodGraph graph;
+    private final String handle;
+    private final long handleTimeout;
+    private final List<Group> groups;
+
+    /**
+     * @param graph         The graph, for which {@link NeighbourhoodGraph#generateGroupSummaries()} has been run
+     * @param handle        The handle for fetching the group details
+     * @param handleTimeout The number of seconds the handle remains valid after it is last used
+     */
+    public NeighbourhoodGraphSummary(NeighbourhoodGraph graph, String handle, long handleTimeout) {
+        this.graph = graph;
+        this.handle = handle;
+        this.handleTimeout = handleTimeout;
+        Collection<NeighbourhoodGraph.Group> gs = graph.getGroups();
+        this.groups = new ArrayList<>(gs.size());
+        for (NeighbourhoodGraph.Group g : gs) {
+            groups.add(new Group(groups.size(), g));
+        }
+    }
+
+    public String getApiVersion() {
+        return graph.getApiVersion();
+    }
+
+    public String getHandle() {
+        return handle;
+    }
+
+    public long getHandleTimeout() {
+        return handleTimeout;
+    }
+
+    public String getQuery() {
+        return graph.getQuery();
+    }
+
+    public Map<String, Object> getParameters() {
+        return graph.getParameters();
+    }
+
+    public String getShortMessage() {
+        return graph.getShortMessage();
+    }
+
+    public String getLongMessage() {
+        return graph.getLongMessage();
+    }
+
+    public String getRefmol() {
+        return graph.getRefmol();
+    }
+
+    public Long getResultAvailableAfter() {
+        return graph.getResultAvailableAfter();
+    }
+
+    public Long getProcessingTime() {
+        return graph.getProcessingTime();
+    }
+
+    public Long getCalculationTime() {
+        return graph.getCalculationTime();
+    }
+
+    public int getPathCount() {
+        return graph.getPathCount();
+    }
+
+    public int getNodeCount() {
+        return graph.getNodeCount();
+    }
+
+    public int getEdgeCount() {
+        return graph.getEdgeCount();
+    }
+
+    public int getGroupCount() {
+        return groups.size();
+    }
+
+    public int getGroupMemberCount() {
+        return graph.getGroupMemberCount();
+    }
+
+    public Collection<MoleculeNode> getNodes() {
+        return graph.getNodes();
+    }
+
+    public Collection<MoleculeEdge> getEdges() {
+        return graph.getEdges();
+    }
+
+    public List<Group> getGroups() {
+        return groups;
+    }
+
+    @JsonInclude(JsonInclude.Include.NON_EMPTY)
+    @JsonPropertyOrder({"index", "key", "classification", "prototype", "memberCount"})
+    public static class Group {
+
+        private final int index;
+        private final String key;
+        private final GroupingType classification;
+        private final String prototype;
+        private final int memberCount;
+
+        Group(int index, NeighbourhoodGraph.Group group) {
+            this.index = index;
+            this.key = group.getKey();
+            this.classification = group.getClassification();
+            this.prototype = group.getMembers().isEmpty() ? null : group.getPrototype();
+            this.memberCount = group.getMemberCount();
+        }
+
+        /** The index used to fetch the details of the group */
+        @JsonInclude(JsonInclude.Include.ALWAYS)
+        public int getIndex() {
+            return index;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public GroupingType getClassification() {
+            return classification;
+        }
+
+        public String getPrototype() {
+            return prototype;
+        }
+
+        public int getMemberCount() {
+            return memberCount;
+        }
+    }
+}
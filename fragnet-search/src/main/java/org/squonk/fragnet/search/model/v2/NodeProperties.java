@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2023 Informatics Matters Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squonk.fragnet.search.model.v2;
+
+import java.util.*;
+
+/**
+ * The properties of a molecule. This is a view of the map of properties that the driver returns for the node, which is
+ * shared rather than copied again for each occurrence of the node, with certain properties hidden (e.g. the SMILES,
+ * which is held separately). Properties that are added later, such as calculated values, are held in a separate map
+ * and take precedence over the stored properties.
+ * <p>
+ * The order of the properties is the same as if the stored properties had been copied and the others then put into
+ * the copy: a property that replaces a stored one keeps the position of the stored one, and new properties follow the
+ * stored ones.
+ * <p>
+ * The stored properties are never modified. Removing properties is not supported.
+ */
+class NodeProperties extends AbstractMap<String, Object> {
+
+    /** The properties of the nodes in the database that are held elsewhere */
+    static final Set<String> HIDDEN_NODE_PROPERTIES = Collections.singleton("smiles");
+
+    private final Map<String, Object> stored;
+    private final Set<String> hidden;
+    private Map<String, Object> added;
+
+    /**
+     * @param stored The stored properties. This map is not copied so must not be modified. May be null.
+     * @param hidden The names of the stored properties to hide
+     */
+    NodeProperties(Map<String, Object> stored, Set<String> hidden) {
+        this.stored = stored == null ? Collections.emptyMap() : stored;
+        this.hidden = hidden;
+    }
+
+    private boolean isStored(Object key) {
+        return !hidden.contains(key) && stored.containsKey(key);
+    }
+
+    @Override
+    public Object get(Object key) {
+        if (added != null && added.containsKey(key)) {
+            return added.get(key);
+        }
+        return hidden.contains(key) ? null : stored.get(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return (added != null && added.containsKey(key)) || isStored(key);
+    }
+
+    @Override
+    public Object put(String key, Object value) {
+        Object previous = get(key);
+        if (added == null) {
+            added = new LinkedHashMap<>();
+        }
+        added.put(key, value);
+        return previous;
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (String key : stored.keySet()) {
+            if (!hidden.contains(key)) {
+                size++;
+            }
+        }
+        if (added != null) {
+            for (String key : added.keySet()) {
+                if (!isStored(key)) {
+                    size++;
+                }
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        return new AbstractSet<Entry<String, Object>>() {
+            @Override
+            public Iterator<Entry<String, Object>> iterator() {
+                return new EntryIterator();
+            }
+
+            @Override
+            public int size() {
+                return NodeProperties.this.size();
+            }
+        };
+    }
+
+    /**
+     * Iterates the visible stored properties, with the added value for those that have been replaced, and then the
+     * added ones that are not stored
+     */
+    private class EntryIterator implements Iterator<Entry<String, Object>> {
+
+        private Iterator<Entry<String, Object>> current = stored.entrySet().iterator();
+        private boolean inStored = true;
+        private Entry<String, Object> next;
+
+        EntryIterator() {
+            advance();
+        }
+
+        private void advance() {
+            next = null;
+            while (current.hasNext()) {
+                Entry<String, Object> e = current.next();
+                if (inStored) {
+                    if (!hidden.contains(e.getKey())) {
+                        next = added != null && added.containsKey(e.getKey())
+                                ? new AbstractMap.SimpleImmutableEntry<>(e.getKey(), added.get(e.getKey()))
+                                : e;
+                        return;
+                    }
+                } else if (!isStored(e.getKey())) {
+                    next = e;
+                    return;
+                }
+            }
+            if (inStored && added != null) {
+                inStored = false;
+                current = added.entrySet().iterator();
+                advance();
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Entry<String, Object> next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            Entry<String, Object> result = next;
+            advance();
+            return result;
+        }
+    }
+}
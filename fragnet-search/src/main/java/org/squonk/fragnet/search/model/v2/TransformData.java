@@ -1,7 +1,6 @@
 package org.squonk.fragnet.search.model.v2;
 
 import org.squonk.fragnet.Constants;
-import org.squonk.fragnet.search.FragmentUtils;
 
 public class TransformData implements Constants {
 
@@ -9,7 +8,7 @@ public class TransformData implements Constants {
     private final String toSmiles;
     private final String midSmiles;
     private final int numHops;
-    private final String[] edges;
+    private final EdgeLabel[] edges;
     private final boolean[] isAdditions;
 
 
@@ -24,7 +23,7 @@ public class TransformData implements Constants {
      * @param edges
      * @param isAdditions
      */
-    public TransformData(String fromSmiles, String[] edges, boolean[] isAdditions, String toSmiles) {
+    public TransformData(String fromSmiles, EdgeLabel[] edges, boolean[] isAdditions, String toSmiles) {
         this.fromSmiles = fromSmiles;
         this.toSmiles = toSmiles;
         this.edges = edges;
@@ -33,11 +32,15 @@ public class TransformData implements Constants {
         this.numMidComponents = 0;
         this.numHops = 1;
         this.parts = new String[1][];
-        parts[0] = FragmentUtils.splitLabel(edges[0]);
+        parts[0] = edges[0].getParts();
+    }
+
+    public TransformData(String fromSmiles, EdgeLabel edge, boolean isAddition, String toSmiles) {
+        this(fromSmiles, new EdgeLabel[]{edge}, new boolean[]{isAddition}, toSmiles);
     }
 
     public TransformData(String fromSmiles, String edge, boolean isAddition, String toSmiles) {
-        this(fromSmiles, new String[]{edge}, new boolean[]{isAddition}, toSmiles);
+        this(fromSmiles, EdgeLabel.parse(edge), isAddition, toSmiles);
     }
 
     /**
@@ -46,7 +49,7 @@ public class TransformData implements Constants {
      * @param fromSmiles
      * @param toSmiles
      */
-    public TransformData(String fromSmiles, String midSmiles, String[] edges, boolean[] isAdditions, String toSmiles) {
+    public TransformData(String fromSmiles, String midSmiles, EdgeLabel[] edges, boolean[] isAdditions, String toSmiles) {
         assert edges.length == isAdditions.length;
         this.numHops = edges.length;
         this.fromSmiles = fromSmiles;
@@ -56,17 +59,25 @@ public class TransformData implements Constants {
         this.isAdditions = isAdditions;
         this.parts = new String[numHops][];
         for (int i = 0; i < numHops; i++) {
-            parts[i] = FragmentUtils.splitLabel(edges[i]);
+            parts[i] = edges[i].getParts();
         }
         this.numMidComponents = midSmiles.length() - midSmiles.replace(".", "").length() + 1;
     }
 
+    public TransformData(String fromSmiles,
+                         EdgeLabel edge1, boolean isAddition1,
+                         String midSmiles,
+                         EdgeLabel edge2, boolean isAddition2,
+                         String toSmiles) {
+        this(fromSmiles, midSmiles, new EdgeLabel[]{edge1, edge2}, new boolean[]{isAddition1, isAddition2}, toSmiles);
+    }
+
     public TransformData(String fromSmiles,
                          String edge1, boolean isAddition1,
                          String midSmiles,
                          String edge2, boolean isAddition2,
                          String toSmiles) {
-        this(fromSmiles, midSmiles, new String[]{edge1, edge2}, new boolean[]{isAddition1, isAddition2}, toSmiles);
+        this(fromSmiles, EdgeLabel.parse(edge1), isAddition1, midSmiles, EdgeLabel.parse(edge2), isAddition2, toSmiles);
     }
 
     public String getToSmiles() {
@@ -86,6 +97,14 @@ public class TransformData implements Constants {
     }
 
     public String[] getEdges() {
+        String[] labels = new String[edges.length];
+        for (int i = 0; i < edges.length; i++) {
+            labels[i] = edges[i].getLabel();
+        }
+        return labels;
+    }
+
+    public EdgeLabel[] getEdgeLabels() {
         return edges;
     }
 
@@ -1,6 +1,7 @@
 package org.squonk.fragnet.search.queries;
 
 import org.neo4j.driver.Session;
+import org.squonk.fragnet.search.MemoryBudget;
 
 import java.util.logging.Logger;
 
@@ -11,6 +12,7 @@ public abstract class AbstractQuery {
 
     private final Session session;
     private int limit = DEFAULT_LIMIT;
+    private long memoryLimit = MemoryBudget.DEFAULT_LIMIT;
 
     public AbstractQuery(Session session) {
         this.session = session;
@@ -28,6 +30,15 @@ public abstract class AbstractQuery {
         this.limit = limit;
     }
 
+    /** The maximum (estimated) number of bytes that the results of the query can use. 0 means no limit. */
+    public long getMemoryLimit() {
+        return memoryLimit;
+    }
+
+    public void setMemoryLimit(long memoryLimit) {
+        this.memoryLimit = memoryLimit;
+    }
+
     protected abstract String getQueryTemplate();
 
 
@@ -17,9 +17,11 @@ package org.squonk.fragnet.search.queries.v2;
 
 
 import org.neo4j.driver.Session;
+import org.neo4j.driver.Record;
 import org.neo4j.driver.Result;
 import org.neo4j.driver.types.Path;
 import org.squonk.fragnet.chem.MolStandardize;
+import org.squonk.fragnet.search.MemoryBudget;
 import org.squonk.fragnet.search.model.v2.ExpansionResults;
 import org.squonk.fragnet.search.queries.AbstractQuery;
 import org.squonk.fragnet.search.queries.QueryAndParams;
@@ -95,6 +97,23 @@ public class ExpansionQuery extends AbstractQuery {
         LOG.finer("Supplied SMILES: " + mol);
         LOG.finer("Using SMILES: " + stdSmiles);
 
+        return executeStandardizedQuery(stdSmiles, hops, hacMin, hacMax, racMin, racMax, suppliers);
+    }
+
+    /** Execute the expansion query for a molecule that has already been standardized using
+     * {@link MolStandardize#prepareNonisoMol(String, String)}.
+     *
+     * @see #executeQuery(String, String, Integer, Integer, Integer, Integer, Integer, List)
+     */
+    public ExpansionResults executeStandardizedQuery(
+            @NotNull String stdSmiles,
+            Integer hops,
+            Integer hacMin,
+            Integer hacMax,
+            Integer racMin,
+            Integer racMax,
+            List<String> suppliers) {
+
         QueryAndParams qandp = generateCypherQuery(stdSmiles, hops, hacMin, hacMax, racMin, racMax, suppliers);
 
         ExpansionResults results = getSession().writeTransaction((tx) -> {
@@ -184,7 +203,11 @@ public class ExpansionQuery extends AbstractQuery {
         ExpansionResults expansion = new ExpansionResults(querySmiles);
         long t0 = new Date().getTime();
         AtomicInteger pathCount = new AtomicInteger(0);
-        result.stream().forEachOrdered((r) -> {
+        MemoryBudget budget = new MemoryBudget(getMemoryLimit());
+        expansion.setMemoryBudget(budget);
+        // stop reading once the budget is exceeded. The remaining records are discarded by consume()
+        while (result.hasNext() && !budget.isExceeded()) {
+            Record r = result.next();
             LOG.finer("Handling record " + r);
             Map<String, Object> m = r.asMap();
             m.forEach((k, v) -> {
@@ -193,7 +216,7 @@ public class ExpansionQuery extends AbstractQuery {
                 expansion.add(path);
                 pathCount.incrementAndGet();
             });
-        });
+        }
         expansion.setPathCount(pathCount.get());
         long t1 = new Date().getTime();
         expansion.setQuery(result.consume().query().text());
@@ -201,7 +224,12 @@ public class ExpansionQuery extends AbstractQuery {
         expansion.setResultAvailableAfter(result.consume().resultAvailableAfter(TimeUnit.MILLISECONDS));
         expansion.setProcessingTime(t1 - t0);
 
-        if (getLimit() <= expansion.getPathCount()) {
+        if (budget.isExceeded()) {
+            LOG.warning("Memory limit reached: " + budget);
+            expansion.setShortMessage("Incomplete results");
+            expansion.setLongMessage("Results are incomplete as the memory limit of " + (getMemoryLimit() / (1024 * 1024)) +
+                    "MB for a single search was reached");
+        } else if (getLimit() <= expansion.getPathCount()) {
             expansion.setShortMessage("Incomplete results");
             expansion.setLongMessage("Results are incomplete as the max path count of " + getLimit() + " was reached");
         }
@@ -21,6 +21,7 @@ import org.neo4j.driver.Result;
 import org.neo4j.driver.Value;
 import org.neo4j.driver.types.Relationship;
 import org.squonk.fragnet.chem.MolStandardize;
+import org.squonk.fragnet.search.FragmentUtils;
 import org.squonk.fragnet.search.queries.AbstractQuery;
 
 import javax.validation.constraints.NotNull;
@@ -51,6 +52,16 @@ public class FragmentQuery extends AbstractQuery {
 
         // standardize the mol. It can be in smiles or molfile formats
         String stdSmiles = MolStandardize.prepareNonisoMol(mol, mimeType);
+        return executeStandardized(stdSmiles);
+    }
+
+    /** Fetch the fragments of a molecule that has already been standardized using
+     * {@link MolStandardize#prepareNonisoMol(String, String)}.
+     *
+     * @param stdSmiles The standardized SMILES
+     * @return The SMILES of the fragments
+     */
+    public List<String> executeStandardized(@NotNull String stdSmiles) {
 
         HashSet<String> values = getSession().writeTransaction((tx) -> {
             LOG.fine("Executing MoleculeQuery: " + SYNTHON_QUERY);
@@ -63,7 +74,7 @@ public class FragmentQuery extends AbstractQuery {
                 for (Object o : edges) {
                     Relationship rel = (Relationship)o;
                     String label = rel.get("label").asString();
-                    String[] tokens = label.split("\\|");
+                    String[] tokens = FragmentUtils.splitLabel(label);
                     LOG.fine("Label: " + label + " Tokens: " + tokens[1] + " " + tokens[4]);
                     smiles.add(tokens[1]);
                     smiles.add(tokens[4]);
@@ -17,28 +17,97 @@
 package org.squonk.fragnet.search.queries.v2;
 
 import org.neo4j.driver.Session;
+import org.squonk.fragnet.Utils;
 import org.squonk.fragnet.search.model.v2.*;
+import org.squonk.fragnet.service.GraphDB;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 /** Handles expanding a set of hits using the fragment network
  *
+ * The searches can be run concurrently, each of up to FRAGNET_EXPAND_CONCURRENCY (default 4) workers using its own
+ * session to run the searches for some of the molecules. The workers run on a pool of FRAGNET_EXPAND_THREADS threads
+ * (default 16) that is shared by all requests, plus the calling thread, so the number of sessions is bounded.
+ * The results are merged in the order of the molecules as they become available, and the workers can only get a few
+ * searches ahead of that, so the results of all the searches are never held at once.
  */
 public class HitExpander {
 
     private static final Logger LOG = Logger.getLogger(HitExpander.class.getName());
 
+    private static final String FRAGNET_EXPAND_THREADS = Utils.getConfiguration("FRAGNET_EXPAND_THREADS", "16");
+    private static final String FRAGNET_EXPAND_CONCURRENCY = Utils.getConfiguration("FRAGNET_EXPAND_CONCURRENCY", "4");
+    private static final String FRAGNET_EXPAND_CHUNK_SIZE = Utils.getConfiguration("FRAGNET_EXPAND_CHUNK_SIZE", "100");
+
+    private static ExecutorService executor;
+
     private final Session session;
+    private final GraphDB graphDB;
+    private final int concurrency;
 
+    /** Run the searches one at a time using this session.
+     *
+     * @param session The session
+     */
     public HitExpander(Session session) {
         this.session = session;
+        this.graphDB = null;
+        this.concurrency = 1;
+    }
+
+    /** Run the searches concurrently using the configured number of workers, each getting its own session from the
+     * database.
+     *
+     * @param graphDB The database
+     */
+    public HitExpander(GraphDB graphDB) {
+        this(graphDB, Integer.parseInt(FRAGNET_EXPAND_CONCURRENCY));
+    }
+
+    /** Run the searches concurrently, with each worker getting its own session from the database.
+     *
+     * @param graphDB The database
+     * @param concurrency The maximum number of searches to run at once
+     */
+    public HitExpander(GraphDB graphDB, int concurrency) {
+        this.session = null;
+        this.graphDB = graphDB;
+        this.concurrency = Math.max(1, concurrency);
+    }
+
+    /** The number of molecules to expand at a time when the results are streamed, as defined by
+     * FRAGNET_EXPAND_CHUNK_SIZE (default 100).
+     */
+    public static int getChunkSize() {
+        return Integer.parseInt(FRAGNET_EXPAND_CHUNK_SIZE);
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            int threads = Integer.parseInt(FRAGNET_EXPAND_THREADS);
+            AtomicInteger count = new AtomicInteger(0);
+            executor = Executors.newFixedThreadPool(threads, (r) -> {
+                Thread t = new Thread(r, "fragnet-expand-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+            LOG.info("Expansion executor has " + threads + " threads");
+        }
+        return executor;
     }
 
     protected ExpansionResults executeQuery(String smiles, Integer hops, Integer hacMin, Integer hacMax, Integer racMin, Integer racMax, List<String> suppliers) throws IOException {
+        return executeQuery(session, smiles, hops, hacMin, hacMax, racMin, racMax, suppliers);
+    }
+
+    protected ExpansionResults executeQuery(Session session, String smiles, Integer hops, Integer hacMin, Integer hacMax, Integer racMin, Integer racMax, List<String> suppliers) throws IOException {
+        // the molecules were standardized when they were read so there is no need to do this again
         ExpansionQuery query = new ExpansionQuery(session, null);
-        ExpansionResults results = query.executeQuery(smiles, "chemical/x-daylight-smiles", hops, hacMin, hacMax, racMin, racMax, suppliers);
+        ExpansionResults results = query.executeStandardizedQuery(smiles, hops, hacMin, hacMax, racMin, racMax, suppliers);
         return results;
     }
 
@@ -65,6 +134,61 @@ public class HitExpander {
         // standardize molecules
 
         Map<String,ExpandedHit> queryResults = new LinkedHashMap<>();
+        Map<String,Object> params = createParameters(hops, hacMin, hacMax, racMin, racMax, suppliers);
+        ExpandMultiResult json = new ExpandMultiResult(queries, params);
+
+        List<ConvertedSmilesMols.Mol> mols = queries.getMolecules();
+        long t0 = System.currentTimeMillis();
+        // the results are merged in the order of the queries so that they do not depend on the order the searches
+        // completed
+        executeQueries(mols, hops, hacMin, hacMax, racMin, racMax, suppliers, (mol, result) -> {
+            for (ExpansionResults.Member m : result.getMembers()) {
+                String smiles = m.getSmiles();
+                ExpandedHit expandedHit;
+                if (queryResults.containsKey(smiles)) {
+                    expandedHit = queryResults.get(smiles);
+                } else {
+                    Set<String> ids = m.getCompoundIds();
+                    expandedHit = new ExpandedHit(smiles, ids);
+                    queryResults.put(smiles, expandedHit);
+                }
+                expandedHit.addSourceMol(mol.getId());
+                json.addHitCount(mol.getId(), result.getMembers().size());
+            }
+        });
+        long t1 = System.currentTimeMillis();
+
+        List<ExpandedHit> hits = new ArrayList(queryResults.values());
+        json.setUniqueQueryCount(countUniqueSmiles(mols));
+        json.setExecutionTimeMillis(t1 - t0);
+        json.setResults(hits);
+        return json;
+    }
+
+    /** Expand the specified molecules, keeping the results of each separate. This is used when the results are
+     * streamed, a chunk of molecules at a time, rather than aggregated.
+     *
+     * @return The results of each molecule, in the same order as the molecules.
+     * @throws IOException
+     * @see #processMolecules(ConvertedSmilesMols, Integer, Integer, Integer, Integer, Integer, List)
+     */
+    public List<ExpandMultiQueryResult> expandMolecules(
+            ConvertedSmilesMols queries, Integer hops,
+            Integer hacMin, Integer hacMax, Integer racMin, Integer racMax,
+            List<String> suppliers) throws IOException {
+
+        List<ConvertedSmilesMols.Mol> mols = queries.getMolecules();
+        List<ExpandMultiQueryResult> queryResults = new ArrayList<>(mols.size());
+        executeQueries(mols, hops, hacMin, hacMax, racMin, racMax, suppliers, (mol, result) ->
+                queryResults.add(new ExpandMultiQueryResult(mol.getId(), mol.getSmiles(), result.getMembers())));
+        return queryResults;
+    }
+
+    /** The parameters of the search, as they are reported in the results.
+     */
+    public static Map<String,Object> createParameters(Integer hops,
+                                                      Integer hacMin, Integer hacMax, Integer racMin, Integer racMax,
+                                                      List<String> suppliers) {
         Map<String,Object> params = new LinkedHashMap<>();
         params.put("hops", hops);
         if (hacMin != null) {
@@ -82,36 +206,294 @@ public class HitExpander {
         if (suppliers != null && !suppliers.isEmpty()) {
             params.put("suppliers", suppliers);
         }
-        ExpandMultiResult json = new ExpandMultiResult(queries, params);
+        return params;
+    }
 
+    /** The number of different standardized SMILES of the molecules, which is the number of searches that are run.
+     * Molecules that could not be read or standardized are not searched so are not counted.
+     */
+    public static int countUniqueSmiles(List<ConvertedSmilesMols.Mol> mols) {
+        Set<String> smiles = new HashSet<>();
+        for (ConvertedSmilesMols.Mol mol : mols) {
+            if (isSearchable(mol)) {
+                smiles.add(mol.getSmiles());
+            }
+        }
+        return smiles.size();
+    }
+
+    /** The number of molecules that could not be read or standardized, which are not searched.
+     */
+    public static int countInvalid(List<ConvertedSmilesMols.Mol> mols) {
         int count = 0;
-        long t0 = System.currentTimeMillis();
-        LOG.info(String.format("Processing %s queries", queries.getMolecules().size()));
-        for (ConvertedSmilesMols.Mol mol : queries.getMolecules()) {
-            String query = mol.getSmiles();
-            LOG.fine("Processing " + query);
-            ExpansionResults result = executeQuery(query, hops, hacMin, hacMax, racMin, racMax, suppliers);
-            LOG.info(String.format("Found %s hits for query %s", result.getMembers().size(), count ));
-            for (ExpansionResults.Member m : result.getMembers()) {
-                String smiles = m.getSmiles();
-                ExpandedHit expandedHit;
-                if (queryResults.containsKey(smiles)) {
-                    expandedHit = queryResults.get(smiles);
-                } else {
-                    Set<String> ids = m.getCompoundIds();
-                    expandedHit = new ExpandedHit(smiles, ids);
-                    queryResults.put(smiles, expandedHit);
+        for (ConvertedSmilesMols.Mol mol : mols) {
+            if (!isSearchable(mol)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /** Molecules that could not be read or standardized have no SMILES and cannot be searched.
+     */
+    private static boolean isSearchable(ConvertedSmilesMols.Mol mol) {
+        return mol.getSmiles() != null && !mol.getSmiles().isEmpty();
+    }
+
+    /** Receives the results of each molecule, in the order of the molecules */
+    private interface ResultHandler {
+        void handle(ConvertedSmilesMols.Mol mol, ExpansionResults result) throws IOException;
+    }
+
+    /** Runs the search for one molecule using the session */
+    private interface Search {
+        ExpansionResults search(Session session, ConvertedSmilesMols.Mol mol, int index) throws IOException;
+    }
+
+    /** Search for each of the molecules. Molecules that standardized to the same SMILES (e.g. different salts of the
+     * same molecule, or duplicates) are only searched once and share the results. Molecules that could not be read or
+     * standardized are not searched and have no results, so that one bad record does not fail all the others.
+     * The results of each molecule are passed to the handler in the order of the molecules, and are not retained once
+     * no later molecule needs them.
+     */
+    private void executeQueries(List<ConvertedSmilesMols.Mol> mols, Integer hops,
+                                Integer hacMin, Integer hacMax, Integer racMin, Integer racMax,
+                                List<String> suppliers, ResultHandler handler) throws IOException {
+
+        Map<String,Integer> uniqueIndexes = new HashMap<>();
+        List<ConvertedSmilesMols.Mol> unique = new ArrayList<>();
+        int[] indexes = new int[mols.size()];
+        int invalid = 0;
+        for (int i = 0; i < mols.size(); i++) {
+            ConvertedSmilesMols.Mol mol = mols.get(i);
+            if (!isSearchable(mol)) {
+                LOG.warning("Skipping query " + mol.getId() + " as it could not be standardized");
+                indexes[i] = -1;
+                invalid++;
+                continue;
+            }
+            Integer index = uniqueIndexes.get(mol.getSmiles());
+            if (index == null) {
+                index = unique.size();
+                uniqueIndexes.put(mol.getSmiles(), index);
+                unique.add(mol);
+            }
+            indexes[i] = index;
+        }
+        // the last molecule that needs the results of each search
+        int[] lastUses = new int[unique.size()];
+        for (int i = 0; i < mols.size(); i++) {
+            if (indexes[i] >= 0) {
+                lastUses[indexes[i]] = i;
+            }
+        }
+
+        LOG.info(String.format("Processing %s queries (%s unique, %s invalid)", mols.size(), unique.size(), invalid));
+        Search search = (s, mol, i) -> executeQuery(mol, i, s, hops, hacMin, hacMax, racMin, racMax, suppliers);
+        ExpansionResults noResults = new ExpansionResults(null);
+        if (graphDB == null) {
+            ExpansionResults[] results = new ExpansionResults[unique.size()];
+            for (int i = 0; i < mols.size(); i++) {
+                int index = indexes[i];
+                if (index < 0) {
+                    handler.handle(mols.get(i), noResults);
+                    continue;
+                }
+                if (results[index] == null) {
+                    results[index] = search.search(session, unique.get(index), index);
+                }
+                handler.handle(mols.get(i), results[index]);
+                if (lastUses[index] == i) {
+                    results[index] = null;
                 }
-                expandedHit.addSourceMol(mol.getId());
-                json.addHitCount(mol.getId(), result.getMembers().size());
             }
-            count++;
+        } else {
+            new OrderedSearches(unique, search).run(mols, indexes, lastUses, noResults, handler);
         }
-        long t1 = System.currentTimeMillis();
+    }
 
-        List<ExpandedHit> hits = new ArrayList(queryResults.values());
-        json.setExecutionTimeMillis(t1 - t0);
-        json.setResults(hits);
-        return json;
+    private ExpansionResults executeQuery(ConvertedSmilesMols.Mol mol, int index, Session session,
+                                          Integer hops, Integer hacMin, Integer hacMax, Integer racMin, Integer racMax,
+                                          List<String> suppliers) throws IOException {
+        String query = mol.getSmiles();
+        LOG.fine("Processing " + query);
+        ExpansionResults result = executeQuery(session, query, hops, hacMin, hacMax, racMin, racMax, suppliers);
+        LOG.info(String.format("Found %s hits for query %s", result.getMembers().size(), index));
+        return result;
+    }
+
+    /** Runs the searches of the unique molecules using up to the concurrency number of workers, each with its own
+     * session. The calling thread passes the results to the handler in the order of the molecules, and runs searches
+     * itself while the result that it needs next is not ready. The workers can only run searches up to twice the
+     * concurrency ahead of the last one that was merged, so the number of results that are held at once is bounded
+     * (apart from those that are kept for molecules that are duplicated further on). If a search fails the remaining
+     * searches are skipped and the failure is rethrown.
+     */
+    private class OrderedSearches {
+
+        private final List<ConvertedSmilesMols.Mol> unique;
+        private final Search search;
+        private final ExpansionResults[] results;
+        private final boolean[] done;
+        private final int window = 2 * concurrency;
+        /** The next search to run */
+        private int next = 0;
+        /** Searches from this one on cannot be run until more results have been merged */
+        private int limit = window;
+        private Exception failure;
+        /** The number of workers that are running */
+        private int active = 0;
+        /** The session of the calling thread, only opened if it runs a search */
+        private Session callerSession;
+
+        OrderedSearches(List<ConvertedSmilesMols.Mol> unique, Search search) {
+            this.unique = unique;
+            this.search = search;
+            this.results = new ExpansionResults[unique.size()];
+            this.done = new boolean[unique.size()];
+        }
+
+        void run(List<ConvertedSmilesMols.Mol> mols, int[] indexes, int[] lastUses, ExpansionResults noResults,
+                 ResultHandler handler) throws IOException {
+
+            int workers = Math.min(concurrency, unique.size());
+            List<Future<Void>> futures = new ArrayList<>(Math.max(0, workers - 1));
+            for (int w = 1; w < workers; w++) {
+                futures.add(getExecutor().submit((Callable<Void>) this::work));
+            }
+            try {
+                for (int i = 0; i < mols.size(); i++) {
+                    int index = indexes[i];
+                    if (index < 0) {
+                        handler.handle(mols.get(i), noResults);
+                    } else {
+                        handler.handle(mols.get(i), await(index));
+                        merged(index, lastUses[index] == i);
+                    }
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                fail(ex);
+            } catch (Exception ex) {
+                fail(ex);
+            } finally {
+                if (callerSession != null) {
+                    callerSession.close();
+                }
+            }
+            // workers that have not started have nothing left to do, and any that start now return straight away
+            for (Future<Void> future : futures) {
+                future.cancel(false);
+            }
+            awaitWorkers();
+
+            Exception ex = getFailure();
+            if (ex instanceof IOException) {
+                throw (IOException) ex;
+            } else if (ex instanceof RuntimeException) {
+                throw (RuntimeException) ex;
+            } else if (ex != null) {
+                throw new IOException("Expansion search failed", ex);
+            }
+        }
+
+        /** Run searches until there are none left */
+        private Void work() {
+            synchronized (this) {
+                if (next >= unique.size() || failure != null) {
+                    // nothing left so don't bother getting a session
+                    return null;
+                }
+                active++;
+            }
+            try (Session workerSession = graphDB.getSession()) {
+                int i;
+                while ((i = claim()) >= 0) {
+                    complete(i, search.search(workerSession, unique.get(i), i));
+                }
+            } catch (Exception ex) {
+                fail(ex);
+            } finally {
+                synchronized (this) {
+                    active--;
+                    notifyAll();
+                }
+            }
+            return null;
+        }
+
+        /** Wait for the workers that are running to finish, so that their sessions are closed */
+        private synchronized void awaitWorkers() {
+            while (active > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    fail(ex);
+                    return;
+                }
+            }
+        }
+
+        /** Claim the next search, waiting while it is too far ahead of the merge. -1 if there are none left. */
+        private synchronized int claim() throws InterruptedException {
+            while (failure == null && next < unique.size() && next >= limit) {
+                wait();
+            }
+            return failure == null && next < unique.size() ? next++ : -1;
+        }
+
+        /** Get the result of the search, running the next searches in this thread until it is ready */
+        private ExpansionResults await(int index) throws Exception {
+            while (true) {
+                int i;
+                synchronized (this) {
+                    if (failure != null) {
+                        throw failure;
+                    }
+                    if (done[index]) {
+                        return results[index];
+                    }
+                    if (next >= unique.size() || next >= limit) {
+                        // being run by a worker
+                        wait();
+                        continue;
+                    }
+                    i = next++;
+                }
+                if (callerSession == null) {
+                    callerSession = graphDB.getSession();
+                }
+                complete(i, search.search(callerSession, unique.get(i), i));
+            }
+        }
+
+        private synchronized void complete(int index, ExpansionResults result) {
+            results[index] = result;
+            done[index] = true;
+            notifyAll();
+        }
+
+        /** The result has been merged, so release it if no later molecule needs it and let the workers run ahead */
+        private synchronized void merged(int index, boolean lastUse) {
+            if (lastUse) {
+                results[index] = null;
+            }
+            if (index + 1 + window > limit) {
+                limit = index + 1 + window;
+                notifyAll();
+            }
+        }
+
+        private synchronized void fail(Exception ex) {
+            if (failure == null) {
+                failure = ex;
+            }
+            notifyAll();
+        }
+
+        private synchronized Exception getFailure() {
+            return failure;
+        }
     }
 }
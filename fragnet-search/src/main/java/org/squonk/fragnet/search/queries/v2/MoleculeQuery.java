@@ -50,6 +50,15 @@ public class MoleculeQuery extends AbstractQuery {
 
         // standardize the mol. It can be in smiles or molfile formats
         String stdSmiles = MolStandardize.prepareNonisoMol(mol, mimeType);
+        return executeStandardized(stdSmiles);
+    }
+
+    /** Fetch a molecule that has already been standardized using {@link MolStandardize#prepareNonisoMol(String, String)}.
+     *
+     * @param stdSmiles The standardized SMILES
+     * @return The molecule, or null if not present
+     */
+    public MoleculeNode executeStandardized(@NotNull String stdSmiles) {
 
         MoleculeNode value = getSession().writeTransaction((tx) -> {
             LOG.fine("Executing MoleculeQuery: " + MOLECULE_QUERY);
@@ -67,4 +76,17 @@ public class MoleculeQuery extends AbstractQuery {
 
         return value;
     }
+
+    /** Check whether a molecule is present in the database.
+     *
+     * @param stdSmiles The standardized SMILES (see {@link MolStandardize#prepareNonisoMol(String, String)})
+     * @return True if there is a F2 node with this SMILES
+     */
+    public boolean exists(@NotNull String stdSmiles) {
+        return getSession().writeTransaction((tx) -> {
+            LOG.fine("Executing MoleculeQuery existence check");
+            Result result = tx.run(MOLECULE_QUERY + " LIMIT 1", parameters(new Object[]{"smiles", stdSmiles}));
+            return result.hasNext();
+        });
+    }
 }
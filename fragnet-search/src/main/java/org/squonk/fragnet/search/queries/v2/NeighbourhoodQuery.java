@@ -17,10 +17,12 @@ package org.squonk.fragnet.search.queries.v2;
 
 
 import org.neo4j.driver.Session;
+import org.neo4j.driver.Record;
 import org.neo4j.driver.Result;
 import org.neo4j.driver.types.Path;
 import org.squonk.fragnet.Constants;
 import org.squonk.fragnet.chem.MolStandardize;
+import org.squonk.fragnet.search.MemoryBudget;
 import org.squonk.fragnet.search.model.v2.NeighbourhoodGraph;
 import org.squonk.fragnet.search.queries.AbstractQuery;
 import org.squonk.fragnet.search.queries.QueryAndParams;
@@ -86,6 +88,22 @@ public class NeighbourhoodQuery extends AbstractQuery {
         LOG.finer("Supplied SMILES: " + smiles);
         LOG.finer("Using SMILES: " + stdSmiles);
 
+        return executeStandardizedQuery(stdSmiles, hops, hac, rac, suppliers, groupLimit);
+    }
+
+    /** Execute the neighbourhood query for a molecule that has already been standardized using
+     * {@link MolStandardize#prepareNonisoMol(String, String)}.
+     *
+     * @see #executeNeighbourhoodQuery(String, Integer, Integer, Integer, List, Integer)
+     */
+    public NeighbourhoodGraph executeStandardizedQuery(
+            @NotNull String stdSmiles,
+            Integer hops,
+            Integer hac,
+            Integer rac,
+            List<String> suppliers,
+            Integer groupLimit) {
+
         QueryAndParams qandp = generateCypherQuery(stdSmiles, hops, hac, rac, suppliers);
 
         NeighbourhoodGraph graph = getSession().writeTransaction((tx) -> {
@@ -157,7 +175,11 @@ public class NeighbourhoodQuery extends AbstractQuery {
         NeighbourhoodGraph graph = new NeighbourhoodGraph(querySmiles, groupLimit);
         long t0 = new Date().getTime();
         AtomicInteger pathCount = new AtomicInteger(0);
-        result.stream().forEachOrdered((r) -> {
+        MemoryBudget budget = new MemoryBudget(getMemoryLimit());
+        graph.setMemoryBudget(budget);
+        // stop reading once the budget is exceeded. The remaining records are discarded by consume()
+        while (result.hasNext() && !budget.isExceeded()) {
+            Record r = result.next();
             LOG.finer("Handling record " + r);
             Map<String, Object> m = r.asMap();
             m.forEach((k, v) -> {
@@ -166,7 +188,7 @@ public class NeighbourhoodQuery extends AbstractQuery {
                 graph.add(path);
                 pathCount.incrementAndGet();
             });
-        });
+        }
         graph.setPathCount(pathCount.get());
         long t1 = new Date().getTime();
         graph.setQuery(result.consume().query().text());
@@ -174,7 +196,12 @@ public class NeighbourhoodQuery extends AbstractQuery {
         graph.setResultAvailableAfter(result.consume().resultAvailableAfter(TimeUnit.MILLISECONDS));
         graph.setProcessingTime(t1 - t0);
 
-        if (getLimit() <= graph.getPathCount()) {
+        if (budget.isExceeded()) {
+            LOG.warning("Memory limit reached: " + budget);
+            graph.setShortMessage("Incomplete results");
+            graph.setLongMessage("Results are incomplete as the memory limit of " + (getMemoryLimit() / (1024 * 1024)) +
+                    "MB for a single search was reached");
+        } else if (getLimit() <= graph.getPathCount()) {
             graph.setShortMessage("Incomplete results");
             graph.setLongMessage("Results are incomplete as the max path count of " + getLimit() + " was reached");
         }
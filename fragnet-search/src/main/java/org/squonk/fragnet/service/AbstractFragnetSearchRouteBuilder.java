@@ -2,13 +2,17 @@ package org.squonk.fragnet.service;
 
 import org.apache.camel.Exchange;
 import org.apache.camel.Message;
+import org.apache.camel.Processor;
 import org.apache.camel.builder.RouteBuilder;
 import org.squonk.fragnet.Utils;
 import org.squonk.fragnet.account.AccountData;
 import org.squonk.fragnet.chem.Calculator;
 
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.security.Principal;
 import java.util.*;
 import java.util.logging.FileHandler;
@@ -29,6 +33,8 @@ public abstract class AbstractFragnetSearchRouteBuilder extends RouteBuilder {
     private static final boolean LOG_FILE_APPEND = true;
     protected static final AccountData accountData = new AccountData();
 
+    private static final String FRAGNET_LIMIT_RETRY_AFTER_SECS = Utils.getConfiguration("FRAGNET_LIMIT_RETRY_AFTER_SECS", "10");
+
     public AbstractFragnetSearchRouteBuilder(String queryLogFileName) {
 
         Q_LOG = Logger.getLogger(queryLogFileName);
@@ -115,7 +121,144 @@ public abstract class AbstractFragnetSearchRouteBuilder extends RouteBuilder {
         }
     }
 
+    /**
+     * Write the result directly to the HTTP response so that the serialized form is never held in memory as a whole.
+     * The message body is set to null so that Camel does not write anything more.
+     * Once writing has started the response is committed, so if it then fails the error cannot be reported to the
+     * client. {@link #writeErrorResponse(Message, int, String)} aborts the response instead.
+     *
+     * @param message The message
+     * @param result  The object to serialize
+     * @param format  The format to write
+     * @param copy    If not null the output is also written to this stream. It is not closed.
+     * @return False if there is no HTTP response to write to, in which case nothing is written.
+     * @throws IOException
+     */
+    protected boolean streamResponse(Message message, Object result, ResponseFormat format, OutputStream copy) throws IOException {
+        HttpServletResponse response = message.getHeader(Exchange.HTTP_SERVLET_RESPONSE, HttpServletResponse.class);
+        if (response == null) {
+            return false;
+        }
+        response.setStatus(200);
+        response.setContentType(format.mediaType);
+        if (!format.isBinary()) {
+            response.setCharacterEncoding("UTF-8");
+        }
+        OutputStream out = response.getOutputStream();
+        if (copy != null) {
+            out = new TeeOutputStream(out, copy);
+        }
+        format.mapper.writeValue(out, result);
+        out.flush();
+        message.setBody(null);
+        message.setHeader(Exchange.HTTP_RESPONSE_CODE, 200);
+        return true;
+    }
+
+    /**
+     * Start a text response that is written in parts, for instance as each part of the results becomes available.
+     *
+     * @param message     The message
+     * @param contentType The content type of the response
+     * @return The stream to write the response to, or null if not running in a servlet, in which case the body of the
+     * message must be set as usual
+     * @throws IOException
+     */
+    protected OutputStream openResponseStream(Message message, String contentType) throws IOException {
+        HttpServletResponse response = message.getHeader(Exchange.HTTP_SERVLET_RESPONSE, HttpServletResponse.class);
+        if (response == null) {
+            return null;
+        }
+        response.setStatus(200);
+        response.setContentType(contentType);
+        response.setCharacterEncoding("UTF-8");
+        message.setBody(null);
+        message.setHeader(Exchange.HTTP_RESPONSE_CODE, 200);
+        return response.getOutputStream();
+    }
+
+    /** Writes to a second stream as well as the one it wraps */
+    private static class TeeOutputStream extends FilterOutputStream {
+
+        private final OutputStream copy;
+
+        TeeOutputStream(OutputStream out, OutputStream copy) {
+            super(out);
+            this.copy = copy;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            copy.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            copy.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+            copy.flush();
+        }
+    }
+
+    /**
+     * Run the processor only once the limiter admits the request. If too many requests are already waiting the
+     * response is 429 (Too Many Requests), and if the request waits too long it is 503 (Service Unavailable). Both
+     * include a Retry-After header of FRAGNET_LIMIT_RETRY_AFTER_SECS (default 10) seconds.
+     *
+     * @param limiter   The limiter for this type of request
+     * @param processor The processor that handles the request
+     * @return The processor to add to the route
+     */
+    protected Processor admit(ConcurrencyLimiter limiter, Processor processor) {
+        return (Exchange exch) -> {
+            ConcurrencyLimiter.Admission admission = limiter.enter();
+            if (admission == ConcurrencyLimiter.Admission.ADMITTED) {
+                try {
+                    processor.process(exch);
+                } finally {
+                    limiter.exit();
+                }
+            } else {
+                Message message = exch.getIn();
+                LOG.info(String.format("Rejected %s request (%s)", limiter.getName(), admission));
+                message.setHeader("Retry-After", FRAGNET_LIMIT_RETRY_AFTER_SECS);
+                if (admission == ConcurrencyLimiter.Admission.QUEUE_FULL) {
+                    writeErrorResponse(message, 429,
+                            "{\"error\": \"Too Many Requests\",\"message\": \"Too many " + limiter.getName() + " requests are waiting\"}");
+                } else {
+                    writeErrorResponse(message, 503,
+                            "{\"error\": \"Busy\",\"message\": \"Timed out waiting to run the " + limiter.getName() + " request\"}");
+                }
+            }
+        };
+    }
+
+    /**
+     * Set the error as the response. If the response has already been committed, e.g. because the failure happened
+     * part way through streaming the result, neither the status nor the content can be sent so the response is aborted
+     * instead (see {@link ResponseAbortFilter}). The error should already have been logged.
+     *
+     * @param message   The message
+     * @param errorCode The HTTP status code
+     * @param content   The error as JSON
+     */
     protected void writeErrorResponse(Message message, int errorCode, String content) {
+        HttpServletResponse response = message.getHeader(Exchange.HTTP_SERVLET_RESPONSE, HttpServletResponse.class);
+        if (response != null && response.isCommitted()) {
+            LOG.warning("Response already committed so aborting it instead of sending " + errorCode);
+            HttpServletRequest request = message.getHeader(Exchange.HTTP_SERVLET_REQUEST, HttpServletRequest.class);
+            if (request != null) {
+                ResponseAbortFilter.abort(request);
+            }
+            message.setBody(null);
+            return;
+        }
         message.setBody(content);
         message.setHeader(Exchange.HTTP_RESPONSE_CODE, errorCode);
     }
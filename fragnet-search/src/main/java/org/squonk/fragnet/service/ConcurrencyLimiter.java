@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2023 Informatics Matters Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squonk.fragnet.service;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Limits the number of requests of a particular type (e.g. neighbourhood searches) that are handled at once, so that
+ * expensive searches cannot take over the database and CPU and hold up everything else.
+ * <p>
+ * Requests beyond the limit wait in turn, but only up to a maximum number of waiting requests and for a maximum time.
+ * Requests that cannot wait, because too many are already waiting, are rejected straight away. Those that wait too long
+ * are rejected when the time expires. Either way the request should be retried later.
+ * <p>
+ * The number of requests that are active and waiting, the total time spent waiting and the number rejected are reported
+ * in the metrics, named admission_&lt;name&gt;_xxx.
+ * <p>
+ * Thread safe.
+ */
+public class ConcurrencyLimiter {
+
+    private static final Logger LOG = Logger.getLogger(ConcurrencyLimiter.class.getName());
+
+    public enum Admission {
+        /** The request can go ahead. {@link #exit()} must be called when it is complete. */
+        ADMITTED,
+        /** Too many requests are already waiting */
+        QUEUE_FULL,
+        /** The request waited for the maximum time */
+        TIMED_OUT
+    }
+
+    private final String name;
+    private final int maxActive;
+    private final int maxWaiting;
+    private final long maxWaitMillis;
+    private final Semaphore permits;
+    private final AtomicInteger waiting = new AtomicInteger(0);
+
+    private final Gauge activeGauge;
+    private final Gauge waitingGauge;
+    private final Counter waitDuration;
+    private final Counter rejectedTotal;
+    private final Counter timeoutsTotal;
+
+    /**
+     * @param name          The name of the type of request, used to name the metrics
+     * @param maxActive     The maximum number of requests handled at once. Zero or less means no limit.
+     * @param maxWaiting    The maximum number of requests that can wait
+     * @param maxWaitMillis The maximum time a request waits in milliseconds
+     */
+    public ConcurrencyLimiter(String name, int maxActive, int maxWaiting, long maxWaitMillis) {
+        this.name = name;
+        this.maxActive = maxActive;
+        this.maxWaiting = Math.max(0, maxWaiting);
+        this.maxWaitMillis = maxWaitMillis;
+        // fair so that requests are handled in the order they arrive
+        this.permits = new Semaphore(Math.max(0, maxActive), true);
+
+        activeGauge = Gauge.build()
+                .name("admission_" + name + "_active")
+                .help("Number of " + name + " requests being handled")
+                .register();
+        waitingGauge = Gauge.build()
+                .name("admission_" + name + "_waiting")
+                .help("Number of " + name + " requests waiting to be handled")
+                .register();
+        waitDuration = Counter.build()
+                .name("duration_admission_" + name + "_wait_ns")
+                .help("Total time " + name + " requests spent waiting to be handled")
+                .register();
+        rejectedTotal = Counter.build()
+                .name("admission_" + name + "_rejected_total")
+                .help("Total number of " + name + " requests rejected as too many were waiting")
+                .register();
+        timeoutsTotal = Counter.build()
+                .name("admission_" + name + "_timeouts_total")
+                .help("Total number of " + name + " requests rejected as they waited too long")
+                .register();
+
+        if (maxActive > 0) {
+            LOG.info(String.format("%s requests are limited to %s at once, with %s waiting for up to %sms",
+                    name, maxActive, this.maxWaiting, maxWaitMillis));
+        } else {
+            LOG.info(name + " requests are not limited");
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Wait until the request can be handled.
+     *
+     * @return Whether the request can go ahead. If it is ADMITTED then {@link #exit()} must be called once it is done.
+     * @throws InterruptedException
+     */
+    public Admission enter() throws InterruptedException {
+        if (maxActive <= 0) {
+            activeGauge.inc();
+            return Admission.ADMITTED;
+        }
+        // a timed acquire respects the fairness, unlike tryAcquire()
+        if (permits.tryAcquire(0, TimeUnit.MILLISECONDS)) {
+            activeGauge.inc();
+            return Admission.ADMITTED;
+        }
+        if (waiting.incrementAndGet() > maxWaiting) {
+            waiting.decrementAndGet();
+            rejectedTotal.inc();
+            return Admission.QUEUE_FULL;
+        }
+        waitingGauge.inc();
+        long t0 = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS)) {
+                timeoutsTotal.inc();
+                return Admission.TIMED_OUT;
+            }
+            activeGauge.inc();
+            return Admission.ADMITTED;
+        } finally {
+            waitDuration.inc((double) (System.nanoTime() - t0));
+            waiting.decrementAndGet();
+            waitingGauge.dec();
+        }
+    }
+
+    /**
+     * Signal that an admitted request is complete, allowing the next to go ahead.
+     */
+    public void exit() {
+        activeGauge.dec();
+        if (maxActive > 0) {
+            permits.release();
+        }
+    }
+
+    /**
+     * @return The number of requests that are waiting
+     */
+    public int getWaiting() {
+        return waiting.get();
+    }
+}
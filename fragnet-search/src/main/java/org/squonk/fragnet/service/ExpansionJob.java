@@ -0,0 +1,247 @@
+/*
+ * Copyright (c) 2023 Informatics Matters Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squonk.fragnet.service;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+import org.squonk.fragnet.search.queries.v2.HitExpander;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The state of an expansion multi search that is run as a job by the {@link ExpansionJobManager}. This is what is
+ * reported when the status of the job is requested, and is also saved with the job so that it is known after a
+ * restart.
+ * <p>
+ * The progress is updated by the thread running the job while it is read by others, so it is held in volatile fields.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+@JsonPropertyOrder({"id", "owner", "status", "submitted", "started", "finished", "queryCount", "queriesDone", "uniqueQueryCount", "hitCount",
+        "error", "mimeType", "idProp", "hops", "hacMin", "hacMax", "racMin", "racMax", "suppliers"})
+public class ExpansionJob {
+
+    public enum Status {QUEUED, RUNNING, COMPLETED, FAILED}
+
+    private String id;
+    private String owner;
+    private volatile Status status;
+    private String submitted;
+    private volatile String started;
+    private volatile String finished;
+    private int queryCount;
+    private volatile int queriesDone;
+    private volatile int uniqueQueryCount;
+    private volatile int hitCount;
+    private volatile String error;
+
+    private String mimeType;
+    private String idProp;
+    private Integer hops;
+    private Integer hacMin;
+    private Integer hacMax;
+    private Integer racMin;
+    private Integer racMax;
+    private List<String> suppliers;
+
+    /** For deserialization */
+    public ExpansionJob() {
+    }
+
+    public ExpansionJob(String id, String mimeType, String idProp, Integer hops,
+                        Integer hacMin, Integer hacMax, Integer racMin, Integer racMax, List<String> suppliers) {
+        this.id = id;
+        this.mimeType = mimeType;
+        this.idProp = idProp;
+        this.hops = hops;
+        this.hacMin = hacMin;
+        this.hacMax = hacMax;
+        this.racMin = racMin;
+        this.racMax = racMax;
+        this.suppliers = suppliers;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /** The user that submitted the job */
+    public String getOwner() {
+        return owner;
+    }
+
+    public void setOwner(String owner) {
+        this.owner = owner;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public void setStatus(Status status) {
+        this.status = status;
+    }
+
+    /** Whether the job has completed or failed */
+    public boolean hasFinished() {
+        return status == Status.COMPLETED || status == Status.FAILED;
+    }
+
+    public String getSubmitted() {
+        return submitted;
+    }
+
+    public void setSubmitted(String submitted) {
+        this.submitted = submitted;
+    }
+
+    public String getStarted() {
+        return started;
+    }
+
+    public void setStarted(String started) {
+        this.started = started;
+    }
+
+    public String getFinished() {
+        return finished;
+    }
+
+    public void setFinished(String finished) {
+        this.finished = finished;
+    }
+
+    /** The number of molecules to expand */
+    public int getQueryCount() {
+        return queryCount;
+    }
+
+    public void setQueryCount(int queryCount) {
+        this.queryCount = queryCount;
+    }
+
+    /** The number of molecules that have been expanded, and therefore the number of results that are available */
+    public int getQueriesDone() {
+        return queriesDone;
+    }
+
+    public void setQueriesDone(int queriesDone) {
+        this.queriesDone = queriesDone;
+    }
+
+    /** The number of searches run for the molecules that have been expanded. Molecules that standardize to the same
+     * SMILES as another in the same chunk share its results.
+     */
+    public int getUniqueQueryCount() {
+        return uniqueQueryCount;
+    }
+
+    public void setUniqueQueryCount(int uniqueQueryCount) {
+        this.uniqueQueryCount = uniqueQueryCount;
+    }
+
+    /** The total number of hits of the molecules that have been expanded */
+    public int getHitCount() {
+        return hitCount;
+    }
+
+    public void setHitCount(int hitCount) {
+        this.hitCount = hitCount;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public void setError(String error) {
+        this.error = error;
+    }
+
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    public void setMimeType(String mimeType) {
+        this.mimeType = mimeType;
+    }
+
+    public String getIdProp() {
+        return idProp;
+    }
+
+    public void setIdProp(String idProp) {
+        this.idProp = idProp;
+    }
+
+    public Integer getHops() {
+        return hops;
+    }
+
+    public void setHops(Integer hops) {
+        this.hops = hops;
+    }
+
+    public Integer getHacMin() {
+        return hacMin;
+    }
+
+    public void setHacMin(Integer hacMin) {
+        this.hacMin = hacMin;
+    }
+
+    public Integer getHacMax() {
+        return hacMax;
+    }
+
+    public void setHacMax(Integer hacMax) {
+        this.hacMax = hacMax;
+    }
+
+    public Integer getRacMin() {
+        return racMin;
+    }
+
+    public void setRacMin(Integer racMin) {
+        this.racMin = racMin;
+    }
+
+    public Integer getRacMax() {
+        return racMax;
+    }
+
+    public void setRacMax(Integer racMax) {
+        this.racMax = racMax;
+    }
+
+    public List<String> getSuppliers() {
+        return suppliers;
+    }
+
+    public void setSuppliers(List<String> suppliers) {
+        this.suppliers = suppliers;
+    }
+
+    /** The parameters of the search, as they are reported in the results */
+    @JsonIgnore
+    public Map<String, Object> getParameters() {
+        return HitExpander.createParameters(hops, hacMin, hacMax, racMin, racMax, suppliers);
+    }
+}
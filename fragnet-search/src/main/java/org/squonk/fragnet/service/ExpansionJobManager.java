@@ -0,0 +1,423 @@
+/*
+ * Copyright (c) 2023 Informatics Matters Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squonk.fragnet.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.prometheus.client.Counter;
+import org.squonk.fragnet.Constants;
+import org.squonk.fragnet.Utils;
+import org.squonk.fragnet.chem.ConvertedSmilesMolsReader;
+import org.squonk.fragnet.search.model.v2.ConvertedSmilesMols;
+import org.squonk.fragnet.search.model.v2.ExpandMultiQueryResult;
+import org.squonk.fragnet.search.queries.v2.HitExpander;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs expansion multi searches as jobs, so that large searches do not need a request to be held open until they
+ * complete. The job is submitted, its status polled, and the results fetched a page at a time, including while the
+ * job is still running.
+ * <p>
+ * The jobs are run FRAGNET_JOB_THREADS (default 2) at a time, and at most FRAGNET_JOB_MAX_QUEUED (default 10) can be
+ * waiting to run. Each job has a directory in FRAGNET_JOB_DIR (default fragnet-jobs in the temp directory) that holds
+ * the uploaded molecules (at most FRAGNET_JOB_MAX_INPUT_MB, default 100, megabytes), the results (one line of JSON per molecule), an index of where each result starts in the
+ * results file, so that a page of results can be read without reading those that precede it, and the status of the
+ * job. The jobs are loaded from there on startup, though any that were not complete are marked as failed. Finished
+ * jobs are deleted after FRAGNET_JOB_RETENTION_HOURS (default 24).
+ * <p>
+ * A job can only be seen by the user that submitted it.
+ */
+@Singleton
+public class ExpansionJobManager implements AutoCloseable {
+
+    private static final Logger LOG = Logger.getLogger(ExpansionJobManager.class.getName());
+
+    private static final String FRAGNET_JOB_DIR = Utils.getConfiguration("FRAGNET_JOB_DIR",
+            new File(System.getProperty("java.io.tmpdir"), "fragnet-jobs").getPath());
+    private static final String FRAGNET_JOB_THREADS = Utils.getConfiguration("FRAGNET_JOB_THREADS", "2");
+    private static final String FRAGNET_JOB_MAX_QUEUED = Utils.getConfiguration("FRAGNET_JOB_MAX_QUEUED", "10");
+    private static final String FRAGNET_JOB_RETENTION_HOURS = Utils.getConfiguration("FRAGNET_JOB_RETENTION_HOURS", "24");
+    private static final String FRAGNET_JOB_MAX_INPUT_MB = Utils.getConfiguration("FRAGNET_JOB_MAX_INPUT_MB", "100");
+
+    private static final String INPUT_FILE = "input";
+    private static final String RESULTS_FILE = "results.ndjson";
+    /** The position in the results file of the start of each result, as longs */
+    private static final String INDEX_FILE = "results.index";
+    private static final int INDEX_ENTRY_SIZE = 8;
+    private static final String STATUS_FILE = "status.json";
+
+    private static final Counter jobsSubmittedTotal = Counter.build()
+            .name("jobs_expansion_submitted_total")
+            .help("Total number of expansion jobs submitted")
+            .register();
+    private static final Counter jobsRejectedTotal = Counter.build()
+            .name("jobs_expansion_rejected_total")
+            .help("Total number of expansion jobs rejected because too many were queued")
+            .register();
+    private static final Counter jobsFailedTotal = Counter.build()
+            .name("jobs_expansion_failed_total")
+            .help("Total number of expansion jobs that failed")
+            .register();
+
+    private final File dir;
+    private final long retention;
+    private final long maxInputSize;
+    private final HitExpander expander;
+    private final ThreadPoolExecutor executor;
+    private final Map<String, ExpansionJob> jobs = new ConcurrentHashMap<>();
+    private final ObjectMapper mapper = Utils.getObjectMapper();
+
+    @Inject
+    public ExpansionJobManager(GraphDB graphdb) {
+        this(new File(FRAGNET_JOB_DIR),
+                Integer.parseInt(FRAGNET_JOB_THREADS),
+                Integer.parseInt(FRAGNET_JOB_MAX_QUEUED),
+                Long.parseLong(FRAGNET_JOB_RETENTION_HOURS) * 60 * 60 * 1000,
+                Long.parseLong(FRAGNET_JOB_MAX_INPUT_MB) * 1024 * 1024,
+                new HitExpander(graphdb));
+    }
+
+    /**
+     * @param dir       The directory for the jobs
+     * @param threads   The number of jobs that can run at once
+     * @param maxQueued The number of jobs that can be waiting to run
+     * @param retention The time in milliseconds that finished jobs are kept
+     * @param expander  Runs the searches
+     */
+    public ExpansionJobManager(File dir, int threads, int maxQueued, long retention, HitExpander expander) {
+        this(dir, threads, maxQueued, retention, Long.parseLong(FRAGNET_JOB_MAX_INPUT_MB) * 1024 * 1024, expander);
+    }
+
+    /**
+     * @param dir          The directory for the jobs
+     * @param threads      The number of jobs that can run at once
+     * @param maxQueued    The number of jobs that can be waiting to run
+     * @param retention    The time in milliseconds that finished jobs are kept
+     * @param maxInputSize The maximum size in bytes of the molecules of a job
+     * @param expander     Runs the searches
+     */
+    public ExpansionJobManager(File dir, int threads, int maxQueued, long retention, long maxInputSize,
+                               HitExpander expander) {
+        this.dir = dir;
+        this.retention = retention;
+        this.maxInputSize = maxInputSize;
+        this.expander = expander;
+        AtomicInteger count = new AtomicInteger(0);
+        this.executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(maxQueued), (r) -> {
+            Thread t = new Thread(r, "fragnet-job-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.executor.allowCoreThreadTimeOut(true);
+        dir.mkdirs();
+        load();
+        LOG.info(String.format("Expansion jobs are in %s, %s running at once, %s queued, %s loaded",
+                dir.getPath(), threads, maxQueued, jobs.size()));
+    }
+
+    /** The maximum size in bytes of the molecules of a job */
+    public long getMaxInputSize() {
+        return maxInputSize;
+    }
+
+    /**
+     * Submit an expansion multi search.
+     *
+     * @param owner    The user submitting the job, who is the only one that can see it
+     * @param input    The molecules, which are saved before this method returns
+     * @param mimeType The format of the molecules, Constants.MIME_TYPE_SMILES or Constants.MIME_TYPE_SDFILE
+     * @param idProp   For SDF, the property for the ID. Can be null.
+     * @return The job
+     * @throws IOException                If the molecules cannot be saved
+     * @throws InputTooLargeException     If the molecules are larger than the maximum size
+     * @throws RejectedExecutionException If too many jobs are waiting to run
+     */
+    public ExpansionJob submit(String owner, InputStream input, String mimeType, String idProp, Integer hops,
+                               Integer hacMin, Integer hacMax, Integer racMin, Integer racMax,
+                               List<String> suppliers) throws IOException {
+
+        if (!Constants.MIME_TYPE_SMILES.equals(mimeType) && !Constants.MIME_TYPE_SDFILE.equals(mimeType)) {
+            throw new IllegalArgumentException("Unexpected content type: " + mimeType);
+        }
+        expire();
+
+        ExpansionJob job = new ExpansionJob(UUID.randomUUID().toString(), mimeType, idProp, hops,
+                hacMin, hacMax, racMin, racMax, suppliers);
+        job.setOwner(owner);
+        File jobDir = new File(dir, job.getId());
+        if (!jobDir.mkdirs()) {
+            throw new IOException("Failed to create job directory " + jobDir.getPath());
+        }
+        try {
+            File inputFile = new File(jobDir, INPUT_FILE);
+            copyInput(input, inputFile);
+            job.setQueryCount(countQueries(inputFile, mimeType));
+            job.setStatus(ExpansionJob.Status.QUEUED);
+            job.setSubmitted(Utils.getCurrentTime());
+            save(job);
+            jobs.put(job.getId(), job);
+            executor.execute(() -> run(job));
+        } catch (IOException | RuntimeException ex) {
+            jobs.remove(job.getId());
+            delete(jobDir);
+            if (ex instanceof RejectedExecutionException) {
+                jobsRejectedTotal.inc();
+            }
+            throw ex;
+        }
+        jobsSubmittedTotal.inc();
+        LOG.info(String.format("Submitted job %s with %s queries", job.getId(), job.getQueryCount()));
+        return job;
+    }
+
+    /** Save the molecules, failing as soon as they exceed the maximum size */
+    private void copyInput(InputStream input, File file) throws IOException {
+        long size = 0;
+        byte[] buffer = new byte[8192];
+        try (OutputStream out = new FileOutputStream(file)) {
+            int n;
+            while ((n = input.read(buffer)) >= 0) {
+                size += n;
+                if (size > maxInputSize) {
+                    throw new InputTooLargeException(maxInputSize);
+                }
+                out.write(buffer, 0, n);
+            }
+        }
+    }
+
+    /**
+     * @param id    The ID of the job
+     * @param owner The user requesting the job
+     * @return The job, or null if there is no such job (e.g. it has been deleted) or it belongs to a different user
+     */
+    public ExpansionJob getJob(String id, String owner) {
+        expire();
+        ExpansionJob job = jobs.get(id);
+        return job != null && Objects.equals(job.getOwner(), owner) ? job : null;
+    }
+
+    /**
+     * Write a page of the results of the job. Each result is a line of JSON for one of the molecules, in the order
+     * of the molecules. The results are available as the job runs.
+     *
+     * @param job    The job
+     * @param offset The index of the first result. Must not be negative.
+     * @param limit  The maximum number of results. Must not be negative.
+     * @param out    Where to write the results
+     * @return The number of results that were written
+     * @throws IOException
+     */
+    public int writeResults(ExpansionJob job, int offset, int limit, OutputStream out) throws IOException {
+        if (offset < 0 || limit < 0) {
+            throw new IllegalArgumentException("Offset and limit cannot be negative");
+        }
+        // only the results that are complete, as the last line may be being written
+        int available = Math.min(job.getQueriesDone() - offset, limit);
+        if (available <= 0) {
+            return 0;
+        }
+        File jobDir = new File(dir, job.getId());
+        long start;
+        try (RandomAccessFile index = new RandomAccessFile(new File(jobDir, INDEX_FILE), "r")) {
+            index.seek((long) offset * INDEX_ENTRY_SIZE);
+            start = index.readLong();
+        }
+        int count = 0;
+        try (RandomAccessFile results = new RandomAccessFile(new File(jobDir, RESULTS_FILE), "r")) {
+            results.seek(start);
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(Channels.newInputStream(results.getChannel()), StandardCharsets.UTF_8));
+            Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+            String line;
+            while (count < available && (line = reader.readLine()) != null) {
+                writer.write(line);
+                writer.write('\n');
+                count++;
+            }
+            writer.flush();
+        }
+        return count;
+    }
+
+    private void run(ExpansionJob job) {
+        File jobDir = new File(dir, job.getId());
+        File inputFile = new File(jobDir, INPUT_FILE);
+        job.setStatus(ExpansionJob.Status.RUNNING);
+        job.setStarted(Utils.getCurrentTime());
+        saveQuietly(job);
+        LOG.info("Running job " + job.getId());
+
+        try (ConvertedSmilesMolsReader reader = new ConvertedSmilesMolsReader(
+                Files.newBufferedReader(inputFile.toPath(), StandardCharsets.UTF_8),
+                job.getMimeType(), job.getIdProp(), HitExpander.getChunkSize());
+             OutputStream out = new BufferedOutputStream(new FileOutputStream(new File(jobDir, RESULTS_FILE)));
+             DataOutputStream index = new DataOutputStream(
+                     new BufferedOutputStream(new FileOutputStream(new File(jobDir, INDEX_FILE))))) {
+
+            long position = 0;
+            ConvertedSmilesMols chunk;
+            while ((chunk = reader.nextChunk()) != null) {
+                List<ExpandMultiQueryResult> results = expander.expandMolecules(chunk, job.getHops(),
+                        job.getHacMin(), job.getHacMax(), job.getRacMin(), job.getRacMax(), job.getSuppliers());
+                int hits = job.getHitCount();
+                for (ExpandMultiQueryResult result : results) {
+                    byte[] line = mapper.writeValueAsBytes(result);
+                    index.writeLong(position);
+                    out.write(line);
+                    out.write('\n');
+                    position += line.length + 1;
+                    hits += result.getHitCount();
+                }
+                // the results must be written before they are reported as done
+                out.flush();
+                index.flush();
+                job.setHitCount(hits);
+                job.setUniqueQueryCount(job.getUniqueQueryCount() + HitExpander.countUniqueSmiles(chunk.getMolecules()));
+                job.setQueriesDone(job.getQueriesDone() + results.size());
+                saveQuietly(job);
+            }
+            job.setStatus(ExpansionJob.Status.COMPLETED);
+        } catch (Exception ex) {
+            LOG.log(Level.SEVERE, "Job " + job.getId() + " failed", ex);
+            jobsFailedTotal.inc();
+            job.setError(ex.getLocalizedMessage());
+            job.setStatus(ExpansionJob.Status.FAILED);
+        }
+        job.setFinished(Utils.getCurrentTime());
+        inputFile.delete();
+        saveQuietly(job);
+        LOG.info(String.format("Job %s %s after %s queries", job.getId(), job.getStatus(), job.getQueriesDone()));
+    }
+
+    /**
+     * Count the molecules in the input in the same way as they are read (see {@link ConvertedSmilesMolsReader}),
+     * ignoring blank SMILES lines.
+     */
+    static int countQueries(File file, String mimeType) throws IOException {
+        boolean smiles = Constants.MIME_TYPE_SMILES.equals(mimeType);
+        int count = 0;
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (smiles ? !line.trim().isEmpty() : line.startsWith("$$$$")) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Load the jobs from the directory. Jobs that had not finished were interrupted so they are marked as failed.
+     */
+    private void load() {
+        File[] dirs = dir.listFiles(File::isDirectory);
+        if (dirs == null) {
+            return;
+        }
+        for (File jobDir : dirs) {
+            File statusFile = new File(jobDir, STATUS_FILE);
+            try {
+                ExpansionJob job = mapper.readValue(statusFile, ExpansionJob.class);
+                if (!job.hasFinished()) {
+                    job.setStatus(ExpansionJob.Status.FAILED);
+                    job.setError("Interrupted by a restart of the service");
+                    job.setFinished(Utils.getCurrentTime());
+                    new File(jobDir, INPUT_FILE).delete();
+                    save(job);
+                }
+                jobs.put(job.getId(), job);
+            } catch (IOException ex) {
+                LOG.log(Level.WARNING, "Failed to load job from " + jobDir.getPath() + ". Deleting it", ex);
+                delete(jobDir);
+            }
+        }
+        expire();
+    }
+
+    /**
+     * Delete the jobs that finished longer ago than the retention time.
+     */
+    void expire() {
+        long cutoff = System.currentTimeMillis() - retention;
+        Iterator<ExpansionJob> it = jobs.values().iterator();
+        while (it.hasNext()) {
+            ExpansionJob job = it.next();
+            File jobDir = new File(dir, job.getId());
+            // the status is last saved when the job finishes
+            if (job.hasFinished() && new File(jobDir, STATUS_FILE).lastModified() < cutoff) {
+                LOG.info("Deleting job " + job.getId());
+                it.remove();
+                delete(jobDir);
+            }
+        }
+    }
+
+    /**
+     * Save the status of the job, replacing the file atomically so that it is never seen partly written.
+     */
+    private void save(ExpansionJob job) throws IOException {
+        File jobDir = new File(dir, job.getId());
+        File tmp = new File(jobDir, STATUS_FILE + ".tmp");
+        mapper.writeValue(tmp, job);
+        Files.move(tmp.toPath(), new File(jobDir, STATUS_FILE).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void saveQuietly(ExpansionJob job) {
+        try {
+            save(job);
+        } catch (IOException ex) {
+            LOG.log(Level.WARNING, "Failed to save status of job " + job.getId(), ex);
+        }
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                delete(f);
+            }
+        }
+        file.delete();
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    /** The molecules of a job are larger than the maximum size */
+    public static class InputTooLargeException extends IOException {
+
+        public InputTooLargeException(long maxSize) {
+            super("The molecules exceed the maximum size of " + maxSize + " bytes");
+        }
+    }
+}
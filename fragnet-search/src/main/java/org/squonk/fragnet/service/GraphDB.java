@@ -27,6 +27,10 @@ public class GraphDB implements AutoCloseable {
     private static final String NEO4J_USER = Utils.getConfiguration("NEO4J_USER", "neo4j");
     private static final String NEO4J_PASSWORD = Utils.getConfiguration("NEO4J_PASSWORD", null);
     private static final String NEO4J_URL = "bolt://" + NEO4J_SERVER + ":" + NEO4J_PORT;
+    /** Identifies the data that is loaded in the database. Anything that is cached must be keyed by this so that
+     * cached results are not used once the database is updated.
+     */
+    private static final String FRAGNET_DB_VERSION = Utils.getConfiguration("FRAGNET_DB_VERSION", "unversioned");
 
     private Future<Driver> future = null;
     /** Series of delays to try when getting a connection to the database.
@@ -40,6 +44,14 @@ public class GraphDB implements AutoCloseable {
         LOG.info("Using to Neo4j at " + NEO4J_URL + " as user " + NEO4J_USER);
     }
 
+    /** The version of the data in the database, as defined by the FRAGNET_DB_VERSION environment variable.
+     *
+     * @return The version string. Never null.
+     */
+    public String getDatabaseVersion() {
+        return FRAGNET_DB_VERSION;
+    }
+
     /** Utility method that allows to check if the database can be connected to
      *
      * @param timeout_secs The number of seconds to wait for
@@ -0,0 +1,334 @@
+/*
+ * Copyright (c) 2023 Informatics Matters Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squonk.fragnet.service;
+
+import org.neo4j.driver.Result;
+import org.neo4j.driver.Session;
+import org.squonk.fragnet.Utils;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bloom filter of the SMILES of every F2 node in the database that allows molecules that are definitely not in the
+ * database to be rejected without running a query. A molecule that passes the filter may still be absent (by default
+ * about 1% of the time) but a molecule that fails the filter is never present.
+ * <p>
+ * The bits are held off-heap. The filter is loaded (memory mapped) from the file defined by FRAGNET_SMILES_FILTER_FILE
+ * if that exists and was generated for the current database version (see {@link GraphDB#getDatabaseVersion()}).
+ * Otherwise, if FRAGNET_SMILES_FILTER_BUILD is true, it is built from the database in a background thread at startup
+ * and then written to that file if one is defined. Until the filter is available every molecule passes.
+ * <p>
+ * The file can also be generated offline from a list of SMILES using the {@link #main(String[])} method, e.g. from an
+ * export of the F2 smiles property.
+ * The SMILES must be those that are stored in the database (i.e. standardized using
+ * {@link org.squonk.fragnet.chem.MolStandardize#prepareNonisoMol(String, String)}).
+ */
+@Singleton
+public class MoleculeFilter {
+
+    private static final Logger LOG = Logger.getLogger(MoleculeFilter.class.getName());
+
+    private static final String FRAGNET_SMILES_FILTER_FILE = Utils.getConfiguration("FRAGNET_SMILES_FILTER_FILE", "");
+    private static final String FRAGNET_SMILES_FILTER_BUILD = Utils.getConfiguration("FRAGNET_SMILES_FILTER_BUILD", "false");
+    private static final String FRAGNET_SMILES_FILTER_FPP = Utils.getConfiguration("FRAGNET_SMILES_FILTER_FPP", "0.01");
+
+    private static final int MAGIC = 0x464e4246;
+    private static final int FORMAT_VERSION = 1;
+    private static final String SMILES_QUERY = "MATCH (m:F2) RETURN m.smiles";
+    private static final String COUNT_QUERY = "MATCH (m:F2) RETURN count(m)";
+
+    private final String dbVersion;
+    private volatile Bits bits;
+
+    @Inject
+    public MoleculeFilter(GraphDB graphdb) {
+        this(graphdb.getDatabaseVersion());
+        File file = FRAGNET_SMILES_FILTER_FILE.isEmpty() ? null : new File(FRAGNET_SMILES_FILTER_FILE);
+        if (file != null && file.exists()) {
+            try {
+                load(file);
+            } catch (IOException ex) {
+                LOG.log(Level.WARNING, "Failed to load SMILES filter from " + file.getPath(), ex);
+            }
+        }
+        if (bits == null && Boolean.parseBoolean(FRAGNET_SMILES_FILTER_BUILD)) {
+            Thread t = new Thread(() -> build(graphdb, file), "smiles-filter-build");
+            t.setDaemon(true);
+            t.start();
+        } else if (bits == null) {
+            LOG.info("SMILES filter is not enabled");
+        }
+    }
+
+    /**
+     * Create a filter that is not yet populated.
+     *
+     * @param dbVersion The version of the database that the filter is for
+     */
+    public MoleculeFilter(String dbVersion) {
+        this.dbVersion = dbVersion;
+    }
+
+    public boolean isReady() {
+        return bits != null;
+    }
+
+    /**
+     * Check whether the molecule could be in the database.
+     *
+     * @param stdSmiles The standardized SMILES
+     * @return False if the molecule is definitely not in the database. True if it might be or if the filter is not
+     * yet available.
+     */
+    public boolean mightContain(String stdSmiles) {
+        Bits b = bits;
+        return b == null || b.mightContain(stdSmiles);
+    }
+
+    /**
+     * Load the filter from a file previously written by {@link #write(File)}. The file is ignored if it is for a
+     * different database version.
+     *
+     * @param file The file
+     * @return Whether the filter was loaded
+     * @throws IOException If the file cannot be read or is not a valid filter file
+     */
+    public boolean load(File file) throws IOException {
+        try (FileChannel channel = new RandomAccessFile(file, "r").getChannel()) {
+            long size = channel.size();
+            if (size < 16) {
+                throw new IOException("Not a SMILES filter file: " + file.getPath());
+            }
+            ByteBuffer header = readFully(channel, 16, 0);
+            if (header.getInt() != MAGIC || header.getInt() != FORMAT_VERSION) {
+                throw new IOException("Not a SMILES filter file: " + file.getPath());
+            }
+            int numHashes = header.getInt();
+            int versionLength = header.getInt();
+            if (numHashes < 1 || versionLength < 0 || versionLength > size - 16) {
+                throw new IOException("Corrupt SMILES filter file: " + file.getPath());
+            }
+            long start = 16 + versionLength;
+            long wordsLength = size - start;
+            if (wordsLength < 8 || wordsLength % 8 != 0 || wordsLength > Integer.MAX_VALUE) {
+                throw new IOException("Corrupt SMILES filter file: " + file.getPath());
+            }
+            String fileVersion = new String(readFully(channel, versionLength, 16).array(), StandardCharsets.UTF_8);
+            if (!dbVersion.equals(fileVersion)) {
+                LOG.info("SMILES filter " + file.getPath() + " is for database version " + fileVersion + ". Ignoring.");
+                return false;
+            }
+            // the mapping remains valid after the channel is closed
+            ByteBuffer words = channel.map(FileChannel.MapMode.READ_ONLY, start, wordsLength);
+            bits = new Bits(words, numHashes);
+            LOG.info(String.format("Loaded SMILES filter from %s (%s bits, %s hashes)", file.getPath(), bits.numBits, numHashes));
+            return true;
+        }
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, int length, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of file");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Write the filter to a file so that it can be loaded using {@link #load(File)}.
+     * The file is replaced atomically.
+     *
+     * @param file The file
+     * @throws IOException
+     */
+    public void write(File file) throws IOException {
+        Bits b = bits;
+        if (b == null) {
+            throw new IllegalStateException("SMILES filter is not populated");
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        byte[] version = dbVersion.getBytes(StandardCharsets.UTF_8);
+        try (FileChannel channel = new RandomAccessFile(tmp, "rw").getChannel()) {
+            channel.truncate(0);
+            ByteBuffer header = ByteBuffer.allocate(16 + version.length);
+            header.putInt(MAGIC).putInt(FORMAT_VERSION).putInt(b.numHashes).putInt(version.length).put(version);
+            header.flip();
+            channel.write(header);
+            ByteBuffer words = b.words.duplicate();
+            words.clear();
+            while (words.hasRemaining()) {
+                channel.write(words);
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        LOG.info("Wrote SMILES filter to " + file.getPath());
+    }
+
+    /**
+     * Populate the filter with these SMILES, replacing any current contents.
+     *
+     * @param smiles            The standardized SMILES, one per line
+     * @param expectedInsertions The number of SMILES
+     * @param fpp               The acceptable false positive probability
+     * @return The number of SMILES that were added
+     * @throws IOException
+     */
+    public long populate(BufferedReader smiles, long expectedInsertions, double fpp) throws IOException {
+        Bits b = Bits.create(expectedInsertions, fpp);
+        long count = 0;
+        String line;
+        while ((line = smiles.readLine()) != null) {
+            line = line.trim();
+            if (!line.isEmpty()) {
+                b.put(line);
+                count++;
+            }
+        }
+        bits = b;
+        return count;
+    }
+
+    private void build(GraphDB graphdb, File file) {
+        long t0 = System.currentTimeMillis();
+        LOG.info("Building SMILES filter");
+        try (Session session = graphdb.getSession()) {
+            long expected = session.readTransaction((tx) -> tx.run(COUNT_QUERY).single().get(0).asLong());
+            Bits b = Bits.create(expected, Double.parseDouble(FRAGNET_SMILES_FILTER_FPP));
+            long count = session.readTransaction((tx) -> {
+                Result result = tx.run(SMILES_QUERY);
+                long c = 0;
+                while (result.hasNext()) {
+                    b.put(result.next().get(0).asString());
+                    c++;
+                }
+                return c;
+            });
+            bits = b;
+            long t1 = System.currentTimeMillis();
+            LOG.info(String.format("Built SMILES filter of %s molecules in %sms (%s bits, %s hashes)",
+                    count, t1 - t0, b.numBits, b.numHashes));
+            if (file != null) {
+                write(file);
+            }
+        } catch (Exception ex) {
+            LOG.log(Level.WARNING, "Failed to build SMILES filter. Filtering disabled", ex);
+        }
+    }
+
+    /**
+     * The bit array and the hashing. The bits are stored as longs in a ByteBuffer that is either direct or memory
+     * mapped so that large filters do not occupy the heap.
+     */
+    private static class Bits {
+
+        private final ByteBuffer words;
+        private final long numBits;
+        private final int numHashes;
+
+        Bits(ByteBuffer words, int numHashes) {
+            this.words = words;
+            this.numBits = (long) (words.capacity() / 8) * 64;
+            this.numHashes = numHashes;
+        }
+
+        static Bits create(long expectedInsertions, double fpp) {
+            long n = Math.max(expectedInsertions, 1);
+            long numBits = (long) (-n * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+            long numWords = (numBits + 63) / 64;
+            if (numWords * 8 > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("SMILES filter would be larger than 2GB");
+            }
+            int numHashes = Math.max(1, (int) Math.round((double) numWords * 64 / n * Math.log(2)));
+            return new Bits(ByteBuffer.allocateDirect((int) (numWords * 8)), numHashes);
+        }
+
+        void put(String smiles) {
+            long hash = hash(smiles);
+            long h1 = mix(hash);
+            long h2 = mix(hash ^ 0x9e3779b97f4a7c15L) | 1;
+            for (int i = 0; i < numHashes; i++) {
+                long bit = ((h1 + i * h2) & Long.MAX_VALUE) % numBits;
+                int index = (int) (bit >>> 6) * 8;
+                words.putLong(index, words.getLong(index) | (1L << bit));
+            }
+        }
+
+        boolean mightContain(String smiles) {
+            long hash = hash(smiles);
+            long h1 = mix(hash);
+            long h2 = mix(hash ^ 0x9e3779b97f4a7c15L) | 1;
+            for (int i = 0; i < numHashes; i++) {
+                long bit = ((h1 + i * h2) & Long.MAX_VALUE) % numBits;
+                if ((words.getLong((int) (bit >>> 6) * 8) & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /** FNV-1a over the characters. SMILES are ASCII so this is the same as hashing the UTF-8 bytes. */
+        private static long hash(String s) {
+            long h = 0xcbf29ce484222325L;
+            for (int i = 0; i < s.length(); i++) {
+                h ^= s.charAt(i);
+                h *= 0x100000001b3L;
+            }
+            return h;
+        }
+
+        /** The MurmurHash3 finalizer */
+        private static long mix(long h) {
+            h ^= h >>> 33;
+            h *= 0xff51afd7ed558ccdL;
+            h ^= h >>> 33;
+            h *= 0xc4ceb9fe1a85ec53L;
+            h ^= h >>> 33;
+            return h;
+        }
+    }
+
+    /**
+     * Generate a filter file from a list of standardized SMILES.
+     * Usage: MoleculeFilter database-version expected-count output-file [fpp] &lt; smiles.txt
+     *
+     * @param args
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.err.println("Usage: MoleculeFilter database-version expected-count output-file [fpp] < smiles.txt");
+            System.exit(1);
+        }
+        MoleculeFilter filter = new MoleculeFilter(args[0]);
+        double fpp = args.length > 3 ? Double.parseDouble(args[3]) : Double.parseDouble(FRAGNET_SMILES_FILTER_FPP);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        long count = filter.populate(reader, Long.parseLong(args[1]), fpp);
+        filter.write(new File(args[2]));
+        System.out.println("Added " + count + " SMILES");
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2023 Informatics Matters Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squonk.fragnet.service;
+
+import org.squonk.fragnet.Utils;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Bounded in-memory record of query molecules that are known not to be in the fragment network, so that repeated
+ * searches for them can be rejected without standardizing the molecule or querying the database.
+ * <p>
+ * Entries are keyed by the database version (see {@link GraphDB#getDatabaseVersion()}) and the standardized SMILES.
+ * The molecule as it was supplied can also be recorded so that an identical request does not even need to be
+ * standardized. Those are kept apart from the standardized SMILES, as a molecule that was supplied in one form may be
+ * in the database in a different form. When full the least recently used entries are discarded.
+ * <p>
+ * The maximum number of entries is defined by FRAGNET_NEGATIVE_CACHE_SIZE (default 10000). A size of zero disables
+ * the cache.
+ */
+@Singleton
+public class NegativeResultCache {
+
+    private static final Logger LOG = Logger.getLogger(NegativeResultCache.class.getName());
+
+    private static final String FRAGNET_NEGATIVE_CACHE_SIZE = Utils.getConfiguration("FRAGNET_NEGATIVE_CACHE_SIZE", "10000");
+    private static final char KEY_SEP = '/';
+    private static final String STD_KEY = "std" + KEY_SEP;
+    private static final String INPUT_KEY = "input" + KEY_SEP;
+
+    private final String keyPrefix;
+    private final int maxSize;
+    private final Map<String, Boolean> absent;
+
+    @Inject
+    public NegativeResultCache(GraphDB graphdb) {
+        this(Integer.parseInt(FRAGNET_NEGATIVE_CACHE_SIZE), graphdb.getDatabaseVersion());
+    }
+
+    /**
+     * @param maxSize   The maximum number of molecules to record. Zero disables the cache.
+     * @param dbVersion The version of the database
+     */
+    public NegativeResultCache(int maxSize, String dbVersion) {
+        this.maxSize = maxSize;
+        this.keyPrefix = dbVersion + KEY_SEP;
+        this.absent = new LinkedHashMap<String, Boolean>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > NegativeResultCache.this.maxSize;
+            }
+        };
+        LOG.info("Negative result cache size is " + maxSize);
+    }
+
+    public boolean isEnabled() {
+        return maxSize > 0;
+    }
+
+    public synchronized int size() {
+        return absent.size();
+    }
+
+    /**
+     * Is the molecule known not to be in the database?
+     *
+     * @param smiles The standardized SMILES
+     * @return True if the molecule is known to be absent.
+     */
+    public synchronized boolean isAbsent(String smiles) {
+        return isEnabled() && absent.get(keyPrefix + STD_KEY + smiles) != null;
+    }
+
+    /**
+     * Is the molecule known not to be in the database, based on the form in which it was supplied?
+     *
+     * @param input The molecule as supplied, which is only recorded using {@link #markAbsent(String, String)}
+     * @return True if the molecule is known to be absent.
+     */
+    public synchronized boolean isInputAbsent(String input) {
+        return isEnabled() && absent.get(keyPrefix + INPUT_KEY + input) != null;
+    }
+
+    /**
+     * Record that this molecule is not in the database.
+     *
+     * @param stdSmiles The standardized SMILES
+     * @param input     The molecule as it was supplied. May be null.
+     */
+    public synchronized void markAbsent(String stdSmiles, String input) {
+        if (!isEnabled()) {
+            return;
+        }
+        absent.put(keyPrefix + STD_KEY + stdSmiles, Boolean.TRUE);
+        if (input != null) {
+            absent.put(keyPrefix + INPUT_KEY + input, Boolean.TRUE);
+        }
+    }
+}
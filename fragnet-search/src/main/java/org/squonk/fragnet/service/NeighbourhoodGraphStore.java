@@ -0,0 +1,219 @@
+/*
+ * Copyright (c) 2023 Informatics Matters Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squonk.fragnet.service;
+
+import org.squonk.fragnet.Utils;
+import org.squonk.fragnet.search.model.v2.NeighbourhoodGraph;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Singleton;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+/**
+ * Keeps neighbourhood graphs for a short time so that the details of their groups can be generated when they are
+ * needed, rather than for every group when the search is run.
+ * <p>
+ * A graph is discarded if it has not been used for FRAGNET_GRAPH_HANDLE_TIMEOUT_SECS (default 300) seconds. Expired
+ * graphs are discarded by a background task, so they do not linger on a quiet server. The least recently used graphs
+ * are also discarded when there are more than FRAGNET_GRAPH_HANDLE_MAX (default 100) graphs, or when their total
+ * estimated size (see {@link NeighbourhoodGraph#getEstimatedSize()}) exceeds FRAGNET_GRAPH_HANDLE_MAX_MB (default
+ * 1024) MB. The most recent graph is kept even if it alone exceeds that size. Discarded graphs are closed to free their
+ * native memory.
+ * <p>
+ * The estimated size only counts the Java objects of a graph. The RDKit molecules that are created when the details of
+ * the groups are generated use native memory that is not included, so the memory used can exceed that limit.
+ */
+@Singleton
+public class NeighbourhoodGraphStore implements AutoCloseable {
+
+    private static final Logger LOG = Logger.getLogger(NeighbourhoodGraphStore.class.getName());
+
+    private static final String FRAGNET_GRAPH_HANDLE_TIMEOUT_SECS = Utils.getConfiguration("FRAGNET_GRAPH_HANDLE_TIMEOUT_SECS", "300");
+    private static final String FRAGNET_GRAPH_HANDLE_MAX = Utils.getConfiguration("FRAGNET_GRAPH_HANDLE_MAX", "100");
+    private static final String FRAGNET_GRAPH_HANDLE_MAX_MB = Utils.getConfiguration("FRAGNET_GRAPH_HANDLE_MAX_MB", "1024");
+
+    /** The maximum interval in seconds between checks for expired graphs */
+    private static final long MAX_EXPIRY_INTERVAL = 60;
+
+    private final long timeout;
+    private final int maxSize;
+    private final long maxBytes;
+    private final Map<String, Entry> graphs = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+    private final ScheduledExecutorService scheduler;
+
+    public NeighbourhoodGraphStore() {
+        this(Long.parseLong(FRAGNET_GRAPH_HANDLE_TIMEOUT_SECS), Integer.parseInt(FRAGNET_GRAPH_HANDLE_MAX),
+                Long.parseLong(FRAGNET_GRAPH_HANDLE_MAX_MB) * 1024 * 1024);
+    }
+
+    /**
+     * @param timeout  The number of seconds a graph is kept after it is last used
+     * @param maxSize  The maximum number of graphs to keep
+     * @param maxBytes The maximum total estimated size of the graphs to keep. 0 or less means no limit.
+     */
+    public NeighbourhoodGraphStore(long timeout, int maxSize, long maxBytes) {
+        this.timeout = timeout;
+        this.maxSize = maxSize;
+        this.maxBytes = maxBytes;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor((r) -> {
+            Thread t = new Thread(r, "fragnet-graph-expiry");
+            t.setDaemon(true);
+            return t;
+        });
+        long interval = Math.max(1, Math.min(timeout, MAX_EXPIRY_INTERVAL));
+        scheduler.scheduleWithFixedDelay(this::expire, interval, interval, TimeUnit.SECONDS);
+        LOG.info(String.format("Graph handles expire after %ss, maximum of %s graphs and %s bytes",
+                timeout, maxSize, maxBytes));
+    }
+
+    /**
+     * @return The number of seconds a graph is kept after it is last used
+     */
+    public long getTimeout() {
+        return timeout;
+    }
+
+    public synchronized int size() {
+        return graphs.size();
+    }
+
+    /**
+     * @return The total estimated size of the graphs that are kept
+     */
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * Keep the graph. The store is then responsible for closing it.
+     *
+     * @param graph The graph
+     * @return The handle for the graph
+     */
+    public String put(NeighbourhoodGraph graph) {
+        String handle = UUID.randomUUID().toString();
+        Entry entry = new Entry(graph);
+        synchronized (this) {
+            graphs.put(handle, entry);
+            totalBytes += entry.size;
+        }
+        expire();
+        return handle;
+    }
+
+    /**
+     * Apply the function to the graph with this handle. The graph is not discarded while the function runs, and the
+     * function must not keep a reference to the graph.
+     *
+     * @param handle   The handle
+     * @param function The function
+     * @return The result of the function, or null if there is no graph with that handle (e.g. it has expired)
+     */
+    public <T> T apply(String handle, Function<NeighbourhoodGraph, T> function) {
+        expire();
+        Entry entry;
+        synchronized (this) {
+            entry = graphs.get(handle);
+        }
+        if (entry == null) {
+            return null;
+        }
+        synchronized (entry) {
+            if (entry.graph == null) {
+                // discarded since it was fetched
+                return null;
+            }
+            entry.touch();
+            return function.apply(entry.graph);
+        }
+    }
+
+    /**
+     * Discard the graphs that have expired, or are in excess of the maximum number or size.
+     */
+    void expire() {
+        long now = System.currentTimeMillis();
+        Map<String, Entry> expired = new LinkedHashMap<>();
+        synchronized (this) {
+            Iterator<Map.Entry<String, Entry>> it = graphs.entrySet().iterator();
+            // least recently used first
+            while (it.hasNext()) {
+                Map.Entry<String, Entry> e = it.next();
+                boolean tooBig = maxBytes > 0 && totalBytes > maxBytes && graphs.size() > 1;
+                if (graphs.size() > maxSize || tooBig || e.getValue().lastUsed + timeout * 1000 < now) {
+                    expired.put(e.getKey(), e.getValue());
+                    totalBytes -= e.getValue().size;
+                    it.remove();
+                }
+            }
+        }
+        expired.forEach((handle, entry) -> {
+            LOG.fine("Discarding graph " + handle);
+            entry.close();
+        });
+    }
+
+    /**
+     * Stop checking for expired graphs and close all the graphs. This is called by the container when the store is
+     * destroyed.
+     */
+    @Override
+    @PreDestroy
+    public void close() {
+        scheduler.shutdownNow();
+        List<Entry> entries;
+        synchronized (this) {
+            entries = new ArrayList<>(graphs.values());
+            graphs.clear();
+            totalBytes = 0;
+        }
+        entries.forEach(Entry::close);
+    }
+
+    private static class Entry {
+
+        private NeighbourhoodGraph graph;
+        private final long size;
+        private volatile long lastUsed = System.currentTimeMillis();
+
+        Entry(NeighbourhoodGraph graph) {
+            this.graph = graph;
+            this.size = graph.getEstimatedSize();
+        }
+
+        void touch() {
+            lastUsed = System.currentTimeMillis();
+        }
+
+        synchronized void close() {
+            if (graph != null) {
+                graph.close();
+                graph = null;
+            }
+        }
+    }
+}
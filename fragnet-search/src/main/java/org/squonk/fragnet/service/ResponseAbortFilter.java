@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2023 Informatics Matters Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squonk.fragnet.service;
+
+import javax.servlet.*;
+import java.io.IOException;
+
+/**
+ * Servlet filter that aborts a response that failed after it was committed, e.g. part way through streaming the
+ * results. The status has already been sent by then, so the only way to tell the client that the response is incomplete
+ * is to close the connection without completing it. A route marks the request using {@link #abort(ServletRequest)} and
+ * this filter then fails the request, which makes the container (e.g. Tomcat) close the connection rather than send the
+ * end of the response.
+ * <p>
+ * This must be mapped after any filter that transforms the output, such as {@link ResponseCompressionFilter}, so that
+ * those see the failure too.
+ */
+public class ResponseAbortFilter implements Filter {
+
+    private static final String ABORTED = ResponseAbortFilter.class.getName() + ".aborted";
+
+    /**
+     * Mark the response to the request as aborted.
+     *
+     * @param request The request
+     */
+    public static void abort(ServletRequest request) {
+        request.setAttribute(ABORTED, Boolean.TRUE);
+    }
+
+    public static boolean isAborted(ServletRequest request) {
+        return request.getAttribute(ABORTED) != null;
+    }
+
+    @Override
+    public void init(FilterConfig filterConfig) {
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+        chain.doFilter(request, response);
+        if (isAborted(request)) {
+            throw new ServletException("Response aborted after it was committed");
+        }
+    }
+
+    @Override
+    public void destroy() {
+    }
+}
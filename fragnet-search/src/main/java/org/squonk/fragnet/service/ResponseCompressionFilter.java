@@ -0,0 +1,454 @@
+/*
+ * Copyright (c) 2023 Informatics Matters Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squonk.fragnet.service;
+
+import io.prometheus.client.Counter;
+import org.squonk.fragnet.Utils;
+
+import javax.servlet.*;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.*;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Servlet filter that gzip compresses responses for clients that accept it (the Accept-Encoding header).
+ * <p>
+ * The response is compressed as it is written, so it is never buffered as a whole. Only the first part of the response
+ * is held back, until it is known whether it exceeds the minimum size. Smaller responses are sent as they are, as is any
+ * response that already has a Content-Encoding.
+ * <p>
+ * The minimum size in bytes is defined by FRAGNET_COMPRESSION_MIN_SIZE (default 1024) and the compression level (1-9)
+ * by FRAGNET_COMPRESSION_LEVEL (default 6). A level of 0 disables compression.
+ * <p>
+ * Only gzip is supported as it is the only suitable encoding that the JVM provides.
+ */
+public class ResponseCompressionFilter implements Filter {
+
+    private static final Logger LOG = Logger.getLogger(ResponseCompressionFilter.class.getName());
+
+    private static final String FRAGNET_COMPRESSION_MIN_SIZE = Utils.getConfiguration("FRAGNET_COMPRESSION_MIN_SIZE", "1024");
+    private static final String FRAGNET_COMPRESSION_LEVEL = Utils.getConfiguration("FRAGNET_COMPRESSION_LEVEL", "6");
+
+    private static final String GZIP = "gzip";
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final Counter compressedResponsesTotal = Counter.build()
+            .name("compression_responses_total")
+            .help("Total number of responses that were compressed")
+            .register();
+
+    private static final Counter compressionInputBytes = Counter.build()
+            .name("compression_input_bytes")
+            .help("Total size of the compressed responses before compression")
+            .register();
+
+    private static final Counter compressionOutputBytes = Counter.build()
+            .name("compression_output_bytes")
+            .help("Total size of the compressed responses after compression")
+            .register();
+
+    private static final Counter compressionDuration = Counter.build()
+            .name("duration_compression_ns")
+            .help("Total time spent compressing responses")
+            .register();
+
+    private final int minSize;
+    private final int level;
+
+    public ResponseCompressionFilter() {
+        this(Integer.parseInt(FRAGNET_COMPRESSION_MIN_SIZE), Integer.parseInt(FRAGNET_COMPRESSION_LEVEL));
+    }
+
+    /**
+     * @param minSize The minimum size of response that is compressed
+     * @param level   The compression level, 1 (fastest) to 9 (smallest). 0 disables compression.
+     */
+    public ResponseCompressionFilter(int minSize, int level) {
+        if (level < 0 || level > 9) {
+            throw new IllegalArgumentException("Compression level must be between 0 and 9");
+        }
+        this.minSize = Math.max(0, minSize);
+        this.level = level;
+    }
+
+    @Override
+    public void init(FilterConfig filterConfig) {
+        if (level == 0) {
+            LOG.info("Response compression is disabled");
+        } else {
+            LOG.info(String.format("Responses of %s bytes or more will be compressed using level %s", minSize, level));
+        }
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+
+        if (level == 0 || !(request instanceof HttpServletRequest) || !(response instanceof HttpServletResponse)) {
+            chain.doFilter(request, response);
+            return;
+        }
+        HttpServletResponse httpResponse = (HttpServletResponse) response;
+        httpResponse.addHeader("Vary", "Accept-Encoding");
+        if (!acceptsGzip(((HttpServletRequest) request).getHeader("Accept-Encoding"))) {
+            chain.doFilter(request, response);
+            return;
+        }
+        CompressingResponse wrapper = new CompressingResponse(httpResponse);
+        try {
+            chain.doFilter(request, wrapper);
+        } catch (IOException | ServletException | RuntimeException ex) {
+            wrapper.abort();
+            throw ex;
+        }
+        wrapper.finish();
+    }
+
+    @Override
+    public void destroy() {
+    }
+
+    /**
+     * Does the Accept-Encoding header allow gzip? It does if gzip, or the * wildcard, is present without a quality
+     * value of zero.
+     *
+     * @param acceptEncoding The value of the Accept-Encoding header. May be null.
+     * @return Whether gzip is acceptable
+     */
+    public static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null || acceptEncoding.isEmpty()) {
+            return false;
+        }
+        Boolean gzip = null;
+        boolean wildcard = false;
+        for (String coding : acceptEncoding.split(",")) {
+            String[] params = coding.split(";");
+            String name = params[0].trim().toLowerCase();
+            boolean accepted = true;
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        accepted = Float.parseFloat(param.substring(2)) > 0f;
+                    } catch (NumberFormatException ex) {
+                        accepted = false;
+                    }
+                }
+            }
+            if (GZIP.equals(name) || "x-gzip".equals(name)) {
+                gzip = accepted;
+            } else if ("*".equals(name)) {
+                wildcard = accepted;
+            }
+        }
+        return gzip == null ? wildcard : gzip;
+    }
+
+    /**
+     * Response that holds back the output until the minimum size is reached, and then switches to writing compressed
+     * output. The Content-Length set by the application is discarded as it will not be correct.
+     */
+    private class CompressingResponse extends HttpServletResponseWrapper {
+
+        private final HttpServletResponse response;
+        private CompressingOutputStream stream;
+        private PrintWriter writer;
+
+        CompressingResponse(HttpServletResponse response) {
+            super(response);
+            this.response = response;
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            if (writer != null) {
+                throw new IllegalStateException("getWriter() has already been called");
+            }
+            return getStream();
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            if (writer == null) {
+                if (stream != null) {
+                    throw new IllegalStateException("getOutputStream() has already been called");
+                }
+                String charset = getCharacterEncoding();
+                writer = new PrintWriter(new OutputStreamWriter(getStream(), charset == null ? "ISO-8859-1" : charset));
+            }
+            return writer;
+        }
+
+        private CompressingOutputStream getStream() {
+            if (stream == null) {
+                stream = new CompressingOutputStream(response);
+            }
+            return stream;
+        }
+
+        @Override
+        public void setContentLength(int len) {
+            // the length is determined when the response is complete
+        }
+
+        // Servlet 3.1 method, so no @Override as the API we compile against is 3.0
+        public void setContentLengthLong(long len) {
+            // the length is determined when the response is complete
+        }
+
+        @Override
+        public void setHeader(String name, String value) {
+            if (!"Content-Length".equalsIgnoreCase(name)) {
+                super.setHeader(name, value);
+            }
+        }
+
+        @Override
+        public void addHeader(String name, String value) {
+            if (!"Content-Length".equalsIgnoreCase(name)) {
+                super.addHeader(name, value);
+            }
+        }
+
+        @Override
+        public void setIntHeader(String name, int value) {
+            if (!"Content-Length".equalsIgnoreCase(name)) {
+                super.setIntHeader(name, value);
+            }
+        }
+
+        @Override
+        public void addIntHeader(String name, int value) {
+            if (!"Content-Length".equalsIgnoreCase(name)) {
+                super.addIntHeader(name, value);
+            }
+        }
+
+        @Override
+        public void flushBuffer() throws IOException {
+            if (writer != null) {
+                writer.flush();
+            } else if (stream != null) {
+                stream.flush();
+            }
+        }
+
+        @Override
+        public void resetBuffer() {
+            if (stream != null) {
+                stream.reset();
+            }
+            super.resetBuffer();
+        }
+
+        @Override
+        public void reset() {
+            if (stream != null) {
+                stream.reset();
+            }
+            super.reset();
+        }
+
+        void finish() throws IOException {
+            if (writer != null) {
+                writer.flush();
+            }
+            if (stream != null) {
+                stream.finish();
+            }
+        }
+
+        void abort() {
+            if (stream != null) {
+                stream.abort();
+            }
+        }
+    }
+
+    /**
+     * Output stream that buffers up to the minimum size and then either compresses or writes the output unchanged.
+     * Flushing before the minimum size is reached does not send anything, as the decision has not yet been made.
+     */
+    private class CompressingOutputStream extends ServletOutputStream {
+
+        private final HttpServletResponse response;
+        private byte[] pending = new byte[Math.min(minSize, BUFFER_SIZE)];
+        private int pendingLength;
+        private OutputStream out;
+        private LevelGZIPOutputStream gzip;
+        private TimedOutputStream target;
+        private long inputBytes;
+        private long gzipNanos;
+        private boolean finished;
+
+        CompressingOutputStream(HttpServletResponse response) {
+            this.response = response;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (finished) {
+                throw new IOException("Response is complete");
+            }
+            if (out == null) {
+                if (pendingLength + len < minSize) {
+                    if (pendingLength + len > pending.length) {
+                        byte[] grown = new byte[Math.min(minSize, Math.max(pending.length * 2, pendingLength + len))];
+                        System.arraycopy(pending, 0, grown, 0, pendingLength);
+                        pending = grown;
+                    }
+                    System.arraycopy(b, off, pending, pendingLength, len);
+                    pendingLength += len;
+                    return;
+                }
+                start(true);
+            }
+            writeOut(b, off, len);
+        }
+
+        /**
+         * Start writing the output, sending the data that has been held back.
+         *
+         * @param compress Whether to compress
+         */
+        private void start(boolean compress) throws IOException {
+            if (compress && response.getHeader("Content-Encoding") == null && !response.isCommitted()) {
+                response.setHeader("Content-Encoding", GZIP);
+                target = new TimedOutputStream(response.getOutputStream());
+                gzip = new LevelGZIPOutputStream(target, level);
+                out = gzip;
+            } else {
+                out = response.getOutputStream();
+            }
+            writeOut(pending, 0, pendingLength);
+            pending = null;
+            pendingLength = 0;
+        }
+
+        private void writeOut(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            if (gzip == null) {
+                out.write(b, off, len);
+            } else {
+                long t0 = System.nanoTime();
+                gzip.write(b, off, len);
+                gzipNanos += System.nanoTime() - t0;
+                inputBytes += len;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (out != null) {
+                out.flush();
+            }
+        }
+
+        /** Discard the output that has been held back, if it has not yet been sent */
+        void reset() {
+            if (out == null) {
+                pendingLength = 0;
+            }
+        }
+
+        void finish() throws IOException {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            if (out == null) {
+                // smaller than the minimum size
+                response.setContentLength(pendingLength);
+                start(false);
+            } else if (gzip != null) {
+                long t0 = System.nanoTime();
+                gzip.finish();
+                gzipNanos += System.nanoTime() - t0;
+                compressedResponsesTotal.inc();
+                compressionInputBytes.inc(inputBytes);
+                compressionOutputBytes.inc(target.count);
+                // exclude the time spent sending the compressed data
+                compressionDuration.inc(Math.max(0, gzipNanos - target.nanos));
+                LOG.finer(String.format("Compressed response from %s to %s bytes", inputBytes, target.count));
+            }
+            out.flush();
+        }
+
+        /** Release the compressor without completing the response, e.g. if an error occurred */
+        void abort() {
+            finished = true;
+            pending = null;
+            if (gzip != null) {
+                gzip.end();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            finish();
+        }
+    }
+
+    /** GZIPOutputStream with a specified compression level that can be flushed */
+    private static class LevelGZIPOutputStream extends GZIPOutputStream {
+
+        LevelGZIPOutputStream(OutputStream out, int level) throws IOException {
+            super(out, BUFFER_SIZE, true);
+            def.setLevel(level);
+        }
+
+        void end() {
+            def.end();
+        }
+    }
+
+    /** Counts the bytes written and the time spent writing them */
+    private static class TimedOutputStream extends FilterOutputStream {
+
+        long count;
+        long nanos;
+
+        TimedOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            long t0 = System.nanoTime();
+            out.write(b);
+            nanos += System.nanoTime() - t0;
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            long t0 = System.nanoTime();
+            out.write(b, off, len);
+            nanos += System.nanoTime() - t0;
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2023 Informatics Matters Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squonk.fragnet.service;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import org.squonk.fragnet.Utils;
+
+/**
+ * The formats in which search results can be returned. All formats are generated from the same Jackson annotations,
+ * so the binary formats have exactly the same structure as the JSON.
+ * The format is chosen from the Accept header of the request, JSON being the default.
+ */
+public enum ResponseFormat {
+
+    JSON("application/json", Utils.getObjectMapper()),
+    CBOR("application/cbor", new ObjectMapper(new CBORFactory()).disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)),
+    SMILE("application/x-jackson-smile", new ObjectMapper(new SmileFactory()).disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET));
+
+    /** The media types that can be produced, for use in the REST definitions */
+    public static final String MEDIA_TYPES = "application/json,application/cbor,application/x-jackson-smile";
+
+    public final String mediaType;
+    public final ObjectMapper mapper;
+
+    ResponseFormat(String mediaType, ObjectMapper mapper) {
+        this.mediaType = mediaType;
+        this.mapper = mapper;
+    }
+
+    public boolean isBinary() {
+        return this != JSON;
+    }
+
+    /**
+     * Choose the format from the Accept header. The supported type with the highest quality value is used. If there
+     * is a tie an explicit type wins over a wildcard, and then the first type in the header wins. If none of the
+     * supported types are accepted, JSON is used.
+     *
+     * @param accept The value of the Accept header. May be null.
+     * @return The format to use
+     */
+    public static ResponseFormat fromAccept(String accept) {
+        if (accept == null || accept.isEmpty()) {
+            return JSON;
+        }
+        ResponseFormat best = null;
+        float bestQuality = 0f;
+        boolean bestIsWildcard = false;
+        for (String range : accept.split(",")) {
+            String[] params = range.split(";");
+            String type = params[0].trim().toLowerCase();
+            float quality = 1f;
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        quality = Float.parseFloat(param.substring(2));
+                    } catch (NumberFormatException ex) {
+                        quality = 0f;
+                    }
+                }
+            }
+            boolean wildcard = type.endsWith("/*");
+            ResponseFormat format = wildcard ? forWildcard(type) : forMediaType(type);
+            if (format != null && (quality > bestQuality || (quality == bestQuality && bestIsWildcard && !wildcard))) {
+                best = format;
+                bestQuality = quality;
+                bestIsWildcard = wildcard;
+            }
+        }
+        return best == null ? JSON : best;
+    }
+
+    private static ResponseFormat forWildcard(String type) {
+        return "*/*".equals(type) || "application/*".equals(type) ? JSON : null;
+    }
+
+    private static ResponseFormat forMediaType(String type) {
+        for (ResponseFormat format : values()) {
+            if (format.mediaType.equals(type)) {
+                return format;
+            }
+        }
+        return null;
+    }
+}
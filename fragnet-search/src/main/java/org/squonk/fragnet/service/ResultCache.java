@@ -0,0 +1,484 @@
+/*
+ * Copyright (c) 2023 Informatics Matters Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.squonk.fragnet.service;
+
+import org.squonk.fragnet.Utils;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.*;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Disk backed cache of serialized search results that survives restarts of the service.
+ * <p>
+ * The results are stored gzipped in an append-only file that is memory mapped. Only a small index (fingerprint to
+ * file offset) is held on the heap. The index is rebuilt from the file on startup, so results that were cached before
+ * a restart or redeploy are immediately available.
+ * <p>
+ * Entries are keyed by a fingerprint of the request and by the database version (see
+ * {@link GraphDB#getDatabaseVersion()}) so that results from a previous version of the database are never returned.
+ * When the file is full it is compacted, retaining the most recently used entries up to half of the capacity.
+ * <p>
+ * The cache is only enabled if the FRAGNET_RESULT_CACHE_FILE environment variable is defined. The maximum size of the
+ * file is defined by FRAGNET_RESULT_CACHE_SIZE_MB (default 256).
+ */
+@Singleton
+public class ResultCache implements AutoCloseable {
+
+    private static final Logger LOG = Logger.getLogger(ResultCache.class.getName());
+
+    private static final String FRAGNET_RESULT_CACHE_FILE = Utils.getConfiguration("FRAGNET_RESULT_CACHE_FILE", "");
+    private static final String FRAGNET_RESULT_CACHE_SIZE_MB = Utils.getConfiguration("FRAGNET_RESULT_CACHE_SIZE_MB", "256");
+
+    private static final int MAGIC = 0x464e5243;
+    private static final int FORMAT_VERSION = 1;
+    /** magic number, format version and the position of the end of the data */
+    private static final int HEADER_SIZE = 16;
+    private static final int END_POSITION = 8;
+    /** Compaction retains entries up to this fraction of the capacity so that it is not needed on every write */
+    private static final double COMPACTION_TARGET = 0.5;
+    private static final char KEY_SEP = '/';
+
+    private final File file;
+    private final long capacity;
+    private final String keyPrefix;
+
+    /** The entries in least recently used order */
+    private final LinkedHashMap<String, Entry> index = new LinkedHashMap<>(256, 0.75f, true);
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private long end;
+    private boolean enabled;
+
+    @Inject
+    public ResultCache(GraphDB graphdb) {
+        this(FRAGNET_RESULT_CACHE_FILE.isEmpty() ? null : new File(FRAGNET_RESULT_CACHE_FILE),
+                Long.parseLong(FRAGNET_RESULT_CACHE_SIZE_MB) * 1024 * 1024,
+                graphdb.getDatabaseVersion());
+    }
+
+    /**
+     * @param file      The file to use. If null the cache is disabled.
+     * @param capacity  The maximum size of the file in bytes.
+     * @param dbVersion The version of the database that the results were generated from.
+     */
+    public ResultCache(File file, long capacity, String dbVersion) {
+        if (capacity > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Cache size cannot be greater than 2GB");
+        }
+        this.file = file;
+        this.capacity = capacity;
+        this.keyPrefix = dbVersion + KEY_SEP;
+        if (file != null) {
+            try {
+                open();
+                enabled = true;
+                LOG.info(String.format("Result cache %s contains %s entries (%s of %s bytes used)",
+                        file.getPath(), index.size(), end, capacity));
+            } catch (IOException ex) {
+                LOG.log(Level.WARNING, "Failed to open result cache " + file.getPath() + ". Caching disabled", ex);
+            }
+        } else {
+            LOG.info("Result cache is not enabled");
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public synchronized int size() {
+        return index.size();
+    }
+
+    /**
+     * Generate the fingerprint of a request from the search type and its parameters.
+     * The values must be specified in a consistent order. Null values are allowed.
+     *
+     * @param values The search type and parameters
+     * @return A hex encoded SHA-256 digest of the values
+     */
+    public static String fingerprint(Object... values) {
+        StringBuilder b = new StringBuilder();
+        for (Object value : values) {
+            b.append(value).append('\u0000');
+        }
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(b.toString().getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(hash.length * 2);
+            for (byte h : hash) {
+                hex.append(String.format("%02x", h));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 not available", ex);
+        }
+    }
+
+    /**
+     * Fetch the cached JSON for this fingerprint.
+     *
+     * @param fingerprint The request fingerprint
+     * @return The JSON, or null if not present in the cache
+     */
+    public String getJson(String fingerprint) {
+        byte[] data = getBytes(fingerprint);
+        return data == null ? null : new String(data, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Fetch the cached result for this fingerprint that was added using {@link #openEntry(String)} or
+     * {@link #putJson(String, String)}. The data is decompressed, but is otherwise exactly what was written so can
+     * be in any format.
+     *
+     * @param fingerprint The request fingerprint
+     * @return The data, or null if not present in the cache
+     */
+    public byte[] getBytes(String fingerprint) {
+        byte[] data = get(fingerprint);
+        if (data == null) {
+            return null;
+        }
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(data))) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 8);
+            byte[] buf = new byte[8192];
+            int len;
+            while ((len = in.read(buf)) > 0) {
+                out.write(buf, 0, len);
+            }
+            return out.toByteArray();
+        } catch (IOException ex) {
+            LOG.log(Level.WARNING, "Failed to read cached result", ex);
+            return null;
+        }
+    }
+
+    /**
+     * Add the JSON for this fingerprint to the cache.
+     *
+     * @param fingerprint The request fingerprint
+     * @param json        The serialized result
+     */
+    public void putJson(String fingerprint, String json) {
+        if (!enabled) {
+            return;
+        }
+        try (EntryWriter out = openEntry(fingerprint)) {
+            out.write(json.getBytes(StandardCharsets.UTF_8));
+            out.commit();
+        } catch (IOException ex) {
+            LOG.log(Level.WARNING, "Failed to compress result", ex);
+        }
+    }
+
+    /**
+     * Create a stream to which the result for this fingerprint can be written as it is generated. It is added to
+     * the cache when {@link EntryWriter#commit()} is called. If the stream is closed without being committed (e.g.
+     * because generating the JSON failed) nothing is cached.
+     *
+     * @param fingerprint The request fingerprint
+     * @return The stream
+     * @throws IOException
+     */
+    public EntryWriter openEntry(String fingerprint) throws IOException {
+        return new EntryWriter(fingerprint, new ByteArrayOutputStream(8192));
+    }
+
+    /** Compresses the data that is written to it, and adds it to the cache when committed */
+    public class EntryWriter extends GZIPOutputStream {
+
+        private final String fingerprint;
+        private final ByteArrayOutputStream bytes;
+        private boolean committed;
+
+        private EntryWriter(String fingerprint, ByteArrayOutputStream bytes) throws IOException {
+            super(bytes);
+            this.fingerprint = fingerprint;
+            this.bytes = bytes;
+        }
+
+        /** Add the data that has been written to the cache. */
+        public void commit() throws IOException {
+            if (!committed) {
+                committed = true;
+                super.close();
+                put(fingerprint, bytes.toByteArray());
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!committed) {
+                def.end();
+            }
+        }
+    }
+
+    /**
+     * Fetch the cached data for this fingerprint.
+     *
+     * @param fingerprint The request fingerprint
+     * @return The data, or null if not present in the cache
+     */
+    public synchronized byte[] get(String fingerprint) {
+        if (!enabled) {
+            return null;
+        }
+        Entry entry = index.get(fingerprint);
+        if (entry == null) {
+            return null;
+        }
+        byte[] data = new byte[entry.valueLength];
+        ByteBuffer b = buffer.duplicate();
+        b.position((int) entry.valueOffset());
+        b.get(data);
+        return data;
+    }
+
+    /**
+     * Add the data for this fingerprint to the cache. Data that is too large to be cached is ignored.
+     *
+     * @param fingerprint The request fingerprint
+     * @param data        The data to cache
+     */
+    public synchronized void put(String fingerprint, byte[] data) {
+        if (!enabled) {
+            return;
+        }
+        byte[] key = (keyPrefix + fingerprint).getBytes(StandardCharsets.UTF_8);
+        int recordLength = 8 + key.length + data.length;
+        if (HEADER_SIZE + recordLength > capacity * COMPACTION_TARGET) {
+            LOG.fine("Result of " + data.length + " bytes is too large to cache");
+            return;
+        }
+        try {
+            if (end + recordLength > capacity) {
+                compact(recordLength);
+            }
+            long offset = end;
+            ByteBuffer b = buffer.duplicate();
+            b.position((int) offset);
+            b.putInt(key.length).put(key).putInt(data.length).put(data);
+            end += recordLength;
+            // the end position is only updated once the record is written so that a partial write is ignored on restart
+            buffer.putLong(END_POSITION, end);
+            index.put(fingerprint, new Entry(offset, key.length, data.length));
+        } catch (IOException ex) {
+            LOG.log(Level.WARNING, "Failed to write to result cache. Caching disabled", ex);
+            enabled = false;
+        }
+    }
+
+    private void open() throws IOException {
+        boolean exists = file.exists() && file.length() > 0;
+        map();
+        if (exists && buffer.getInt(0) == MAGIC && buffer.getInt(4) == FORMAT_VERSION) {
+            end = buffer.getLong(END_POSITION);
+            if (end < HEADER_SIZE || end > capacity) {
+                LOG.warning("Result cache is corrupt. Discarding contents");
+                reset();
+            } else if (!readIndex()) {
+                LOG.warning("Result cache is corrupt. Discarding contents");
+                reset();
+            }
+        } else {
+            reset();
+        }
+    }
+
+    private void map() throws IOException {
+        channel = new RandomAccessFile(file, "rw").getChannel();
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    private void reset() {
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, FORMAT_VERSION);
+        buffer.putLong(END_POSITION, HEADER_SIZE);
+        end = HEADER_SIZE;
+        index.clear();
+    }
+
+    /**
+     * Read the records in the file, ignoring those from a different database version.
+     * Later records for the same fingerprint replace earlier ones.
+     *
+     * @return False if a record is inconsistent with the end of the data (e.g. the file is truncated or corrupt)
+     */
+    private boolean readIndex() {
+        ByteBuffer b = buffer.duplicate();
+        long pos = HEADER_SIZE;
+        int discarded = 0;
+        while (pos < end) {
+            if (pos + 4 > end) {
+                return false;
+            }
+            b.position((int) pos);
+            int keyLength = b.getInt();
+            if (keyLength < 0 || pos + 8 + keyLength > end) {
+                return false;
+            }
+            byte[] key = new byte[keyLength];
+            b.get(key);
+            int valueLength = b.getInt();
+            if (valueLength < 0 || pos + 8 + keyLength + valueLength > end) {
+                return false;
+            }
+            String k = new String(key, StandardCharsets.UTF_8);
+            if (k.startsWith(keyPrefix)) {
+                index.put(k.substring(keyPrefix.length()), new Entry(pos, keyLength, valueLength));
+            } else {
+                discarded++;
+            }
+            pos += 8 + keyLength + valueLength;
+        }
+        if (discarded > 0) {
+            LOG.info(discarded + " cached results from other database versions ignored");
+        }
+        return true;
+    }
+
+    /**
+     * Rewrite the file retaining the most recently used entries.
+     *
+     * @param required The number of bytes that are needed for the next record
+     */
+    private void compact(int required) throws IOException {
+        long t0 = System.currentTimeMillis();
+        long target = (long) (capacity * COMPACTION_TARGET) - required;
+        List<Map.Entry<String, Entry>> entries = new ArrayList<>(index.entrySet());
+        // find the oldest entry that is to be retained
+        long size = HEADER_SIZE;
+        int first = entries.size();
+        while (first > 0 && size + entries.get(first - 1).getValue().recordLength() <= target) {
+            first--;
+            size += entries.get(first).getValue().recordLength();
+        }
+
+        File tmp = new File(file.getPath() + ".compact");
+        LinkedHashMap<String, Entry> retained = new LinkedHashMap<>();
+        long pos = HEADER_SIZE;
+        try (FileChannel out = new RandomAccessFile(tmp, "rw").getChannel()) {
+            MappedByteBuffer compacted = out.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            compacted.putInt(0, MAGIC);
+            compacted.putInt(4, FORMAT_VERSION);
+            ByteBuffer dest = compacted.duplicate();
+            ByteBuffer src = buffer.duplicate();
+            for (int i = first; i < entries.size(); i++) {
+                Entry entry = entries.get(i).getValue();
+                src.limit((int) (entry.offset + entry.recordLength()));
+                src.position((int) entry.offset);
+                dest.position((int) pos);
+                dest.put(src);
+                retained.put(entries.get(i).getKey(), new Entry(pos, entry.keyLength, entry.valueLength));
+                pos += entry.recordLength();
+            }
+            compacted.putLong(END_POSITION, pos);
+            compacted.force();
+            unmap(compacted);
+        }
+        buffer.force();
+        channel.close();
+        unmap(buffer);
+        buffer = null;
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        map();
+        end = pos;
+        int discarded = index.size() - retained.size();
+        index.clear();
+        index.putAll(retained);
+        long t1 = System.currentTimeMillis();
+        LOG.info(String.format("Result cache compacted in %sms. %s entries retained, %s discarded",
+                t1 - t0, retained.size(), discarded));
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            enabled = false;
+            buffer.force();
+            channel.close();
+            channel = null;
+            unmap(buffer);
+            buffer = null;
+        }
+    }
+
+    /**
+     * Release the mapping now rather than when the buffer is garbage collected, which may be much later, so that the
+     * memory and the replaced file are freed straight away. The buffer must not be used after this. If the JVM does
+     * not allow this the buffer is left to the garbage collector.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            try {
+                // Java 9 and later
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            } catch (NoSuchMethodException ex) {
+                // Java 8
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null) {
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+            }
+        } catch (Exception ex) {
+            LOG.log(Level.FINE, "Unable to unmap the result cache buffer", ex);
+        }
+    }
+
+    private static class Entry {
+
+        private final long offset;
+        private final int keyLength;
+        private final int valueLength;
+
+        Entry(long offset, int keyLength, int valueLength) {
+            this.offset = offset;
+            this.keyLength = keyLength;
+            this.valueLength = valueLength;
+        }
+
+        long valueOffset() {
+            return offset + 8 + keyLength;
+        }
+
+        int recordLength() {
+            return 8 + keyLength + valueLength;
+        }
+    }
+}
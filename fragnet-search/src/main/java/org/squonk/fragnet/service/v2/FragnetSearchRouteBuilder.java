@@ -25,19 +25,29 @@ import org.apache.camel.model.rest.RestBindingMode;
 import org.apache.camel.model.rest.RestParamType;
 import org.neo4j.driver.Session;
 import org.squonk.fragnet.Constants;
+import org.squonk.fragnet.Utils;
 import org.squonk.fragnet.chem.Calculator;
+import org.squonk.fragnet.chem.ConvertedSmilesMolsReader;
 import org.squonk.fragnet.chem.MolStandardize;
 import org.squonk.fragnet.search.model.v2.*;
 import org.squonk.fragnet.search.queries.AbstractQuery;
 import org.squonk.fragnet.search.queries.v2.*;
 import org.squonk.fragnet.service.AbstractFragnetSearchRouteBuilder;
+import org.squonk.fragnet.service.ConcurrencyLimiter;
+import org.squonk.fragnet.service.ExpansionJob;
+import org.squonk.fragnet.service.ExpansionJobManager;
 import org.squonk.fragnet.service.GraphDB;
+import org.squonk.fragnet.service.MoleculeFilter;
+import org.squonk.fragnet.service.NegativeResultCache;
+import org.squonk.fragnet.service.NeighbourhoodGraphStore;
+import org.squonk.fragnet.service.ResponseFormat;
+import org.squonk.fragnet.service.ResultCache;
 
 import javax.inject.Inject;
-import java.io.IOException;
-import java.io.StringWriter;
-import java.io.Writer;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -48,9 +58,54 @@ public class FragnetSearchRouteBuilder extends AbstractFragnetSearchRouteBuilder
 
     private static final Logger LOG = Logger.getLogger(FragnetSearchRouteBuilder.class.getName());
 
+    // the maximum number of each type of request handled at once, and that can wait to be handled
+    private static final String FRAGNET_LIMIT_NEIGHBOURHOOD = Utils.getConfiguration("FRAGNET_LIMIT_NEIGHBOURHOOD", "4");
+    private static final String FRAGNET_LIMIT_NEIGHBOURHOOD_QUEUE = Utils.getConfiguration("FRAGNET_LIMIT_NEIGHBOURHOOD_QUEUE", "16");
+    private static final String FRAGNET_LIMIT_EXPANSION = Utils.getConfiguration("FRAGNET_LIMIT_EXPANSION", "8");
+    private static final String FRAGNET_LIMIT_EXPANSION_QUEUE = Utils.getConfiguration("FRAGNET_LIMIT_EXPANSION_QUEUE", "32");
+    private static final String FRAGNET_LIMIT_EXPAND_MULTI = Utils.getConfiguration("FRAGNET_LIMIT_EXPAND_MULTI", "2");
+    private static final String FRAGNET_LIMIT_EXPAND_MULTI_QUEUE = Utils.getConfiguration("FRAGNET_LIMIT_EXPAND_MULTI_QUEUE", "4");
+    private static final String FRAGNET_LIMIT_LOOKUP = Utils.getConfiguration("FRAGNET_LIMIT_LOOKUP", "32");
+    private static final String FRAGNET_LIMIT_LOOKUP_QUEUE = Utils.getConfiguration("FRAGNET_LIMIT_LOOKUP_QUEUE", "128");
+    private static final String FRAGNET_LIMIT_WAIT_SECS = Utils.getConfiguration("FRAGNET_LIMIT_WAIT_SECS", "30");
+
     @Inject
     private GraphDB graphdb;
 
+    @Inject
+    private ResultCache resultCache;
+
+    @Inject
+    private NegativeResultCache negativeResultCache;
+
+    @Inject
+    private MoleculeFilter moleculeFilter;
+
+    @Inject
+    private NeighbourhoodGraphStore graphStore;
+
+    @Inject
+    private ExpansionJobManager jobManager;
+
+    private final ConcurrencyLimiter neighbourhoodLimiter = createLimiter("neighbourhood",
+            FRAGNET_LIMIT_NEIGHBOURHOOD, FRAGNET_LIMIT_NEIGHBOURHOOD_QUEUE);
+    private final ConcurrencyLimiter expansionLimiter = createLimiter("expansion",
+            FRAGNET_LIMIT_EXPANSION, FRAGNET_LIMIT_EXPANSION_QUEUE);
+    private final ConcurrencyLimiter expandMultiLimiter = createLimiter("expand_multi",
+            FRAGNET_LIMIT_EXPAND_MULTI, FRAGNET_LIMIT_EXPAND_MULTI_QUEUE);
+    private final ConcurrencyLimiter lookupLimiter = createLimiter("lookup",
+            FRAGNET_LIMIT_LOOKUP, FRAGNET_LIMIT_LOOKUP_QUEUE);
+
+    private final Counter negativeCacheHitsTotal = Counter.build()
+            .name("cache_negative_hits")
+            .help("Total number of searches rejected because the molecule is known not to be in the database")
+            .register();
+
+    private final Counter smilesFilterRejectionsTotal = Counter.build()
+            .name("filter_smiles_rejections")
+            .help("Total number of searches rejected by the SMILES filter")
+            .register();
+
     private List<Map<String, String>> suppliers;
     private Map<String, String> supplierMappings;
 
@@ -89,6 +144,16 @@ public class FragnetSearchRouteBuilder extends AbstractFragnetSearchRouteBuilder
             .help("Total number of neighbourhood search requests")
             .register();
 
+    private final Counter expansionJobRequestsTotal = Counter.build()
+            .name("requests_expansion_jobs_total")
+            .help("Total number of expansion job requests (submit, status and results)")
+            .register();
+
+    private final Counter neighbourhoodGroupRequestsTotal = Counter.build()
+            .name("requests_neighbourhood_group_total")
+            .help("Total number of neighbourhood group detail requests")
+            .register();
+
     private final Counter neighbourhoodSearchErrorsTotal = Counter.build()
             .name("requests_neighbourhood_errors")
             .help("Total number of neighbourhood search errors")
@@ -164,11 +229,31 @@ public class FragnetSearchRouteBuilder extends AbstractFragnetSearchRouteBuilder
             .help("Total duration of expansion Neo4j cypher query")
             .register();
 
+    private final Counter expansionSearchDuplicatesTotal = Counter.build()
+            .name("requests_expansion_duplicate_queries")
+            .help("Total number of expansion multi search queries that were not searched as they duplicated another")
+            .register();
+
+    private final Counter expansionSearchInvalidTotal = Counter.build()
+            .name("requests_expansion_invalid_queries")
+            .help("Total number of expansion multi search queries that were not searched as they could not be read or standardized")
+            .register();
+
     private final Counter expansionSearchHitsTotal = Counter.build()
             .name("results_expansion_hits_molecules")
             .help("Total number of molecules found for expansion search")
             .register();
 
+    private final Counter resultCacheHitsTotal = Counter.build()
+            .name("cache_results_hits")
+            .help("Total number of searches answered from the result cache")
+            .register();
+
+    private final Counter resultCacheMissesTotal = Counter.build()
+            .name("cache_results_misses")
+            .help("Total number of searches not found in the result cache")
+            .register();
+
 
     public FragnetSearchRouteBuilder() {
         this(true);
@@ -178,6 +263,11 @@ public class FragnetSearchRouteBuilder extends AbstractFragnetSearchRouteBuilder
         super(writeQueryLog ? "fragnet-queries-v2.log" : null);
     }
 
+    private static ConcurrencyLimiter createLimiter(String name, String maxActive, String maxWaiting) {
+        return new ConcurrencyLimiter(name, Integer.parseInt(maxActive), Integer.parseInt(maxWaiting),
+                Long.parseLong(FRAGNET_LIMIT_WAIT_SECS) * 1000);
+    }
+
     @Override
     public void configure() throws Exception {
 
@@ -206,6 +296,52 @@ public class FragnetSearchRouteBuilder extends AbstractFragnetSearchRouteBuilder
                 .endRest();
 
 
+        // Expansion multi searches run as jobs
+        // example:
+        // curl --data-binary "@queries.smi" -H "Content-Type: chemical/x-daylight-smiles" "$FRAGNET_SERVER/fragnet-search/rest/v2/jobs/expand-multi?hacMin=5&hacMax=5&racMin=2&racMax=2&hops=2"
+        rest("/v2/jobs/").description("Fragnet jobs")
+                .post("expand-multi").description("Submit an expansion search (multiple inputs) as a job")
+                .bindingMode(RestBindingMode.off)
+                .param().name("smiles").type(RestParamType.body).description("SMILES queries").endParam()
+                .param().name("hacMin").type(RestParamType.query).description("Heavy atom count reduction ").endParam()
+                .param().name("hacMax").type(RestParamType.query).description("Heavy atom count increase ").endParam()
+                .param().name("racMin").type(RestParamType.query).description("Ring atom count reduction").endParam()
+                .param().name("racMax").type(RestParamType.query).description("Ring atom count increase").endParam()
+                .param().name("hops").type(RestParamType.query).description("Number of edge traversals").endParam()
+                .param().name("suppliers").type(RestParamType.query).description("Suppliers to include").endParam()
+                .param().name("id_prop").type(RestParamType.query).description("Name of the property for the ID (use _Name for the mol name)").endParam()
+                .produces(ResponseFormat.MEDIA_TYPES)
+                .route()
+                // the upload is saved before this returns so it is limited like an expansion multi search
+                .process(admit(expandMultiLimiter, (Exchange exch) -> {
+                    executeExpansionJobSubmit(exch);
+                }))
+                .endRest()
+                // example:
+                // curl "$FRAGNET_SERVER/fragnet-search/rest/v2/jobs/0b3f6a2e-3f0e-4a8e-9d55-6c1b8e8a4c11"
+                .get("{id}").description("Status of a job")
+                .bindingMode(RestBindingMode.off)
+                .param().name("id").type(RestParamType.path).description("The job ID").endParam()
+                .produces(ResponseFormat.MEDIA_TYPES)
+                .route()
+                .process(admit(lookupLimiter, (Exchange exch) -> {
+                    executeExpansionJobStatus(exch);
+                }))
+                .endRest()
+                // example:
+                // curl "$FRAGNET_SERVER/fragnet-search/rest/v2/jobs/0b3f6a2e-3f0e-4a8e-9d55-6c1b8e8a4c11/results?offset=0&limit=1000"
+                .get("{id}/results").description("Page of the results of a job")
+                .bindingMode(RestBindingMode.off)
+                .param().name("id").type(RestParamType.path).description("The job ID").endParam()
+                .param().name("offset").type(RestParamType.query).description("Index of the first result. Default is 0.").endParam()
+                .param().name("limit").type(RestParamType.query).description("Maximum number of results. Default is 1000.").endParam()
+                .produces(Constants.MIME_TYPE_NDJSON)
+                .route()
+                .process(admit(lookupLimiter, (Exchange exch) -> {
+                    executeExpansionJobResults(exch);
+                }))
+                .endRest();
+
         rest("/v2/search/").description("Fragnet search")
                 .bindingMode(RestBindingMode.json)
                 .get("userinfo").description("User info")
@@ -222,18 +358,18 @@ public class FragnetSearchRouteBuilder extends AbstractFragnetSearchRouteBuilder
                 .param().name("smiles").type(RestParamType.path).description("SMILES query").endParam()
                 .produces("application/json")
                 .route()
-                .process((Exchange exch) -> {
+                .process(admit(lookupLimiter, (Exchange exch) -> {
                     executeMoleculeQuery(exch);
-                })
+                }))
                 .endRest()
                 .post("molecule").description("Molecule search")
                 .bindingMode(RestBindingMode.off)
                 .param().name("molfile").type(RestParamType.body).description("Molfile query").endParam()
                 .produces("application/json")
                 .route()
-                .process((Exchange exch) -> {
+                .process(admit(lookupLimiter, (Exchange exch) -> {
                     executeMoleculeQuery(exch);
-                })
+                }))
                 .marshal().json(JsonLibrary.Jackson)
                 .endRest()
                 // Fetch the child fragments of a molecule
@@ -243,18 +379,18 @@ public class FragnetSearchRouteBuilder extends AbstractFragnetSearchRouteBuilder
                 .param().name("smiles").type(RestParamType.path).description("SMILES query").endParam()
                 .produces("application/json")
                 .route()
-                .process((Exchange exch) -> {
+                .process(admit(lookupLimiter, (Exchange exch) -> {
                     executeFragmentQuery(exch);
-                })
+                }))
                 .endRest()
                 .post("fragments").description("Find fragments of a molecule")
                 .bindingMode(RestBindingMode.off)
                 .param().name("molfile").type(RestParamType.body).description("Molfile query").endParam()
                 .produces("application/json")
                 .route()
-                .process((Exchange exch) -> {
+                .process(admit(lookupLimiter, (Exchange exch) -> {
                     executeFragmentQuery(exch);
-                })
+                }))
                 .marshal().json(JsonLibrary.Jackson)
                 .endRest()
                 // Fetch the expansions of a molecule that involve a specific synthon
@@ -271,13 +407,14 @@ public class FragnetSearchRouteBuilder extends AbstractFragnetSearchRouteBuilder
                 .param().name("limit").type(RestParamType.query).description("Max number of results to be returned").endParam()
                 .produces("application/json")
                 .route()
-                .process((Exchange exch) -> {
+                .process(admit(expansionLimiter, (Exchange exch) -> {
                     executeSynthonExpand(exch);
-                })
+                }))
                 .endRest()
                 // example:
                 // curl "$FRAGNET_SERVER/fragnet-search/rest/v2/search/neighbourhood/c1ccc%28Nc2nc3ccccc3o2%29cc1?hac=3&rac=1&hops=2&calcs=LOGP,SIM_RDKIT_TANIMOTO"
                 .get("neighbourhood/{smiles}").description("Neighbourhood search")
+                .bindingMode(RestBindingMode.off)
                 .param().name("smiles").type(RestParamType.path).description("SMILES query").endParam()
                 .param().name("hac").type(RestParamType.query).description("Heavy atom count bounds").endParam()
                 .param().name("rac").type(RestParamType.query).description("Ring atom count bounds").endParam()
@@ -285,26 +422,41 @@ public class FragnetSearchRouteBuilder extends AbstractFragnetSearchRouteBuilder
                 .param().name("calcs").type(RestParamType.query).description("Calculations to execute").endParam()
                 .param().name("suppliers").type(RestParamType.query).description("Suppliers to include").endParam()
                 .param().name("pathLimit").type(RestParamType.query).description("Limit for the number of paths to return from the graph query").endParam()
-                .produces("application/json")
+                .param().name("format").type(RestParamType.query).description("Set to 'columnar' for the columnar form of the results").endParam()
+                .param().name("mcs").type(RestParamType.query).description("Set to false to approximate the refmol atoms missing from each group rather than generating the MCS").endParam()
+                .param().name("groups").type(RestParamType.query).description("Set to 'summary' to summarise the groups, with the details fetched using neighbourhood-group").endParam()
+                .produces(ResponseFormat.MEDIA_TYPES)
                 .route()
-                .process((Exchange exch) -> {
+                .process(admit(neighbourhoodLimiter, (Exchange exch) -> {
                     executeNeighbourhoodQuery(exch);
-                })
+                }))
+                .endRest()
+                // example:
+                // curl "$FRAGNET_SERVER/fragnet-search/rest/v2/search/neighbourhood-group/0b3f6a2e-3f0e-4a8e-9d55-6c1b8e8a4c11/0"
+                .get("neighbourhood-group/{handle}/{index}").description("Details of a group from a summarised neighbourhood search")
+                .bindingMode(RestBindingMode.off)
+                .param().name("handle").type(RestParamType.path).description("The handle from the neighbourhood search").endParam()
+                .param().name("index").type(RestParamType.path).description("The index of the group").endParam()
+                .produces(ResponseFormat.MEDIA_TYPES)
+                .route()
+                .process(admit(neighbourhoodLimiter, (Exchange exch) -> {
+                    executeNeighbourhoodGroupQuery(exch);
+                }))
                 .endRest()
                 .get("suppliers").description("List the available suppliers")
                 .produces("application/json")
                 .route()
-                .process((Exchange exch) -> {
+                .process(admit(lookupLimiter, (Exchange exch) -> {
                     executeSuppliersQuery(exch);
-                })
+                }))
                 .endRest()
                 .get("availability/{smiles}").description("Get molecule availability")
                 .param().name("smiles").type(RestParamType.path).description("SMILES query").endParam()
                 .produces("application/json")
                 .route()
-                .process((Exchange exch) -> {
+                .process(admit(lookupLimiter, (Exchange exch) -> {
                     executeAvailabilityQuery(exch);
-                })
+                }))
                 .endRest()
                 .get("calcs").description("List the available calculations")
                 .produces("application/json")
@@ -325,12 +477,11 @@ public class FragnetSearchRouteBuilder extends AbstractFragnetSearchRouteBuilder
                 .param().name("hops").type(RestParamType.query).description("Number of edge traversals").endParam()
                 .param().name("suppliers").type(RestParamType.query).description("Suppliers to include").endParam()
                 .param().name("pathLimit").type(RestParamType.query).description("Limit for the number of paths to return from the graph query").endParam()
-                .produces("application/json")
+                .produces(ResponseFormat.MEDIA_TYPES)
                 .route()
-                .process((Exchange exch) -> {
+                .process(admit(expansionLimiter, (Exchange exch) -> {
                     executeExpansionQuery(exch, Constants.MIME_TYPE_SMILES);
-                })
-                .marshal().json(JsonLibrary.Jackson)
+                }))
                 .endRest()
                 .post("expand").description("Expansion search")
                 .bindingMode(RestBindingMode.off)
@@ -341,13 +492,12 @@ public class FragnetSearchRouteBuilder extends AbstractFragnetSearchRouteBuilder
                 .param().name("hops").type(RestParamType.query).description("Number of edge traversals").endParam()
                 .param().name("suppliers").type(RestParamType.query).description("Suppliers to include").endParam()
                 .param().name("pathLimit").type(RestParamType.query).description("Limit for the number of paths to return from the graph query").endParam()
-                .produces("application/json")
+                .produces(ResponseFormat.MEDIA_TYPES)
                 .route()
-                .process((Exchange exch) -> {
+                .process(admit(expansionLimiter, (Exchange exch) -> {
                     String contentType = exch.getIn().getHeader(Exchange.CONTENT_TYPE, String.class);
                     executeExpansionQuery(exch, contentType);
-                })
-                .marshal().json(JsonLibrary.Jackson)
+                }))
                 .endRest()
                 .post("expand-multi").description("Expansion search (multiple inputs)")
                 .bindingMode(RestBindingMode.off)
@@ -359,12 +509,11 @@ public class FragnetSearchRouteBuilder extends AbstractFragnetSearchRouteBuilder
                 .param().name("hops").type(RestParamType.query).description("Number of edge traversals").endParam()
                 .param().name("suppliers").type(RestParamType.query).description("Suppliers to include").endParam()
                 .param().name("id_prop").type(RestParamType.query).description("Name of the property for the ID (use _Name for the mol name)").endParam()
-                .produces("application/json")
+                .produces(ResponseFormat.MEDIA_TYPES + "," + Constants.MIME_TYPE_NDJSON)
                 .route()
-                .process((Exchange exch) -> {
+                .process(admit(expandMultiLimiter, (Exchange exch) -> {
                     executeExpansionMultiQuery(exch);
-                })
-                .marshal().json(JsonLibrary.Jackson)
+                }))
                 .endRest()
         ;
     }
@@ -524,6 +673,31 @@ public class FragnetSearchRouteBuilder extends AbstractFragnetSearchRouteBuilder
                 throw new IllegalArgumentException("Query molecule must be specified");
             }
 
+            // only SMILES are short enough to be worth recording as they were supplied
+            String input = Constants.MIME_TYPE_SMILES.equals(conentType) ? molecule : null;
+            if (input != null && negativeResultCache.isInputAbsent(input)) {
+                negativeCacheHitsTotal.inc();
+                writeExpansionNotFound(message, username, t0);
+                return;
+            }
+
+            ResponseFormat format = ResponseFormat.fromAccept(message.getHeader("Accept", String.class));
+            String cacheKey = null;
+            if (resultCache.isEnabled()) {
+                cacheKey = ResultCache.fingerprint("expand", format, molecule, conentType, hops, hacMin, hacMax, racMin, racMax, suppls, pathLimit);
+                if (writeCachedResponse(message, cacheKey, format)) {
+                    writeToExpansionQueryLog(username, "ExpansionQueryCached", System.nanoTime() - t0, -1, -1);
+                    return;
+                }
+            }
+
+            String stdSmiles = MolStandardize.prepareNonisoMol(molecule, conentType);
+            if (isKnownAbsent(stdSmiles)) {
+                negativeResultCache.markAbsent(stdSmiles, input);
+                writeExpansionNotFound(message, username, t0);
+                return;
+            }
+
             ExpansionResults result;
             try (Session session = graphdb.getSession()) {
                 // execute the query
@@ -532,7 +706,10 @@ public class FragnetSearchRouteBuilder extends AbstractFragnetSearchRouteBuilder
                     query.setLimit(pathLimit);
                 }
                 long n0 = System.nanoTime();
-                result = query.executeQuery(molecule, conentType, hops, hacMin, hacMax, racMin, racMax, suppliers);
+                result = query.executeStandardizedQuery(stdSmiles, hops, hacMin, hacMax, racMin, racMax, suppliers);
+                if (result.getSize() == 0) {
+                    recordIfAbsent(session, stdSmiles, input);
+                }
                 long n1 = System.nanoTime();
                 expansionSearchNeo4jSearchDuration.inc((double) (n1 - n0));
                 expansionSearchHitsTotal.inc((double) result.getSize());
@@ -543,8 +720,7 @@ public class FragnetSearchRouteBuilder extends AbstractFragnetSearchRouteBuilder
                 writeErrorResponse(message, 404,
                         "{\"error\": \"No Results\",\"message\": \"ExpansionQuery molecule not found in the database or could not be expanded\"}");
             } else {
-                message.setBody(result);
-                message.setHeader(Exchange.HTTP_RESPONSE_CODE, 200);
+                writeResponse(message, result, format, cacheKey);
                 long t1 = System.nanoTime();
                 long duration = t1 - t0; //nanos
                 writeToExpansionQueryLog(username, "ExpansionQuery", duration, result.getSize(), result.getPathCount());
@@ -589,6 +765,12 @@ public class FragnetSearchRouteBuilder extends AbstractFragnetSearchRouteBuilder
 
             List<String> suppliers = parseSuppliers(suppls);
 
+            String accept = message.getHeader("Accept", String.class);
+            if (accept != null && accept.contains(Constants.MIME_TYPE_NDJSON)) {
+                executeExpansionMultiStream(message, username, t0, hops, hacMin, hacMax, racMin, racMax, suppliers);
+                return;
+            }
+
             String body = message.getBody(String.class);
             if (body == null | body.isEmpty()) {
                 LOG.info("NeighbourhoodQuery found no results");
@@ -612,18 +794,21 @@ public class FragnetSearchRouteBuilder extends AbstractFragnetSearchRouteBuilder
 
                 expansionSearchRequestsTotal.inc(queries.getMolecules().size());
 
+                ResponseFormat format = ResponseFormat.fromAccept(message.getHeader("Accept", String.class));
+
                 // run the searches
                 ExpandMultiResult result;
-                try (Session session = graphdb.getSession()) {
-                    // execute the query
-                    HitExpander expander = new HitExpander(session);
+                // execute the queries, each worker using its own session
+                HitExpander expander = new HitExpander(graphdb);
 
-                    long n0 = System.nanoTime();
-                    result = expander.processMolecules(queries, hops, hacMin, hacMax, racMin, racMax, suppliers);
-                    long n1 = System.nanoTime();
-                    expansionSearchNeo4jSearchDuration.inc((double) (n1 - n0));
-                    expansionSearchHitsTotal.inc((double) result.getResults().size());
-                }
+                long n0 = System.nanoTime();
+                result = expander.processMolecules(queries, hops, hacMin, hacMax, racMin, racMax, suppliers);
+                long n1 = System.nanoTime();
+                expansionSearchNeo4jSearchDuration.inc((double) (n1 - n0));
+                expansionSearchHitsTotal.inc((double) result.getResults().size());
+                int invalid = HitExpander.countInvalid(queries.getMolecules());
+                expansionSearchInvalidTotal.inc(invalid);
+                expansionSearchDuplicatesTotal.inc(result.getQueryCount() - result.getUniqueQueryCount() - invalid);
 
                 if (result.getResults().size() == 0) { // no results found
                     LOG.info("ExpansionMultiQuery found no results");
@@ -631,8 +816,7 @@ public class FragnetSearchRouteBuilder extends AbstractFragnetSearchRouteBuilder
                     message.setHeader(Exchange.HTTP_RESPONSE_CODE, 404);
 
                 } else {
-                    message.setBody(result);
-                    message.setHeader(Exchange.HTTP_RESPONSE_CODE, 200);
+                    writeResponse(message, result, format, null);
                     long t1 = System.nanoTime();
                     long duration = t1 - t0; //nanos
                     writeToExpansionQueryLog(username, "ExpansionMulti", duration, result.getResults().size(), queries.getMolecules().size());
@@ -643,14 +827,228 @@ public class FragnetSearchRouteBuilder extends AbstractFragnetSearchRouteBuilder
         } catch (Exception ex) {
             LOG.log(Level.SEVERE, "ExpansionQuery Failed", ex);
             expansionSearchErrorsTotal.inc();
-            message.setBody("{\"error\": \"ExpansionQuery Failed\",\"message\",\"" + ex.getLocalizedMessage() + "\"}");
-            message.setHeader(Exchange.HTTP_RESPONSE_CODE, 500);
+            writeErrorResponse(message, 500, "{\"error\": \"ExpansionQuery Failed\",\"message\",\"" + ex.getLocalizedMessage() + "\"}");
 
             long t1 = System.nanoTime();
             writeErrorToQueryLog(username, "ExpansionQuery", t1 - t0, ex.getLocalizedMessage());
         }
     }
 
+    /**
+     * Expand the POSTed molecules a chunk at a time, writing the results of each molecule as a line of JSON as each
+     * chunk completes, followed by a summary. The molecules are read as they are needed so the whole of a large input
+     * is never held in memory. Once the results have started to be written the status cannot be changed, so failures
+     * are reported in the summary.
+     */
+    private void executeExpansionMultiStream(Message message, String username, long t0, Integer hops,
+                                             Integer hacMin, Integer hacMax, Integer racMin, Integer racMax,
+                                             List<String> suppliers) throws IOException {
+
+        String contentType = message.getHeader(Exchange.CONTENT_TYPE, String.class);
+        if (contentType == null || contentType.isEmpty()) {
+            throw new IllegalStateException("ContentType must be specified");
+        }
+        String idProp = message.getHeader("id_prop", String.class);
+        InputStream body = message.getBody(InputStream.class);
+        if (body == null) {
+            message.setBody("{\"error\": \"No Input\",\"message\": \"No molecules POSTed.\"}");
+            message.setHeader(Exchange.HTTP_RESPONSE_CODE, 500);
+            return;
+        }
+
+        HitExpander expander = new HitExpander(graphdb);
+        ExpandMultiSummary summary = new ExpandMultiSummary(
+                HitExpander.createParameters(hops, hacMin, hacMax, racMin, racMax, suppliers));
+
+        try (ConvertedSmilesMolsReader reader = new ConvertedSmilesMolsReader(
+                new InputStreamReader(body, StandardCharsets.UTF_8), contentType, idProp,
+                HitExpander.getChunkSize())) {
+
+            ByteArrayOutputStream buffer = null;
+            OutputStream out = openResponseStream(message, Constants.MIME_TYPE_NDJSON);
+            if (out == null) {
+                // not running in a servlet
+                buffer = new ByteArrayOutputStream();
+                out = buffer;
+            }
+
+            try {
+                ConvertedSmilesMols chunk;
+                while ((chunk = reader.nextChunk()) != null) {
+                    expansionSearchRequestsTotal.inc(chunk.getMolecules().size());
+                    long n0 = System.nanoTime();
+                    List<ExpandMultiQueryResult> results = expander.expandMolecules(chunk, hops, hacMin, hacMax, racMin, racMax, suppliers);
+                    long n1 = System.nanoTime();
+                    expansionSearchNeo4jSearchDuration.inc((double) (n1 - n0));
+                    int unique = HitExpander.countUniqueSmiles(chunk.getMolecules());
+                    summary.addUniqueQueryCount(unique);
+                    int invalid = HitExpander.countInvalid(chunk.getMolecules());
+                    expansionSearchInvalidTotal.inc(invalid);
+                    expansionSearchDuplicatesTotal.inc(chunk.getMolecules().size() - unique - invalid);
+                    for (ExpandMultiQueryResult result : results) {
+                        writeLine(out, result);
+                        summary.addQueryResult(result);
+                        expansionSearchHitsTotal.inc(result.getHitCount());
+                    }
+                    out.flush();
+                }
+            } catch (Exception ex) {
+                LOG.log(Level.SEVERE, "ExpansionMultiQuery Failed", ex);
+                expansionSearchErrorsTotal.inc();
+                summary.setError(ex.getLocalizedMessage());
+                writeErrorToQueryLog(username, "ExpansionMultiStream", System.nanoTime() - t0, ex.getLocalizedMessage());
+            }
+
+            long t1 = System.nanoTime();
+            long duration = t1 - t0; //nanos
+            summary.setExecutionTimeMillis(duration / 1000000);
+            writeLine(out, summary);
+            out.flush();
+
+            if (buffer != null) {
+                message.setBody(new String(buffer.toByteArray(), StandardCharsets.UTF_8));
+                message.setHeader(Exchange.CONTENT_TYPE, Constants.MIME_TYPE_NDJSON);
+                message.setHeader(Exchange.HTTP_RESPONSE_CODE, 200);
+            }
+            if (summary.getError() == null) {
+                writeToExpansionQueryLog(username, "ExpansionMultiStream", duration, summary.getHitCount(), summary.getQueryCount());
+                expansionSearchRequestsDuration.inc((double) duration);
+            }
+        }
+    }
+
+    void executeExpansionJobSubmit(Exchange exch) {
+
+        expansionJobRequestsTotal.inc();
+        Message message = exch.getIn();
+        long t0 = System.nanoTime();
+        String username = getUsername(exch);
+
+        try {
+            Integer hops = message.getHeader("hops", Integer.class);
+            Integer hacMin = message.getHeader("hacMin", Integer.class);
+            Integer hacMax = message.getHeader("hacMax", Integer.class);
+            Integer racMin = message.getHeader("racMin", Integer.class);
+            Integer racMax = message.getHeader("racMax", Integer.class);
+            List<String> suppliers = parseSuppliers(message.getHeader("suppliers", String.class));
+            String contentType = message.getHeader(Exchange.CONTENT_TYPE, String.class);
+            if (contentType == null || contentType.isEmpty()) {
+                throw new IllegalStateException("ContentType must be specified");
+            }
+            String idProp = message.getHeader("id_prop", String.class);
+            Long contentLength = message.getHeader(Exchange.CONTENT_LENGTH, Long.class);
+            if (contentLength != null && contentLength > jobManager.getMaxInputSize()) {
+                writeInputTooLarge(message);
+                return;
+            }
+            InputStream body = message.getBody(InputStream.class);
+            if (body == null) {
+                message.setBody("{\"error\": \"No Input\",\"message\": \"No molecules POSTed.\"}");
+                message.setHeader(Exchange.HTTP_RESPONSE_CODE, 500);
+                return;
+            }
+            ResponseFormat format = ResponseFormat.fromAccept(message.getHeader("Accept", String.class));
+
+            ExpansionJob job = jobManager.submit(username, body, contentType, idProp, hops, hacMin, hacMax, racMin, racMax, suppliers);
+            writeResponse(message, job, format, null);
+            writeToExpansionQueryLog(username, "ExpansionJobSubmit", System.nanoTime() - t0, 0, job.getQueryCount());
+
+        } catch (RejectedExecutionException ex) {
+            LOG.info("ExpansionJob rejected as too many jobs are queued");
+            writeErrorResponse(message, 503,
+                    "{\"error\": \"Busy\",\"message\": \"Too many jobs are waiting to run. Try again later.\"}");
+        } catch (ExpansionJobManager.InputTooLargeException ex) {
+            writeInputTooLarge(message);
+        } catch (Exception ex) {
+            LOG.log(Level.SEVERE, "ExpansionJob Failed", ex);
+            expansionSearchErrorsTotal.inc();
+            writeErrorResponse(message, 500, "{\"error\": \"ExpansionJob Failed\",\"message\",\"" + ex.getLocalizedMessage() + "\"}");
+
+            long t1 = System.nanoTime();
+            writeErrorToQueryLog(username, "ExpansionJob", t1 - t0, ex.getLocalizedMessage());
+        }
+    }
+
+    void executeExpansionJobStatus(Exchange exch) {
+
+        expansionJobRequestsTotal.inc();
+        Message message = exch.getIn();
+        try {
+            // a job can only be seen by the user that submitted it
+            ExpansionJob job = jobManager.getJob(message.getHeader("id", String.class), getUsername(exch));
+            if (job == null) {
+                writeJobNotFound(message);
+            } else {
+                ResponseFormat format = ResponseFormat.fromAccept(message.getHeader("Accept", String.class));
+                writeResponse(message, job, format, null);
+            }
+        } catch (Exception ex) {
+            LOG.log(Level.SEVERE, "ExpansionJobStatus Failed", ex);
+            writeErrorResponse(message, 500, "{\"error\": \"ExpansionJobStatus Failed\",\"message\",\"" + ex.getLocalizedMessage() + "\"}");
+        }
+    }
+
+    void executeExpansionJobResults(Exchange exch) {
+
+        expansionJobRequestsTotal.inc();
+        Message message = exch.getIn();
+        try {
+            // a job can only be seen by the user that submitted it
+            ExpansionJob job = jobManager.getJob(message.getHeader("id", String.class), getUsername(exch));
+            if (job == null) {
+                writeJobNotFound(message);
+                return;
+            }
+            Integer offset = message.getHeader("offset", Integer.class);
+            Integer limit = message.getHeader("limit", Integer.class);
+            if (offset == null) {
+                offset = 0;
+            }
+            if (limit == null) {
+                limit = 1000;
+            }
+            if (offset < 0 || limit < 0) {
+                writeErrorResponse(message, 400,
+                        "{\"error\": \"Bad Request\",\"message\": \"Offset and limit cannot be negative\"}");
+                return;
+            }
+
+            OutputStream out = openResponseStream(message, Constants.MIME_TYPE_NDJSON);
+            if (out == null) {
+                // not running in a servlet
+                ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                jobManager.writeResults(job, offset, limit, buffer);
+                message.setBody(new String(buffer.toByteArray(), StandardCharsets.UTF_8));
+                message.setHeader(Exchange.CONTENT_TYPE, Constants.MIME_TYPE_NDJSON);
+                message.setHeader(Exchange.HTTP_RESPONSE_CODE, 200);
+            } else {
+                jobManager.writeResults(job, offset, limit, out);
+                out.flush();
+            }
+        } catch (Exception ex) {
+            LOG.log(Level.SEVERE, "ExpansionJobResults Failed", ex);
+            writeErrorResponse(message, 500, "{\"error\": \"ExpansionJobResults Failed\",\"message\",\"" + ex.getLocalizedMessage() + "\"}");
+        }
+    }
+
+    private void writeInputTooLarge(Message message) {
+        LOG.info("ExpansionJob rejected as the molecules are too large");
+        writeErrorResponse(message, 413,
+                "{\"error\": \"Payload Too Large\",\"message\": \"The molecules exceed the maximum size of "
+                        + jobManager.getMaxInputSize() + " bytes\"}");
+    }
+
+    private void writeJobNotFound(Message message) {
+        writeErrorResponse(message, 404,
+                "{\"error\": \"Not Found\",\"message\": \"No such job. Finished jobs are deleted after a while.\"}");
+    }
+
+    /** Write the object as a single line of JSON */
+    private void writeLine(OutputStream out, Object object) throws IOException {
+        out.write(Utils.getObjectMapper().writeValueAsBytes(object));
+        out.write('\n');
+    }
+
     private String[] fetchSmilesOrMolfile(Message message) {
         String queryMol = null;
         String mimeType = message.getHeader(Exchange.CONTENT_TYPE, String.class);
@@ -688,16 +1086,25 @@ public class FragnetSearchRouteBuilder extends AbstractFragnetSearchRouteBuilder
                 throw new IllegalArgumentException("Query molecule must be specified");
             }
 
+            String stdSmiles = MolStandardize.prepareNonisoMol(queryMol, mimeType);
+            if (isKnownAbsent(stdSmiles)) {
+                moleculeSearchMissesTotal.inc(1.0d);
+                message.setBody("{\"error\": \"MoleculeQuery Failed\",\"message\": \"Molecule not found\"}");
+                message.setHeader(Exchange.HTTP_RESPONSE_CODE, 404);
+                return;
+            }
+
             MoleculeNode molNode;
             try (Session session = graphdb.getSession()) {
                 // execute the query
                 MoleculeQuery query = new MoleculeQuery(session);
 
                 long n0 = System.nanoTime();
-                molNode = query.execute(queryMol, mimeType);
+                molNode = query.executeStandardized(stdSmiles);
                 long n1 = System.nanoTime();
                 moleculeSearchNeo4jSearchDuration.inc((double) (n1 - n0));
                 if (molNode == null) {
+                    negativeResultCache.markAbsent(stdSmiles, null);
                     moleculeSearchMissesTotal.inc(1.0d);
                     // throw 404
                     message.setBody("{\"error\": \"MoleculeQuery Failed\",\"message\": \"Molecule not found\"}");
@@ -739,13 +1146,21 @@ public class FragnetSearchRouteBuilder extends AbstractFragnetSearchRouteBuilder
                 throw new IllegalArgumentException("Query molecule must be specified");
             }
 
+            String stdSmiles = MolStandardize.prepareNonisoMol(queryMol, mimeType);
+            if (isKnownAbsent(stdSmiles)) {
+                fragmentSearchMissesTotal.inc(1.0d);
+                message.setBody("{\"error\": \"MoleculeQuery Failed\",\"message\": \"Molecule not found\"}");
+                message.setHeader(Exchange.HTTP_RESPONSE_CODE, 404);
+                return;
+            }
+
             List<String> smiles;
             try (Session session = graphdb.getSession()) {
                 // execute the query
                 FragmentQuery query = new FragmentQuery(session);
 
                 long n0 = System.nanoTime();
-                smiles = query.execute(queryMol, mimeType);
+                smiles = query.executeStandardized(stdSmiles);
                 long n1 = System.nanoTime();
                 fragmentSearchNeo4jSearchDuration.inc((double) (n1 - n0));
                 if (smiles == null || smiles.isEmpty()) {
@@ -856,11 +1271,50 @@ public class FragnetSearchRouteBuilder extends AbstractFragnetSearchRouteBuilder
             }
             String suppls = message.getHeader("suppliers", String.class);
             String calcs = message.getHeader("calcs", String.class);
+            String layout = message.getHeader("format", String.class);
+            boolean columnar = ColumnarNeighbourhoodGraph.FORMAT.equals(layout);
+            if (layout != null && !layout.isEmpty() && !columnar) {
+                throw new IllegalArgumentException("Unsupported format: " + layout);
+            }
+            Boolean mcs = message.getHeader("mcs", Boolean.class);
+            boolean approximateMCS = mcs != null && !mcs;
+            String groups = message.getHeader("groups", String.class);
+            boolean summary = NeighbourhoodGraphSummary.GROUPS_SUMMARY.equals(groups);
+            if (groups != null && !groups.isEmpty() && !summary) {
+                throw new IllegalArgumentException("Unsupported groups: " + groups);
+            }
+            if (summary && columnar) {
+                throw new IllegalArgumentException("Group summaries are not supported in columnar format");
+            }
             LOG.info(String.format("hops=&s hac=%s rac=%s calcs=%s", hops, hac, rac, calcs));
 
             List<Calculator.Calculation> calculations = parseCalculations(calcs);
             List<String> suppliers = parseSuppliers(suppls);
 
+            if (negativeResultCache.isInputAbsent(smilesQuery)) {
+                negativeCacheHitsTotal.inc();
+                writeNeighbourhoodNotFound(message, username, t0);
+                return;
+            }
+
+            ResponseFormat format = ResponseFormat.fromAccept(message.getHeader("Accept", String.class));
+            String cacheKey = null;
+            // summaries are not cached as the handle is only valid for a short time
+            if (resultCache.isEnabled() && !summary) {
+                cacheKey = ResultCache.fingerprint("neighbourhood", format, columnar, approximateMCS, smilesQuery, hops, hac, rac, suppls, calcs, pathLimit, groupLimit);
+                if (writeCachedResponse(message, cacheKey, format)) {
+                    writeToNeighbourhoodQueryLog(username, "NeighbourhoodQueryCached", System.nanoTime() - t0, -1, -1, -1);
+                    return;
+                }
+            }
+
+            String stdSmiles = MolStandardize.prepareNonisoMol(smilesQuery, Constants.MIME_TYPE_SMILES);
+            if (isKnownAbsent(stdSmiles)) {
+                negativeResultCache.markAbsent(stdSmiles, smilesQuery);
+                writeNeighbourhoodNotFound(message, username, t0);
+                return;
+            }
+
             NeighbourhoodGraph result;
             try (Session session = graphdb.getSession()) {
                 // execute the query
@@ -869,48 +1323,69 @@ public class FragnetSearchRouteBuilder extends AbstractFragnetSearchRouteBuilder
                     query.setLimit(pathLimit);
                 }
                 long n0 = System.nanoTime();
-                result = query.executeNeighbourhoodQuery(smilesQuery, hops, hac, rac, suppliers, groupLimit);
+                result = query.executeStandardizedQuery(stdSmiles, hops, hac, rac, suppliers, groupLimit);
+                if (result.getNodes().size() == 0) {
+                    recordIfAbsent(session, stdSmiles, smilesQuery);
+                }
                 long n1 = System.nanoTime();
                 neighbourhoodSearchNeo4jSearchDuration.inc((double) (n1 - n0));
                 neighbourhoodSearchHitsTotal.inc((double) result.getNodes().size());
             }
 
-            if (result.getNodes().size() == 0) { // no results found
-                LOG.info("NeighbourhoodQuery found no results");
-                message.setBody("{\"error\": \"No Results\",\"message\": \"NeighbourhoodQuery molecule not found in the database\"}");
-                message.setHeader(Exchange.HTTP_RESPONSE_CODE, 404);
+            boolean stored = false;
+            try {
+                if (result.getNodes().size() == 0) { // no results found
+                    LOG.info("NeighbourhoodQuery found no results");
+                    message.setBody("{\"error\": \"No Results\",\"message\": \"NeighbourhoodQuery molecule not found in the database\"}");
+                    message.setHeader(Exchange.HTTP_RESPONSE_CODE, 404);
 
-            } else {
+                } else {
 
-                // generate the group info for each group
-                LOG.fine("Generating group info");
-                long m0 = System.nanoTime();
-                result.generateGroupInfo();
-                long m1 = System.nanoTime();
-                neighbourhoodSearchMCSDuration.inc((double) (m1 - m0));
-
-                // if calculations have been specified then calculate them
-                if (!calculations.isEmpty()) {
-                    LOG.info("Running " + calculations.size() + " calculations");
-                    long c0 = System.nanoTime();
-                    result.calculate(result.getRefmol(), calculations.toArray(new Calculator.Calculation[calculations.size()]));
-                    long c1 = System.nanoTime();
-                    neighbourhoodSearchCalculationsDuration.inc((double) (c1 - c0));
+                    // generate the group info for each group, or just what is needed for the summaries
+                    LOG.fine("Generating group info");
+                    long m0 = System.nanoTime();
+                    result.setApproximateMCS(approximateMCS);
+                    if (summary) {
+                        result.generateGroupSummaries();
+                    } else {
+                        result.generateGroupInfo();
+                    }
+                    long m1 = System.nanoTime();
+                    neighbourhoodSearchMCSDuration.inc((double) (m1 - m0));
+
+                    // if calculations have been specified then calculate them
+                    if (!calculations.isEmpty()) {
+                        LOG.info("Running " + calculations.size() + " calculations");
+                        long c0 = System.nanoTime();
+                        result.calculate(result.getRefmol(), calculations.toArray(new Calculator.Calculation[calculations.size()]));
+                        long c1 = System.nanoTime();
+                        neighbourhoodSearchCalculationsDuration.inc((double) (c1 - c0));
+                    }
+
+                    if (summary) {
+                        // the store is now responsible for closing the graph
+                        String handle = graphStore.put(result);
+                        stored = true;
+                        writeResponse(message, new NeighbourhoodGraphSummary(result, handle, graphStore.getTimeout()), format, null);
+                    } else {
+                        writeResponse(message, columnar ? new ColumnarNeighbourhoodGraph(result) : result, format, cacheKey);
+                    }
+                    long t1 = System.nanoTime();
+                    long duration = t1 - t0; //nanos
+                    writeToNeighbourhoodQueryLog(username, "NeighbourhoodQuery", duration, result.getNodeCount(), result.getEdgeCount(), result.getGroupCount());
+                    neighbourhoodSearchRequestsDuration.inc((double) duration);
+                }
+            } finally {
+                // free the native memory of the RDKit molecules now that the response has been written
+                if (!stored) {
+                    result.close();
                 }
-
-                message.setBody(result);
-                message.setHeader(Exchange.HTTP_RESPONSE_CODE, 200);
-                long t1 = System.nanoTime();
-                long duration = t1 - t0; //nanos
-                writeToNeighbourhoodQueryLog(username, "NeighbourhoodQuery", duration, result.getNodeCount(), result.getEdgeCount(), result.getGroupCount());
-                neighbourhoodSearchRequestsDuration.inc((double) duration);
             }
 
         } catch (Exception ex) {
             LOG.log(Level.SEVERE, "NeighbourhoodQuery Failed", ex);
             neighbourhoodSearchErrorsTotal.inc();
-            message.setBody("{\"error\": \"NeighbourhoodQuery Failed\",\"message\",\"" + ex.getLocalizedMessage() + "\"}");
-            message.setHeader(Exchange.HTTP_RESPONSE_CODE, 500);
+            writeErrorResponse(message, 500, "{\"error\": \"NeighbourhoodQuery Failed\",\"message\",\"" + ex.getLocalizedMessage() + "\"}");
 
             long t1 = System.nanoTime();
             writeErrorToQueryLog(username, "NeighbourhoodQuery", t1 - t0, ex.getLocalizedMessage());
@@ -918,6 +1393,152 @@ public class FragnetSearchRouteBuilder extends AbstractFragnetSearchRouteBuilder
     }
 
 
+    /**
+     * Generate and write the details of a group from a neighbourhood search that was run with group summaries.
+     */
+    void executeNeighbourhoodGroupQuery(Exchange exch) {
+
+        neighbourhoodGroupRequestsTotal.inc();
+
+        Message message = exch.getIn();
+        long t0 = System.nanoTime();
+        String username = getUsername(exch);
+
+        try {
+            String handle = message.getHeader("handle", String.class);
+            Integer index = message.getHeader("index", Integer.class);
+            if (handle == null || index == null) {
+                throw new IllegalArgumentException("Handle and index must be specified");
+            }
+            ResponseFormat format = ResponseFormat.fromAccept(message.getHeader("Accept", String.class));
+
+            NeighbourhoodGraph.Group group = graphStore.apply(handle, (graph) -> graph.generateGroupInfo(index));
+            if (group == null) {
+                LOG.info("Group " + index + " not found for " + handle);
+                message.setBody("{\"error\": \"No Results\",\"message\": \"Group not found. The handle may have expired\"}");
+                message.setHeader(Exchange.HTTP_RESPONSE_CODE, 404);
+            } else {
+                writeResponse(message, group, format, null);
+                long t1 = System.nanoTime();
+                writeToNeighbourhoodQueryLog(username, "NeighbourhoodGroupQuery", t1 - t0, -1, -1, 1);
+            }
+
+        } catch (Exception ex) {
+            LOG.log(Level.SEVERE, "NeighbourhoodGroupQuery Failed", ex);
+            neighbourhoodSearchErrorsTotal.inc();
+            writeErrorResponse(message, 500, "{\"error\": \"NeighbourhoodGroupQuery Failed\",\"message\",\"" + ex.getLocalizedMessage() + "\"}");
+
+            long t1 = System.nanoTime();
+            writeErrorToQueryLog(username, "NeighbourhoodGroupQuery", t1 - t0, ex.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Check whether the molecule is known not to be in the database, either because an earlier search established
+     * that or because it is rejected by the SMILES filter.
+     *
+     * @param stdSmiles The standardized SMILES
+     * @return True if the molecule is definitely not in the database
+     */
+    private boolean isKnownAbsent(String stdSmiles) {
+        if (negativeResultCache.isAbsent(stdSmiles)) {
+            negativeCacheHitsTotal.inc();
+            return true;
+        }
+        if (!moleculeFilter.mightContain(stdSmiles)) {
+            smilesFilterRejectionsTotal.inc();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * A search that finds nothing may just be too restrictive, so check whether the molecule itself is in the
+     * database before recording it as absent.
+     *
+     * @param session   The session to use
+     * @param stdSmiles The standardized SMILES
+     * @param input     The molecule as it was supplied, if it is worth recording. May be null.
+     */
+    private void recordIfAbsent(Session session, String stdSmiles, String input) {
+        if (negativeResultCache.isEnabled() && !new MoleculeQuery(session).exists(stdSmiles)) {
+            LOG.fine("Molecule not in database: " + stdSmiles);
+            negativeResultCache.markAbsent(stdSmiles, input);
+        }
+    }
+
+    private void writeNeighbourhoodNotFound(Message message, String username, long t0) {
+        LOG.info("NeighbourhoodQuery molecule is known not to be in the database");
+        message.setBody("{\"error\": \"No Results\",\"message\": \"NeighbourhoodQuery molecule not found in the database\"}");
+        message.setHeader(Exchange.HTTP_RESPONSE_CODE, 404);
+        writeToNeighbourhoodQueryLog(username, "NeighbourhoodQueryNotFound", System.nanoTime() - t0, 0, 0, 0);
+    }
+
+    private void writeExpansionNotFound(Message message, String username, long t0) {
+        LOG.info("ExpansionQuery molecule is known not to be in the database");
+        writeErrorResponse(message, 404,
+                "{\"error\": \"No Results\",\"message\": \"ExpansionQuery molecule not found in the database or could not be expanded\"}");
+        writeToExpansionQueryLog(username, "ExpansionQueryNotFound", System.nanoTime() - t0, 0, 0);
+    }
+
+    /**
+     * Write the result in the requested format, adding it to the result cache if a cache key is specified.
+     * The result is streamed directly to the HTTP response where possible.
+     *
+     * @param message  The message to write to
+     * @param result   The result to serialize
+     * @param format   The format to write
+     * @param cacheKey The fingerprint of the request. If null the result is not cached.
+     * @throws IOException
+     */
+    private void writeResponse(Message message, Object result, ResponseFormat format, String cacheKey) throws IOException {
+        try (ResultCache.EntryWriter copy = cacheKey == null ? null : resultCache.openEntry(cacheKey)) {
+            if (!streamResponse(message, result, format, copy)) {
+                // not running in a servlet
+                byte[] data = format.mapper.writeValueAsBytes(result);
+                if (copy != null) {
+                    copy.write(data);
+                }
+                if (format.isBinary()) {
+                    message.setBody(data);
+                } else {
+                    message.setBody(new String(data, StandardCharsets.UTF_8));
+                }
+                message.setHeader(Exchange.CONTENT_TYPE, format.mediaType);
+                message.setHeader(Exchange.HTTP_RESPONSE_CODE, 200);
+            }
+            if (copy != null) {
+                copy.commit();
+            }
+        }
+    }
+
+    /**
+     * Write the cached result for this request if there is one.
+     *
+     * @param message  The message to write to
+     * @param cacheKey The fingerprint of the request, which must include the format
+     * @param format   The format of the cached result
+     * @return Whether a cached result was found
+     */
+    private boolean writeCachedResponse(Message message, String cacheKey, ResponseFormat format) {
+        byte[] data = resultCache.getBytes(cacheKey);
+        if (data == null) {
+            resultCacheMissesTotal.inc();
+            return false;
+        }
+        LOG.fine("Using cached result");
+        resultCacheHitsTotal.inc();
+        if (format.isBinary()) {
+            message.setBody(data);
+        } else {
+            message.setBody(new String(data, StandardCharsets.UTF_8));
+        }
+        message.setHeader(Exchange.CONTENT_TYPE, format.mediaType);
+        message.setHeader(Exchange.HTTP_RESPONSE_CODE, 200);
+        return true;
+    }
+
     public void metrics(Writer responseWriter) throws IOException {
         TextFormat.write004(responseWriter, CollectorRegistry.defaultRegistry.metricFamilySamples());
         responseWriter.close();
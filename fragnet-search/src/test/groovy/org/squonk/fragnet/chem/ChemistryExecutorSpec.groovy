@@ -0,0 +1,69 @@
+package org.squonk.fragnet.chem
+
+import spock.lang.Specification
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ThreadPoolExecutor
+
+class ChemistryExecutorSpec extends Specification {
+
+    void "for each"() {
+
+        ChemistryExecutor executor = new ChemistryExecutor(4, 3, 'test')
+        Set<Integer> seen = ConcurrentHashMap.newKeySet()
+        Set<String> threads = ConcurrentHashMap.newKeySet()
+
+        when:
+        executor.forEach((1..100).toList()) {
+            seen.add(it)
+            threads.add(Thread.currentThread().name)
+            Thread.sleep(1)
+        }
+
+        then:
+        seen.size() == 100
+        threads.size() <= 3
+    }
+
+    void "map keeps order"() {
+
+        ChemistryExecutor executor = new ChemistryExecutor(4, 4, 'test')
+
+        when:
+        List<Integer> results = executor.map((1..200).toList()) { it * 2 }
+
+        then:
+        results == (1..200).collect { it * 2 }
+    }
+
+    void "for each propagates failure"() {
+
+        ChemistryExecutor executor = new ChemistryExecutor(2, 2, 'test')
+
+        when:
+        executor.forEach([1, 2, 3]) { if (it == 2) throw new IllegalArgumentException('bad') }
+
+        then:
+        thrown(IllegalArgumentException)
+    }
+
+    void "busy pool leaves nothing queued"() {
+
+        ChemistryExecutor executor = new ChemistryExecutor(2, 2, 'test')
+        ThreadPoolExecutor pool = executor.@executor
+        CountDownLatch busy = new CountDownLatch(1)
+        2.times { pool.execute { busy.await() } }
+
+        when:
+        // the calling thread does all the work as the pool threads are busy
+        List<Integer> results = executor.map((1..10).toList()) { it + 1 }
+
+        then:
+        results == (2..11).toList()
+        pool.queue.isEmpty()
+
+        cleanup:
+        busy.countDown()
+    }
+}
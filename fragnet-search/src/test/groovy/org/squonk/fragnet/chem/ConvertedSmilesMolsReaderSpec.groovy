@@ -0,0 +1,52 @@
+package org.squonk.fragnet.chem
+
+import org.squonk.fragnet.Constants
+import spock.lang.IgnoreIf
+import spock.lang.Specification
+
+@IgnoreIf({!env.RDBASE})
+class ConvertedSmilesMolsReaderSpec extends Specification {
+
+    static {
+        Runtime.getRuntime().loadLibrary0(groovy.lang.GroovyClassLoader.class, "GraphMolWrap")
+    }
+
+    void "read smiles in chunks"() {
+
+        String data = "CCO\tA\nc1ccccc1\n\nCCN\tC\nCCC\n"
+        def reader = new ConvertedSmilesMolsReader(new StringReader(data), Constants.MIME_TYPE_SMILES, null, 3)
+
+        when:
+        def chunk1 = reader.nextChunk()
+        def chunk2 = reader.nextChunk()
+        def chunk3 = reader.nextChunk()
+
+        then:
+        // blank lines are counted in the line numbers
+        chunk1.molecules*.id == ["A", "2", "C"]
+        chunk2.molecules*.id == ["5"]
+        chunk3 == null
+        reader.count == 4
+    }
+
+    void "chunks match reading in one go"() {
+
+        String data = "CCO\tA\nc1ccccc1\n\nCCN\tC\n\n\nCCC\nCC\n"
+        def all = MolStandardize.readStdNonisoSmilesFromSmilesData(data)
+        def reader = new ConvertedSmilesMolsReader(new StringReader(data), Constants.MIME_TYPE_SMILES, null, 2)
+
+        when:
+        def smiles = []
+        def ids = []
+        def chunk
+        while ((chunk = reader.nextChunk()) != null) {
+            smiles.addAll(chunk.molecules*.smiles)
+            ids.addAll(chunk.molecules*.id)
+        }
+
+        then:
+        smiles == all.molecules*.smiles
+        ids == all.molecules*.id
+        ids == ["A", "2", "C", "7", "8"]
+    }
+}
@@ -0,0 +1,21 @@
+package org.squonk.fragnet.chem
+
+import spock.lang.Specification
+
+class MCSCalculatorSpec extends Specification {
+
+    void "key ignores order of others"() {
+
+        expect:
+        MCSCalculator.generateKey('CC', ['c1ccccc1', 'CCO']) == MCSCalculator.generateKey('CC', ['CCO', 'c1ccccc1'])
+        MCSCalculator.generateKey('CC', ['CCO']) != MCSCalculator.generateKey('CCO', ['CC'])
+        MCSCalculator.generateKey('CC', ['CCO']) != MCSCalculator.generateKey('CC', ['CCO', 'CCO'])
+    }
+
+    void "key has fixed size"() {
+
+        expect:
+        MCSCalculator.generateKey('CC', []).length() == 64
+        MCSCalculator.generateKey('CC', (1..1000).collect { 'C' * it }).length() == 64
+    }
+}
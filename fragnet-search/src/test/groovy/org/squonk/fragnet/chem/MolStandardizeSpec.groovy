@@ -165,5 +165,60 @@ COCC(=O)Nc1cccc(NC(C)=O)c1  2
         mols.getMolecules().size() == 5
     }
 
+    void "split sdf records"() {
+
+        String sdf = "name1\n\n\n  0  0\nM  END\n>  <ID>  (1)\nabc\n\n\$\$\$\$\r\nname2\r\n\r\n\r\nM  END\r\n> <ID>\r\nd\r\ne\r\n\r\n\$\$\$\$\n\n"
+
+        when:
+        def records = MolStandardize.splitSDFRecords(sdf)
+
+        then:
+        records.size() == 2
+        MolStandardize.getSDFProperty(records[0], "ID") == "abc"
+        MolStandardize.getSDFProperty(records[1], "ID") == "d\ne"
+        MolStandardize.getSDFProperty(records[1], "_Name") == "name2"
+        MolStandardize.getSDFProperty(records[0], "other") == null
+    }
+
+    void "read sdf keeps order"() {
+
+        String data = new File("src/test/data/expand.sdf").text
+
+        when:
+        def all = MolStandardize.readStdNonisoSmilesFromSDFData(data, null)
+        def part = MolStandardize.readStdNonisoSmilesFromSDFData(data, null, 10)
+
+        then:
+        all.molecules*.id == ["1", "2", "3", "4", "5"]
+        part.molecules*.id == ["11", "12", "13", "14", "15"]
+        part.molecules*.smiles == all.molecules*.smiles
+        all.molecules.every { it.smiles && it.originalMol.contains("M  END") }
+    }
+
+    void "invalid smiles gives no smiles"() {
+
+        when:
+        def mols = MolStandardize.readStdNonisoSmilesFromSmilesData("CCO\nC1CC(\nc1ccccc1\n")
+
+        then:
+        mols.molecules*.id == ["1", "2", "3"]
+        mols.molecules[0].smiles == "CCO"
+        mols.molecules[1].smiles == null
+        mols.molecules[2].smiles == "c1ccccc1"
+    }
+
+    void "sdf file read the same as sdf data"() {
+
+        String path = "src/test/data/expand.sdf"
+
+        when:
+        def fromFile = MolStandardize.readStdNonisoSmilesFromSDFFile(path, null)
+        def fromData = MolStandardize.readStdNonisoSmilesFromSDFData(new File(path).text, null)
+
+        then:
+        fromFile.molecules*.id == fromData.molecules*.id
+        fromFile.molecules*.smiles == fromData.molecules*.smiles
+    }
+
 
 }
@@ -0,0 +1,50 @@
+package org.squonk.fragnet.chem
+
+import spock.lang.Specification
+
+class NativeArenaSpec extends Specification {
+
+    void "close deletes in reverse order"() {
+
+        List<String> deleted = []
+        NativeArena arena = new NativeArena()
+
+        when:
+        arena.add('a', { deleted << 'a' } as Runnable)
+        arena.add('b', { deleted << 'b' } as Runnable)
+        arena.add(null, { deleted << 'null' } as Runnable)
+        int size = arena.size()
+        arena.close()
+
+        then:
+        size == 2
+        deleted == ['b', 'a']
+        arena.size() == 0
+    }
+
+    void "close twice"() {
+
+        int count = 0
+        NativeArena arena = new NativeArena()
+        arena.add('a', { count++ } as Runnable)
+
+        when:
+        arena.close()
+        arena.close()
+
+        then:
+        count == 1
+    }
+
+    void "add after close fails"() {
+
+        NativeArena arena = new NativeArena()
+        arena.close()
+
+        when:
+        arena.add('a', {} as Runnable)
+
+        then:
+        thrown(IllegalStateException)
+    }
+}
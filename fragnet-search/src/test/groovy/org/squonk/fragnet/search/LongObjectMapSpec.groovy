@@ -0,0 +1,60 @@
+package org.squonk.fragnet.search
+
+import spock.lang.Specification
+
+class LongObjectMapSpec extends Specification {
+
+    void "put and get"() {
+
+        LongObjectMap<String> map = new LongObjectMap<>()
+
+        when:
+        def p1 = map.put(1L, "a")
+        def p2 = map.put(1L, "b")
+        def added = map.putIfAbsent(2L, "c")
+        def notAdded = map.putIfAbsent(2L, "d")
+
+        then:
+        p1 == null
+        p2 == "a"
+        added
+        !notAdded
+        map.size() == 2
+        map.get(1L) == "b"
+        map.get(2L) == "c"
+        map.get(3L) == null
+        map.containsKey(2L)
+        !map.containsKey(3L)
+    }
+
+    void "preserves insertion order when growing"() {
+
+        LongObjectMap<Long> map = new LongObjectMap<>()
+        List<Long> keys = (0..<1000).collect { (it * 7919L) % 1009 - 500 }.unique()
+
+        when:
+        keys.each { map.put(it, it) }
+
+        then:
+        map.size() == keys.size()
+        map.values() == keys
+        map.keys() as List == keys
+        keys.every { map.get(it) == it }
+        keys.indices.every { map.indexOf(keys[it]) == it }
+        map.indexOf(10000L) == -1
+    }
+
+    void "compute if absent"() {
+
+        LongObjectMap<String> map = new LongObjectMap<>()
+
+        when:
+        def v1 = map.computeIfAbsent(5L, { "v" + it })
+        def v2 = map.computeIfAbsent(5L, { "x" + it })
+
+        then:
+        v1 == "v5"
+        v2 == "v5"
+        map.size() == 1
+    }
+}
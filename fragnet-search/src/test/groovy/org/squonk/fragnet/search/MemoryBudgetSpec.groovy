@@ -0,0 +1,37 @@
+package org.squonk.fragnet.search
+
+import spock.lang.Specification
+
+class MemoryBudgetSpec extends Specification {
+
+    void "charge until exceeded"() {
+
+        MemoryBudget budget = new MemoryBudget(100)
+
+        expect:
+        budget.charge(60)
+        budget.charge(40)
+        !budget.isExceeded()
+        !budget.charge(1)
+        budget.isExceeded()
+        budget.used == 101
+    }
+
+    void "no limit"() {
+
+        MemoryBudget budget = new MemoryBudget(0)
+
+        expect:
+        budget.charge(Long.MAX_VALUE / 2 as long)
+        !budget.isExceeded()
+    }
+
+    void "estimates grow with content"() {
+
+        expect:
+        MemoryBudget.sizeOf((Object) null) == 0
+        MemoryBudget.sizeOf('abc') < MemoryBudget.sizeOf('abcdef')
+        MemoryBudget.sizeOf(['a', 'b']) > 2 * MemoryBudget.sizeOf('a')
+        MemoryBudget.sizeOf([hac: 12, cmpd_ids: ['x1', 'x2']]) > MemoryBudget.sizeOf(['x1', 'x2'])
+    }
+}
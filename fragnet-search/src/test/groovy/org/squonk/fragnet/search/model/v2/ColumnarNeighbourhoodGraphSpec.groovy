@@ -0,0 +1,37 @@
+package org.squonk.fragnet.search.model.v2
+
+import spock.lang.Specification
+
+class ColumnarNeighbourhoodGraphSpec extends Specification {
+
+    static final String LABEL1 = 'FG|C[Xe]|C[100Xe]|RING|Oc1ccc(-c2ccccc2)cc1[Xe]|OC1CCC(C2CCCCC2)CC1[100Xe]'
+    static final String LABEL2 = 'FG|O[Xe]|O[100Xe]|RING|Cc1ccc(-c2ccccc2)cc1[Xe]|CC1CCC(C2CCCCC2)CC1[100Xe]'
+
+    void "nodes and edges as columns"() {
+
+        NeighbourhoodGraph graph = new NeighbourhoodGraph('COc1ccc(-c2ccccc2)cc1', null)
+        MoleculeNode n1 = new MoleculeNode(10, 'COc1ccc(-c2ccccc2)cc1', MoleculeNode.MoleculeType.NET_MOL, ['F2', 'MOL'], [hac: 14, chac: 12])
+        MoleculeNode n2 = new MoleculeNode(20, 'Oc1ccc(-c2ccccc2)cc1', MoleculeNode.MoleculeType.NET_FRAG, ['F2'], [hac: 13])
+        MoleculeNode n3 = new MoleculeNode(30, 'Cc1ccc(-c2ccccc2)cc1', MoleculeNode.MoleculeType.NET_FRAG, ['F2'], [chac: 12])
+        graph.add(n1, n2, new MoleculeEdge(100, 10, 20, LABEL1))
+        graph.add(n2, n3, new MoleculeEdge(200, 20, 30, LABEL2))
+        graph.add(n1, n3, new MoleculeEdge(300, 10, 30, LABEL1))
+
+        when:
+        ColumnarNeighbourhoodGraph columnar = new ColumnarNeighbourhoodGraph(graph)
+
+        then:
+        columnar.nodeCount == 3
+        columnar.nodes.id == [10L, 20L, 30L] as long[]
+        columnar.nodes.smiles[1] == 'Oc1ccc(-c2ccccc2)cc1'
+        columnar.nodes.labelValues == ['F2', 'MOL'] as String[]
+        columnar.nodes.labels == [[0, 1], [0], [0]] as int[][]
+        columnar.nodes.props.hac == [14, 13, null] as Object[]
+        columnar.nodes.props.chac == [12, null, 12] as Object[]
+        columnar.edges.parent == [0, 1, 0] as int[]
+        columnar.edges.child == [1, 2, 2] as int[]
+        columnar.edges.label == [0, 1, 0] as int[]
+        columnar.edges.labelValues == [LABEL1, LABEL2] as String[]
+        columnar.groups.isEmpty()
+    }
+}
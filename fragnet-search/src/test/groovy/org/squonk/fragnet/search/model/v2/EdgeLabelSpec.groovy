@@ -0,0 +1,64 @@
+package org.squonk.fragnet.search.model.v2
+
+import spock.lang.Specification
+
+class EdgeLabelSpec extends Specification {
+
+    void "parse label"() {
+
+        when:
+        def label = EdgeLabel.parse("FG|C[Xe]|C[100Xe]|RING|Oc1ccc(-c2ccccc2)cc1[Xe]|OC1CCC(C2CCCCC2)CC1[100Xe]")
+
+        then:
+        label.parts.length == 6
+        label.getPart(0) == "FG"
+        label.getPart(1) == "C[Xe]"
+        label.getPart(3) == "RING"
+        label.getPart(4) == "Oc1ccc(-c2ccccc2)cc1[Xe]"
+        label.label == "FG|C[Xe]|C[100Xe]|RING|Oc1ccc(-c2ccccc2)cc1[Xe]|OC1CCC(C2CCCCC2)CC1[100Xe]"
+    }
+
+    void "parts are shared"() {
+
+        when:
+        def label1 = EdgeLabel.parse(new String("FG|C[Xe]|C[100Xe]|RING|Oc1ccccc1[Xe]|OC1CCCCC1[100Xe]"))
+        def label2 = EdgeLabel.parse(new String("FG|C[Xe]|C[100Xe]|RING|Nc1ccccc1[Xe]|NC1CCCCC1[100Xe]"))
+
+        then:
+        label1.getPart(1).is(label2.getPart(1))
+        !label1.getPart(4).is(label2.getPart(4))
+    }
+
+    void "edge without label"() {
+
+        when:
+        def edge = new MoleculeEdge(1, 2, 3, null)
+
+        then:
+        edge.getLabel() == null
+        edge.getEdgeLabel() == null
+    }
+
+    void "label regenerated from parts"() {
+
+        when:
+        def label1 = EdgeLabel.parse(new String(label))
+        def label2 = EdgeLabel.parse(new String(label))
+
+        then:
+        label1.label == label
+        label1.toString() == label
+        label1 == label2
+        label1.hashCode() == label2.hashCode()
+
+        where:
+        label << ["FG|C[Xe]|C[100Xe]|RING|Oc1ccccc1[Xe]|OC1CCCCC1[100Xe]", "a||b", "a|b||", ""]
+    }
+
+    void "different labels not equal"() {
+
+        expect:
+        EdgeLabel.parse("a|b") != EdgeLabel.parse("a|c")
+        EdgeLabel.parse("a|b") != EdgeLabel.parse("a|b|")
+    }
+}
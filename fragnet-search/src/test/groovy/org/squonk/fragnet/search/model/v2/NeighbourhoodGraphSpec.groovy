@@ -0,0 +1,54 @@
+package org.squonk.fragnet.search.model.v2
+
+import spock.lang.IgnoreIf
+import spock.lang.Specification
+
+@IgnoreIf({!env.RDBASE})
+class NeighbourhoodGraphSpec extends Specification {
+
+    static {
+        Runtime.getRuntime().loadLibrary0(groovy.lang.GroovyClassLoader.class, "GraphMolWrap")
+    }
+
+    static final String LABEL = "FG|C[Xe]|C[100Xe]|RING|Oc1ccc(-c2ccccc2)cc1[Xe]|OC1CCC(C2CCCCC2)CC1[100Xe]"
+
+    void "member transform generated once"() {
+
+        NeighbourhoodGraph graph = new NeighbourhoodGraph("Oc1ccc(-c2ccccc2)cc1", null)
+        MoleculeNode node = new MoleculeNode(2, "Cc1cc(-c2ccccc2)ccc1O", MoleculeNode.MoleculeType.NET_MOL, null, [:])
+        // the member is the parent of the refmol so this is an addition
+        MoleculeEdge edge = new MoleculeEdge(10, 2, 1, LABEL)
+
+        when:
+        NeighbourhoodGraph.GroupMember member = graph.createGroupMember(node)
+        member.addEdges([edge] as MoleculeEdge[])
+        MolTransform tf1 = member.getMolTransform()
+        MolTransform tf2 = member.getMolTransform()
+
+        then:
+        tf1.is(tf2)
+        tf1.classification == GroupingType.FG_ADDITION
+        member.getSelectedTransformData() != null
+        member.getSelectedTransformData().getFromSmiles() == "Oc1ccc(-c2ccccc2)cc1"
+    }
+
+    void "member transform regenerated when edges added"() {
+
+        NeighbourhoodGraph graph = new NeighbourhoodGraph("Oc1ccc(-c2ccccc2)cc1", null)
+        MoleculeNode node = new MoleculeNode(2, "Cc1cc(-c2ccccc2)ccc1O", MoleculeNode.MoleculeType.NET_MOL, null, [:])
+        NeighbourhoodGraph.GroupMember member = graph.createGroupMember(node)
+        member.addEdges([new MoleculeEdge(10, 2, 1, LABEL)] as MoleculeEdge[])
+        MolTransform tf1 = member.getMolTransform()
+
+        when:
+        member.addEdges([new MoleculeEdge(11, 2, 1, LABEL)] as MoleculeEdge[])
+        MolTransform tf2 = member.getMolTransform()
+
+        then:
+        !tf1.is(tf2)
+        tf2.is(member.getMolTransform())
+        tf2.classification == GroupingType.FG_ADDITION
+        member.getSelectedTransformData() != null
+        member.getPathLengths() == "1,1"
+    }
+}
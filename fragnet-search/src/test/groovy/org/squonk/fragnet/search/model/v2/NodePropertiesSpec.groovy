@@ -0,0 +1,37 @@
+package org.squonk.fragnet.search.model.v2
+
+import spock.lang.Specification
+
+class NodePropertiesSpec extends Specification {
+
+    void "hides and overlays properties"() {
+
+        Map stored = Collections.unmodifiableMap([smiles: 'CO', hac: 2, chac: 0, cmpd_ids: ['a', 'b']])
+
+        when:
+        NodeProperties props = new NodeProperties(stored, ['smiles', 'cmpd_ids'] as Set)
+        props.put('mw', 32.0f)
+        props.put('hac', 3)
+
+        then:
+        props.size() == 3
+        props.keySet() as List == ['hac', 'chac', 'mw']
+        props.values() as List == [3, 0, 32.0f]
+        props == [hac: 3, chac: 0, mw: 32.0f]
+        props.hac == 3
+        props.mw == 32.0f
+        props.smiles == null
+        !props.containsKey('cmpd_ids')
+        stored.hac == 2
+    }
+
+    void "node hides smiles"() {
+
+        when:
+        MoleculeNode node = new MoleculeNode(1, 'CO', MoleculeNode.MoleculeType.NET_MOL, null, [smiles: 'CO', hac: 2])
+
+        then:
+        node.props == [hac: 2]
+        node.getProp('hac', Number) == 2
+    }
+}
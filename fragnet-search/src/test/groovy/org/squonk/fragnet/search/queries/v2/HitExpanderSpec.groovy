@@ -18,6 +18,7 @@ package org.squonk.fragnet.search.queries.v2
 import org.neo4j.driver.Session
 import org.squonk.fragnet.AbstractGraphDBSpec
 import org.squonk.fragnet.Constants
+import org.squonk.fragnet.chem.MolStandardize
 import org.squonk.fragnet.search.model.v2.ConvertedSmilesMols
 import spock.lang.IgnoreIf
 
@@ -48,4 +49,61 @@ class HitExpanderSpec extends AbstractGraphDBSpec {
         session?.close()
     }
 
+    void "concurrent expand matches serial"() {
+
+        Session session = graphDB.getSession()
+
+        ConvertedSmilesMols mols = new ConvertedSmilesMols(Constants.MIME_TYPE_SMILES)
+        mols.addMol(null, "CCOc1ccccc1CN1CCC(O)CC1", "1")
+        mols.addMol(null, "COCC(=O)Nc1cccc(NC(C)=O)c1", "2")
+        mols.addMol(null, "CCOc1ccccc1CN1CCC(O)CC1", "3")
+
+        when:
+        def serial = new HitExpander(session).processMolecules(mols, 2, 5, 5, 2, 2, null)
+        def concurrent = new HitExpander(graphDB, 3).processMolecules(mols, 2, 5, 5, 2, 2, null)
+
+        then:
+        concurrent.getResultCount() == serial.getResultCount()
+        concurrent.getResults()*.smiles == serial.getResults()*.smiles
+        concurrent.getResults()*.sourceMols == serial.getResults()*.sourceMols
+        concurrent.getHitCounts() == serial.getHitCounts()
+        // the third molecule is the same as the first so is only searched once, but is still a source of the hits
+        serial.getUniqueQueryCount() == 2
+        serial.getResults().every { !it.sourceMols.contains("1") || it.sourceMols.contains("3") }
+
+        cleanup:
+        session?.close()
+    }
+
+    void "invalid record is skipped"() {
+
+        Session session = graphDB.getSession()
+
+        // the last record is not a valid molfile so cannot be standardized
+        String data = new File("src/test/data/expand.sdf").text + "\nbad\n\n\nnot a molfile\nM  END\n\$\$\$\$\n"
+        ConvertedSmilesMols mols = MolStandardize.readStdNonisoSmilesFromSDFData(data, null)
+        HitExpander hitExpander = new HitExpander(session)
+
+        when:
+        def aggregated = hitExpander.processMolecules(mols, 2, 5, 5, 2, 2, null)
+        def streamed = hitExpander.expandMolecules(mols, 2, 5, 5, 2, 2, null)
+
+        then:
+        mols.molecules.size() == 6
+        mols.molecules[5].smiles == null
+        HitExpander.countInvalid(mols.molecules) == 1
+        aggregated.getQueryCount() == 6
+        aggregated.getUniqueQueryCount() == HitExpander.countUniqueSmiles(mols.molecules[0..4])
+        aggregated.getResultCount() > 0
+        !aggregated.getHitCounts().containsKey("6")
+        aggregated.getResults().every { !it.sourceMols.contains("6") }
+        streamed.size() == 6
+        streamed[5].id == "6"
+        streamed[5].hitCount == 0
+        streamed[0..4]*.hitCount.sum() > 0
+
+        cleanup:
+        session?.close()
+    }
+
 }
@@ -0,0 +1,76 @@
+package org.squonk.fragnet.service
+
+import spock.lang.Specification
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+import static org.squonk.fragnet.service.ConcurrencyLimiter.Admission.*
+
+class ConcurrencyLimiterSpec extends Specification {
+
+    void "admitted up to limit"() {
+
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter("spec_limit", 2, 0, 0)
+
+        when:
+        def a1 = limiter.enter()
+        def a2 = limiter.enter()
+        def a3 = limiter.enter()
+        limiter.exit()
+        def a4 = limiter.enter()
+
+        then:
+        a1 == ADMITTED
+        a2 == ADMITTED
+        a3 == QUEUE_FULL
+        a4 == ADMITTED
+    }
+
+    void "waits then times out"() {
+
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter("spec_timeout", 1, 1, 50)
+
+        when:
+        limiter.enter()
+        def a = limiter.enter()
+
+        then:
+        a == TIMED_OUT
+        limiter.getWaiting() == 0
+    }
+
+    void "waits until admitted"() {
+
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter("spec_wait", 1, 1, 10000)
+        limiter.enter()
+        CountDownLatch started = new CountDownLatch(1)
+        def result = null
+
+        when:
+        Thread t = Thread.start {
+            started.countDown()
+            result = limiter.enter()
+        }
+        started.await(1, TimeUnit.SECONDS)
+        while (limiter.getWaiting() == 0 && t.isAlive()) {
+            Thread.sleep(10)
+        }
+        // the queue is full while the other thread waits
+        def rejected = limiter.enter()
+        limiter.exit()
+        t.join(5000)
+
+        then:
+        rejected == QUEUE_FULL
+        result == ADMITTED
+    }
+
+    void "unlimited"() {
+
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter("spec_unlimited", 0, 0, 0)
+
+        expect:
+        (1..100).every { limiter.enter() == ADMITTED }
+    }
+}
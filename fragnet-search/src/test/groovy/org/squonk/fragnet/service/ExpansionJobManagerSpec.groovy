@@ -0,0 +1,183 @@
+package org.squonk.fragnet.service
+
+import org.squonk.fragnet.Constants
+import org.squonk.fragnet.Utils
+import spock.lang.Specification
+
+import java.nio.file.Files
+
+class ExpansionJobManagerSpec extends Specification {
+
+    void "count queries"() {
+
+        File file = File.createTempFile("fragnet", ".txt")
+        file.text = text
+
+        expect:
+        ExpansionJobManager.countQueries(file, mimeType) == count
+
+        cleanup:
+        file.delete()
+
+        where:
+        text                                 | mimeType                   | count
+        "CCO\tA\n\nc1ccccc1\n"               | Constants.MIME_TYPE_SMILES | 2
+        "\n  RDKit\n\nM  END\n\$\$\$\$\n" * 3 | Constants.MIME_TYPE_SDFILE | 3
+    }
+
+    void "interrupted job loaded as failed and results paged"() {
+
+        File dir = Files.createTempDirectory("fragnet-jobs").toFile()
+        File jobDir = new File(dir, "job1")
+        jobDir.mkdirs()
+        ExpansionJob saved = new ExpansionJob("job1", Constants.MIME_TYPE_SMILES, null, 2, null, null, null, null, null)
+        saved.setOwner("user1")
+        saved.setStatus(ExpansionJob.Status.RUNNING)
+        saved.setQueryCount(4)
+        saved.setQueriesDone(3)
+        Utils.getObjectMapper().writeValue(new File(jobDir, "status.json"), saved)
+        // the last line was being written
+        new File(jobDir, "results.ndjson").text = '{"id":"1"}\n{"id":"2"}\n{"id":"3"}\n{"id":'
+        new File(jobDir, "results.index").withDataOutputStream { index ->
+            [0L, 11L, 22L, 33L].each { index.writeLong(it) }
+        }
+
+        when:
+        ExpansionJobManager manager = new ExpansionJobManager(dir, 1, 1, 60000, null)
+        ExpansionJob job = manager.getJob("job1", "user1")
+        ByteArrayOutputStream out = new ByteArrayOutputStream()
+        int count = manager.writeResults(job, 1, 5, out)
+
+        then:
+        job.status == ExpansionJob.Status.FAILED
+        job.error != null
+        count == 2
+        out.toString("UTF-8") == '{"id":"2"}\n{"id":"3"}\n'
+
+        cleanup:
+        manager?.close()
+        dir.deleteDir()
+    }
+
+    void "finished jobs expire"() {
+
+        File dir = Files.createTempDirectory("fragnet-jobs").toFile()
+        File jobDir = new File(dir, "job1")
+        jobDir.mkdirs()
+        ExpansionJob saved = new ExpansionJob("job1", Constants.MIME_TYPE_SMILES, null, 2, null, null, null, null, null)
+        saved.setStatus(ExpansionJob.Status.COMPLETED)
+        File statusFile = new File(jobDir, "status.json")
+        Utils.getObjectMapper().writeValue(statusFile, saved)
+        statusFile.setLastModified(System.currentTimeMillis() - 120000)
+
+        when:
+        ExpansionJobManager manager = new ExpansionJobManager(dir, 1, 1, 60000, null)
+
+        then:
+        manager.getJob("job1", null) == null
+        !jobDir.exists()
+
+        cleanup:
+        manager?.close()
+        dir.deleteDir()
+    }
+
+    void "results paged using index"() {
+
+        File dir = Files.createTempDirectory("fragnet-jobs").toFile()
+        File jobDir = new File(dir, "job1")
+        jobDir.mkdirs()
+        ExpansionJob saved = new ExpansionJob("job1", Constants.MIME_TYPE_SMILES, null, 2, null, null, null, null, null)
+        saved.setOwner("user1")
+        saved.setStatus(ExpansionJob.Status.COMPLETED)
+        saved.setQueryCount(100)
+        saved.setQueriesDone(100)
+        Utils.getObjectMapper().writeValue(new File(jobDir, "status.json"), saved)
+        List<String> lines = (1..100).collect { '{"id":"' + it + '"}' }
+        new File(jobDir, "results.ndjson").text = lines.join("\n") + "\n"
+        new File(jobDir, "results.index").withDataOutputStream { index ->
+            long position = 0
+            lines.each { line ->
+                index.writeLong(position)
+                position += line.bytes.length + 1
+            }
+        }
+
+        when:
+        ExpansionJobManager manager = new ExpansionJobManager(dir, 1, 1, 60000, null)
+        ExpansionJob job = manager.getJob("job1", "user1")
+        ByteArrayOutputStream out1 = new ByteArrayOutputStream()
+        int count1 = manager.writeResults(job, 50, 3, out1)
+        ByteArrayOutputStream out2 = new ByteArrayOutputStream()
+        int count2 = manager.writeResults(job, 98, 10, out2)
+
+        then:
+        count1 == 3
+        out1.toString("UTF-8") == '{"id":"51"}\n{"id":"52"}\n{"id":"53"}\n'
+        count2 == 2
+        out2.toString("UTF-8") == '{"id":"99"}\n{"id":"100"}\n'
+
+        cleanup:
+        manager?.close()
+        dir.deleteDir()
+    }
+
+    void "job only visible to owner"() {
+
+        File dir = Files.createTempDirectory("fragnet-jobs").toFile()
+        File jobDir = new File(dir, "job1")
+        jobDir.mkdirs()
+        ExpansionJob saved = new ExpansionJob("job1", Constants.MIME_TYPE_SMILES, null, 2, null, null, null, null, null)
+        saved.setOwner("user1")
+        saved.setStatus(ExpansionJob.Status.COMPLETED)
+        Utils.getObjectMapper().writeValue(new File(jobDir, "status.json"), saved)
+
+        when:
+        ExpansionJobManager manager = new ExpansionJobManager(dir, 1, 1, 60000, null)
+
+        then:
+        manager.getJob("job1", "user1") != null
+        manager.getJob("job1", "user2") == null
+        manager.getJob("job1", null) == null
+
+        cleanup:
+        manager?.close()
+        dir.deleteDir()
+    }
+
+    void "negative offset rejected"() {
+
+        File dir = Files.createTempDirectory("fragnet-jobs").toFile()
+        ExpansionJobManager manager = new ExpansionJobManager(dir, 1, 1, 60000, null)
+        ExpansionJob job = new ExpansionJob("job1", Constants.MIME_TYPE_SMILES, null, 2, null, null, null, null, null)
+        job.setQueriesDone(10)
+
+        when:
+        manager.writeResults(job, -1, 5, new ByteArrayOutputStream())
+
+        then:
+        thrown(IllegalArgumentException)
+
+        cleanup:
+        manager?.close()
+        dir.deleteDir()
+    }
+
+    void "input larger than maximum rejected"() {
+
+        File dir = Files.createTempDirectory("fragnet-jobs").toFile()
+        ExpansionJobManager manager = new ExpansionJobManager(dir, 1, 1, 60000, 100, null)
+        InputStream input = new ByteArrayInputStream(("CCO\n" * 100).bytes)
+
+        when:
+        manager.submit("user1", input, Constants.MIME_TYPE_SMILES, null, 2, null, null, null, null, null)
+
+        then:
+        thrown(ExpansionJobManager.InputTooLargeException)
+        dir.listFiles().length == 0
+
+        cleanup:
+        manager?.close()
+        dir.deleteDir()
+    }
+}
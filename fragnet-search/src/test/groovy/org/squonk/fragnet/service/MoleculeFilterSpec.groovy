@@ -0,0 +1,76 @@
+package org.squonk.fragnet.service
+
+import spock.lang.Specification
+
+class MoleculeFilterSpec extends Specification {
+
+    static String smiles = (0..<10000).collect { "C${it}CC" }.join("\n")
+
+    void "populate and check"() {
+
+        MoleculeFilter filter = new MoleculeFilter("v1")
+
+        when:
+        boolean before = filter.mightContain("CCO")
+        long count = filter.populate(new BufferedReader(new StringReader(smiles)), 10000, 0.01)
+        int falsePositives = (0..<10000).count { filter.mightContain("N${it}CC") }
+
+        then:
+        before
+        count == 10000
+        (0..<10000).every { filter.mightContain("C${it}CC") }
+        falsePositives < 200
+    }
+
+    void "write and load"() {
+
+        File file = File.createTempFile("fragnet-smiles", ".filter")
+        MoleculeFilter filter1 = new MoleculeFilter("v1")
+        filter1.populate(new BufferedReader(new StringReader(smiles)), 10000, 0.01)
+        filter1.write(file)
+
+        when:
+        MoleculeFilter filter2 = new MoleculeFilter("v1")
+        MoleculeFilter filter3 = new MoleculeFilter("v2")
+
+        then:
+        filter2.load(file)
+        filter2.mightContain("C1CC")
+        !filter3.load(file)
+        !filter3.isReady()
+
+        cleanup:
+        file?.delete()
+    }
+
+    void "corrupt file rejected"() {
+
+        File file = File.createTempFile("fragnet-smiles", ".filter")
+        MoleculeFilter filter1 = new MoleculeFilter("v1")
+        filter1.populate(new BufferedReader(new StringReader(smiles)), 10000, 0.01)
+        filter1.write(file)
+        byte[] bytes = file.bytes
+        MoleculeFilter filter2 = new MoleculeFilter("v1")
+
+        when:
+        file.bytes = corrupt(bytes)
+        filter2.load(file)
+
+        then:
+        thrown(IOException)
+        !filter2.isReady()
+
+        cleanup:
+        file?.delete()
+
+        where:
+        corrupt << [
+                { b -> Arrays.copyOf(b, 10) },
+                { b -> Arrays.copyOf(b, 20) },
+                { b -> Arrays.copyOf(b, 22) },
+                { b -> def c = b.clone(); c[12] = 0x7f; c },
+                { b -> def c = b.clone(); c[12] = (byte) 0xff; c },
+                { b -> def c = b.clone(); c[8] = 0; c[9] = 0; c[10] = 0; c[11] = 0; c }
+        ]
+    }
+}
@@ -0,0 +1,64 @@
+package org.squonk.fragnet.service
+
+import spock.lang.Specification
+
+class NegativeResultCacheSpec extends Specification {
+
+    void "mark and check"() {
+
+        NegativeResultCache cache = new NegativeResultCache(10, "v1")
+
+        when:
+        cache.markAbsent("c1ccccc1", "C1=CC=CC=C1")
+
+        then:
+        cache.isAbsent("c1ccccc1")
+        cache.isInputAbsent("C1=CC=CC=C1")
+        !cache.isAbsent("CCO")
+        cache.size() == 2
+    }
+
+    void "input kept apart from standardized smiles"() {
+
+        NegativeResultCache cache = new NegativeResultCache(10, "v1")
+
+        when:
+        cache.markAbsent("CCO", "OCC")
+
+        then:
+        cache.isAbsent("CCO")
+        !cache.isAbsent("OCC")
+        cache.isInputAbsent("OCC")
+        !cache.isInputAbsent("CCO")
+    }
+
+    void "bounded size"() {
+
+        NegativeResultCache cache = new NegativeResultCache(3, "v1")
+
+        when:
+        cache.markAbsent("C", null)
+        cache.markAbsent("CC", null)
+        cache.markAbsent("CCC", null)
+        cache.isAbsent("C")
+        cache.markAbsent("CCCC", null)
+
+        then:
+        cache.size() == 3
+        cache.isAbsent("C")
+        !cache.isAbsent("CC")
+        cache.isAbsent("CCCC")
+    }
+
+    void "disabled"() {
+
+        NegativeResultCache cache = new NegativeResultCache(0, "v1")
+
+        when:
+        cache.markAbsent("C", null)
+
+        then:
+        !cache.isAbsent("C")
+        cache.size() == 0
+    }
+}
@@ -0,0 +1,149 @@
+package org.squonk.fragnet.service
+
+import org.squonk.fragnet.search.model.v2.NeighbourhoodGraph
+import spock.lang.Specification
+
+class NeighbourhoodGraphStoreSpec extends Specification {
+
+    /** Records whether it has been closed, and has a fixed size */
+    static class TestGraph extends NeighbourhoodGraph {
+
+        final long size
+        boolean closed
+
+        TestGraph(String refmol, long size = 0) {
+            super(refmol, null)
+            this.size = size
+        }
+
+        @Override
+        long getEstimatedSize() {
+            return size
+        }
+
+        @Override
+        void close() {
+            closed = true
+            super.close()
+        }
+    }
+
+    NeighbourhoodGraphStore store
+
+    void cleanup() {
+        store?.close()
+    }
+
+    void "put and apply"() {
+
+        store = new NeighbourhoodGraphStore(60, 10, 0)
+
+        when:
+        String handle = store.put(new TestGraph("CCO"))
+
+        then:
+        store.apply(handle, { g -> g.getRefmol() }) == "CCO"
+        store.apply("unknown", { g -> g.getRefmol() }) == null
+        store.size() == 1
+    }
+
+    void "least recently used discarded"() {
+
+        store = new NeighbourhoodGraphStore(60, 2, 0)
+        TestGraph g1 = new TestGraph("C")
+        TestGraph g2 = new TestGraph("CC")
+        TestGraph g3 = new TestGraph("CCC")
+
+        when:
+        String h1 = store.put(g1)
+        String h2 = store.put(g2)
+        store.apply(h1, { g -> g.getRefmol() })
+        String h3 = store.put(g3)
+
+        then:
+        store.size() == 2
+        store.apply(h1, { g -> g.getRefmol() }) == "C"
+        store.apply(h2, { g -> g.getRefmol() }) == null
+        store.apply(h3, { g -> g.getRefmol() }) == "CCC"
+        !g1.closed
+        g2.closed
+        !g3.closed
+    }
+
+    void "discarded when too big"() {
+
+        store = new NeighbourhoodGraphStore(60, 10, 250)
+        TestGraph g1 = new TestGraph("C", 100)
+        TestGraph g2 = new TestGraph("CC", 100)
+        TestGraph g3 = new TestGraph("CCC", 100)
+        TestGraph g4 = new TestGraph("CCCC", 1000)
+
+        when:
+        store.put(g1)
+        store.put(g2)
+        String h3 = store.put(g3)
+
+        then:
+        store.size() == 2
+        store.getTotalBytes() == 200
+        g1.closed
+        !g2.closed
+
+        when:
+        String h4 = store.put(g4)
+
+        then:
+        // the most recent is kept even though it is too big on its own
+        store.size() == 1
+        store.getTotalBytes() == 1000
+        g2.closed
+        g3.closed
+        store.apply(h3, { g -> g.getRefmol() }) == null
+        store.apply(h4, { g -> g.getRefmol() }) == "CCCC"
+        !g4.closed
+    }
+
+    void "expired discarded"() {
+
+        store = new NeighbourhoodGraphStore(0, 10, 0)
+        TestGraph graph = new TestGraph("C")
+
+        when:
+        String handle = store.put(graph)
+        sleep(10)
+
+        then:
+        store.apply(handle, { g -> g.getRefmol() }) == null
+        store.size() == 0
+        graph.closed
+    }
+
+    void "expired discarded without being used"() {
+
+        store = new NeighbourhoodGraphStore(0, 10, 0)
+        TestGraph graph = new TestGraph("C")
+
+        when:
+        store.put(graph)
+        // the expiry task runs every second when the timeout is less than that
+        sleep(2500)
+
+        then:
+        store.size() == 0
+        graph.closed
+    }
+
+    void "close discards all"() {
+
+        store = new NeighbourhoodGraphStore(60, 10, 0)
+        TestGraph graph = new TestGraph("C")
+        store.put(graph)
+
+        when:
+        store.close()
+
+        then:
+        store.size() == 0
+        graph.closed
+    }
+}
@@ -0,0 +1,45 @@
+package org.squonk.fragnet.service
+
+import spock.lang.Specification
+
+import javax.servlet.FilterChain
+import javax.servlet.ServletException
+import javax.servlet.http.HttpServletRequest
+import javax.servlet.http.HttpServletResponse
+
+class ResponseAbortFilterSpec extends Specification {
+
+    HttpServletRequest mockRequest() {
+        Map<String, Object> attributes = [:]
+        return Mock(HttpServletRequest) {
+            getAttribute(_) >> { String name -> attributes[name] }
+            setAttribute(_, _) >> { String name, Object value -> attributes[name] = value }
+        }
+    }
+
+    void "completed response not aborted"() {
+
+        ResponseAbortFilter filter = new ResponseAbortFilter()
+        HttpServletRequest request = mockRequest()
+
+        when:
+        filter.doFilter(request, Mock(HttpServletResponse), { req, resp -> } as FilterChain)
+
+        then:
+        notThrown(ServletException)
+        !ResponseAbortFilter.isAborted(request)
+    }
+
+    void "aborted response fails the request"() {
+
+        ResponseAbortFilter filter = new ResponseAbortFilter()
+        HttpServletRequest request = mockRequest()
+
+        when:
+        filter.doFilter(request, Mock(HttpServletResponse), { req, resp -> ResponseAbortFilter.abort(req) } as FilterChain)
+
+        then:
+        thrown(ServletException)
+        ResponseAbortFilter.isAborted(request)
+    }
+}
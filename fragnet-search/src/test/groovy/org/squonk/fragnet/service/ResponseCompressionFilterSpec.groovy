@@ -0,0 +1,237 @@
+package org.squonk.fragnet.service
+
+import io.prometheus.client.CollectorRegistry
+import spock.lang.Specification
+
+import javax.servlet.FilterChain
+import javax.servlet.ServletOutputStream
+import javax.servlet.http.HttpServletRequest
+import javax.servlet.http.HttpServletResponse
+import java.util.zip.GZIPInputStream
+
+class ResponseCompressionFilterSpec extends Specification {
+
+    void "accepts gzip"() {
+
+        expect:
+        ResponseCompressionFilter.acceptsGzip(acceptEncoding) == result
+
+        where:
+        acceptEncoding               | result
+        null                         | false
+        ""                           | false
+        "identity"                   | false
+        "gzip"                       | true
+        "gzip, deflate, br"          | true
+        "deflate, GZIP;q=0.5"        | true
+        "x-gzip"                     | true
+        "gzip;q=0"                   | false
+        "*"                          | true
+        "*;q=0"                      | false
+        "*, gzip;q=0"                | false
+        "br;q=1.0, gzip;q=0.8, *;q=0.1" | true
+    }
+
+    Map<String, String> headers
+    ByteArrayOutputStream body
+
+    void setup() {
+        headers = [:]
+        body = new ByteArrayOutputStream()
+    }
+
+    HttpServletRequest gzipRequest() {
+        return Mock(HttpServletRequest) {
+            getHeader("Accept-Encoding") >> "gzip"
+        }
+    }
+
+    HttpServletResponse mockResponse() {
+        ServletOutputStream out = new ServletOutputStream() {
+            @Override
+            void write(int b) throws IOException {
+                body.write(b)
+            }
+        }
+        return Mock(HttpServletResponse) {
+            getOutputStream() >> out
+            getHeader(_) >> { String name -> headers[name] }
+            setHeader(_, _) >> { String name, String value -> headers[name] = value }
+            isCommitted() >> false
+        }
+    }
+
+    static FilterChain chain(Closure closure) {
+        return { req, resp -> closure(resp) } as FilterChain
+    }
+
+    static String gunzip(byte[] bytes) {
+        return new GZIPInputStream(new ByteArrayInputStream(bytes)).text
+    }
+
+    void "small response not compressed"() {
+
+        ResponseCompressionFilter filter = new ResponseCompressionFilter(100, 6)
+        HttpServletResponse response = mockResponse()
+
+        when:
+        filter.doFilter(gzipRequest(), response, chain { resp ->
+            resp.setContentLength(999)
+            resp.getOutputStream().write("hello".bytes)
+        })
+
+        then:
+        1 * response.setContentLength(5)
+        0 * response.setContentLength(999)
+        headers["Content-Encoding"] == null
+        body.toString() == "hello"
+    }
+
+    void "large response compressed"() {
+
+        ResponseCompressionFilter filter = new ResponseCompressionFilter(100, 6)
+        HttpServletResponse response = mockResponse()
+        String text = "CCO" * 100
+
+        when:
+        filter.doFilter(gzipRequest(), response, chain { resp ->
+            resp.setContentLength(300)
+            resp.setContentLengthLong(300L)
+            resp.setHeader("Content-Length", "300")
+            resp.setIntHeader("Content-Length", 300)
+            resp.getOutputStream().write(text.bytes)
+        })
+
+        then:
+        0 * response.setContentLength(_)
+        0 * response.setIntHeader("Content-Length", _)
+        headers["Content-Encoding"] == "gzip"
+        headers["Content-Length"] == null
+        gunzip(body.toByteArray()) == text
+    }
+
+    void "output held back until minimum size"() {
+
+        ResponseCompressionFilter filter = new ResponseCompressionFilter(100, 6)
+        HttpServletResponse response = mockResponse()
+        String text = "CCO" * 100
+        int sizeAfterFlush = -1
+
+        when:
+        filter.doFilter(gzipRequest(), response, chain { resp ->
+            PrintWriter writer = resp.getWriter()
+            writer.write("CCO" * 10)
+            resp.flushBuffer()
+            sizeAfterFlush = body.size()
+            writer.write("CCO" * 90)
+        })
+
+        then:
+        sizeAfterFlush == 0
+        headers["Content-Encoding"] == "gzip"
+        gunzip(body.toByteArray()) == text
+    }
+
+    void "reset discards held back output"() {
+
+        ResponseCompressionFilter filter = new ResponseCompressionFilter(100, 6)
+        HttpServletResponse response = mockResponse()
+
+        when:
+        filter.doFilter(gzipRequest(), response, chain { resp ->
+            resp.getOutputStream().write("error".bytes)
+            resp.resetBuffer()
+            resp.getOutputStream().write("ok".bytes)
+            resp.reset()
+            resp.getOutputStream().write("fine".bytes)
+        })
+
+        then:
+        1 * response.resetBuffer()
+        1 * response.reset()
+        1 * response.setContentLength(4)
+        body.toString() == "fine"
+    }
+
+    void "existing encoding not compressed"() {
+
+        ResponseCompressionFilter filter = new ResponseCompressionFilter(10, 6)
+        HttpServletResponse response = mockResponse()
+        String text = "CCO" * 100
+
+        when:
+        filter.doFilter(gzipRequest(), response, chain { resp ->
+            resp.setHeader("Content-Encoding", "br")
+            resp.getOutputStream().write(text.bytes)
+        })
+
+        then:
+        headers["Content-Encoding"] == "br"
+        body.toString() == text
+    }
+
+    void "gzip not accepted"() {
+
+        ResponseCompressionFilter filter = new ResponseCompressionFilter(10, 6)
+        HttpServletRequest request = Mock(HttpServletRequest) {
+            getHeader("Accept-Encoding") >> "identity"
+        }
+        HttpServletResponse response = mockResponse()
+        String text = "CCO" * 100
+
+        when:
+        filter.doFilter(request, response, chain { resp ->
+            resp.getOutputStream().write(text.bytes)
+        })
+
+        then:
+        1 * response.addHeader("Vary", "Accept-Encoding")
+        headers["Content-Encoding"] == null
+        body.toString() == text
+    }
+
+    void "abort on error"() {
+
+        ResponseCompressionFilter filter = new ResponseCompressionFilter(100, 6)
+        HttpServletResponse response = mockResponse()
+        OutputStream stream = null
+
+        when:
+        filter.doFilter(gzipRequest(), response, chain { resp ->
+            stream = resp.getOutputStream()
+            stream.write(("CCO" * 100).bytes)
+            throw new IOException("failed")
+        })
+
+        then:
+        IOException ex = thrown()
+        ex.message == "failed"
+
+        when:
+        stream.write("CCO".bytes)
+
+        then:
+        // the response is complete and the compressor has been released
+        thrown(IOException)
+    }
+
+    void "metrics"() {
+
+        ResponseCompressionFilter filter = new ResponseCompressionFilter(100, 6)
+        HttpServletResponse response = mockResponse()
+        CollectorRegistry registry = CollectorRegistry.defaultRegistry
+        double responses = registry.getSampleValue("compression_responses_total")
+        double input = registry.getSampleValue("compression_input_bytes")
+        double output = registry.getSampleValue("compression_output_bytes")
+
+        when:
+        filter.doFilter(gzipRequest(), response, chain { resp ->
+            resp.getOutputStream().write(("CCO" * 100).bytes)
+        })
+
+        then:
+        registry.getSampleValue("compression_responses_total") == responses + 1
+        registry.getSampleValue("compression_input_bytes") == input + 300
+        registry.getSampleValue("compression_output_bytes") == output + body.size()
+    }
+}
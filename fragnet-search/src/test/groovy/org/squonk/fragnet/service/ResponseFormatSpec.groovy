@@ -0,0 +1,39 @@
+package org.squonk.fragnet.service
+
+import spock.lang.Specification
+
+class ResponseFormatSpec extends Specification {
+
+    void "choose format from accept header"() {
+
+        expect:
+        ResponseFormat.fromAccept(accept) == format
+
+        where:
+        accept                                          | format
+        null                                            | ResponseFormat.JSON
+        ""                                              | ResponseFormat.JSON
+        "*/*"                                           | ResponseFormat.JSON
+        "application/json"                              | ResponseFormat.JSON
+        "application/cbor"                              | ResponseFormat.CBOR
+        "application/x-jackson-smile"                   | ResponseFormat.SMILE
+        "*/*, application/cbor"                         | ResponseFormat.CBOR
+        "application/json;q=0.5, application/cbor"      | ResponseFormat.CBOR
+        "application/cbor;q=0.1, application/json"      | ResponseFormat.JSON
+        "text/html,application/xhtml+xml,*/*;q=0.8"     | ResponseFormat.JSON
+        "text/plain"                                    | ResponseFormat.JSON
+    }
+
+    void "binary formats have same structure"() {
+
+        Map data = [a: 1, b: ["x", "y"]]
+
+        when:
+        byte[] cbor = ResponseFormat.CBOR.mapper.writeValueAsBytes(data)
+        byte[] smile = ResponseFormat.SMILE.mapper.writeValueAsBytes(data)
+
+        then:
+        ResponseFormat.CBOR.mapper.readValue(cbor, Map) == data
+        ResponseFormat.SMILE.mapper.readValue(smile, Map) == data
+    }
+}
@@ -0,0 +1,141 @@
+package org.squonk.fragnet.service
+
+import spock.lang.Specification
+
+class ResultCacheSpec extends Specification {
+
+    File file
+
+    void setup() {
+        file = File.createTempFile("fragnet-results", ".cache")
+        file.delete()
+    }
+
+    void cleanup() {
+        file?.delete()
+    }
+
+    void "put and get"() {
+
+        ResultCache cache = new ResultCache(file, 1024 * 1024, "v1")
+
+        when:
+        cache.putJson("abc", '{"a":1}')
+        def json = cache.getJson("abc")
+        def missing = cache.getJson("xyz")
+
+        then:
+        json == '{"a":1}'
+        missing == null
+        cache.size() == 1
+
+        cleanup:
+        cache?.close()
+    }
+
+    void "reopen keeps entries for same version"() {
+
+        ResultCache cache1 = new ResultCache(file, 1024 * 1024, "v1")
+        cache1.putJson("abc", '{"a":1}')
+        cache1.close()
+
+        when:
+        ResultCache cache2 = new ResultCache(file, 1024 * 1024, "v1")
+        ResultCache cache3 = null
+
+        then:
+        cache2.getJson("abc") == '{"a":1}'
+
+        when:
+        cache2.close()
+        cache3 = new ResultCache(file, 1024 * 1024, "v2")
+
+        then:
+        cache3.getJson("abc") == null
+
+        cleanup:
+        cache3?.close()
+    }
+
+    void "compacts when full"() {
+
+        ResultCache cache = new ResultCache(file, 64 * 1024, "v1")
+        byte[] data = new byte[1000]
+
+        when:
+        for (int i = 0; i < 200; i++) {
+            cache.put("key" + i, data)
+        }
+
+        then:
+        cache.size() > 0
+        cache.size() < 200
+        cache.get("key199") != null
+        cache.get("key0") == null
+
+        cleanup:
+        cache?.close()
+    }
+
+    void "stream json"() {
+
+        ResultCache cache = new ResultCache(file, 1024 * 1024, "v1")
+
+        when:
+        def w1 = cache.openEntry("abc")
+        w1.write('{"a":1}'.bytes)
+        w1.commit()
+        w1.close()
+        def w2 = cache.openEntry("xyz")
+        w2.write('{"a":'.bytes)
+        w2.close()
+
+        then:
+        cache.getJson("abc") == '{"a":1}'
+        cache.getJson("xyz") == null
+
+        cleanup:
+        cache?.close()
+    }
+
+    void "corrupt file discarded"() {
+
+        ResultCache cache1 = new ResultCache(file, 1024 * 1024, "v1")
+        cache1.putJson("abc", '{"a":1}')
+        cache1.putJson("xyz", '{"a":2}')
+        cache1.close()
+        // overwrite the key length of the second record so that it runs past the end of the data
+        RandomAccessFile raf = new RandomAccessFile(file, "rw")
+        raf.seek(16)
+        int keyLength = raf.readInt()
+        raf.skipBytes(keyLength)
+        int valueLength = raf.readInt()
+        raf.seek(16 + 8 + keyLength + valueLength)
+        raf.writeInt(Integer.MAX_VALUE - 1)
+        raf.close()
+
+        when:
+        ResultCache cache2 = new ResultCache(file, 1024 * 1024, "v1")
+
+        then:
+        cache2.isEnabled()
+        cache2.size() == 0
+        cache2.getJson("abc") == null
+
+        when:
+        cache2.putJson("abc", '{"a":3}')
+
+        then:
+        cache2.getJson("abc") == '{"a":3}'
+
+        cleanup:
+        cache2?.close()
+    }
+
+    void "fingerprint is stable"() {
+
+        expect:
+        ResultCache.fingerprint("a", 1, null) == ResultCache.fingerprint("a", 1, null)
+        ResultCache.fingerprint("a", 1, null) != ResultCache.fingerprint("a", 2, null)
+    }
+}